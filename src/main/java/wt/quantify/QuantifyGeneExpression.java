@@ -13,33 +13,32 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.RealPoint;
 import net.imglib2.RealPointSampleList;
-import net.imglib2.RealRandomAccess;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.interpolation.neighborsearch.NearestNeighborSearchInterpolatorFactory;
-import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
 import net.imglib2.multithreading.SimpleMultiThreading;
 import net.imglib2.neighborsearch.KNearestNeighborSearch;
 import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 import net.imglib2.neighborsearch.NearestNeighborSearch;
 import net.imglib2.neighborsearch.NearestNeighborSearchOnKDTree;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
 import wt.alignment.ImageTools;
 import wt.quantify.localmaxima.LocalMaxima;
 import wt.quantify.localmaxima.RealPointValue;
 import wt.quantify.localmaxima.SimpleLocalMaxima;
+import wt.tessellation.CompiledTessellation;
 import wt.tessellation.LoadTessellation;
+import wt.tessellation.PointGrid;
 import wt.tessellation.Search;
 import wt.tessellation.Segment;
-import wt.tessellation.TessellationThread;
 import wt.tessellation.TessellationTools;
 import wt.tessellation.pointupdate.DistancePointUpdater;
 import wt.tools.CommonFileName;
@@ -55,6 +54,7 @@ public class QuantifyGeneExpression
 	final ArrayList< Roi > rois;
 
 	Img< FloatType > gene, measurement;
+	Collection< RealPointValue< FloatType > > maxima;
 
 	public QuantifyGeneExpression( final File roiDirectory )
 	{
@@ -70,56 +70,102 @@ public class QuantifyGeneExpression
 	public Img< FloatType > lastMeasurement() { return measurement; }
 	public ImagePlus lastMeasurementImp() { return new ImagePlus( "measurement", ImageTools.wrap( measurement ) ); }
 
+	/**
+	 * Finds the peaks of the aligned image and measures them on the finest level of the tessellation
+	 */
 	public void measure( final File alignedImage, final int numNeighbors, final float minValue )
 	{
 		final ImagePlus imp = new ImagePlus( alignedImage.getAbsolutePath() );
 		this.gene = ImageTools.convert( imp, imp.getStackSize() - 1 );
 
-		final Collection< RealPointValue< FloatType > > maxima = maxFinder.maxima( this.gene, new FloatType( minValue ) );
+		this.maxima = maxFinder.maxima( this.gene, new FloatType( minValue ) );
 
-		//final Collection< RealPointValue< FloatType > > maxTmp = new ArrayList< RealPointValue< FloatType > >();
+		measure( tessellation.compiled(), numNeighbors );
+	}
 
+	/**
+	 * Measures the peaks of the last image on a level of the tessellation, e.g. {@link LoadTessellation#level(int)}
+	 *
+	 * @return - the measurement, also {@link #lastMeasurement()}
+	 */
+	public Img< FloatType > measure( final CompiledTessellation compiled, final int numNeighbors )
+	{
 		this.measurement = ArrayImgs.floats( interval.dimension( 0 ), interval.dimension( 1 ) );
-		//final ImagePlus avgImp = new ImagePlus( "voronoiId", ImageTools.wrap( avgImg ) );
-
-		// reset all values
-		for ( final TessellationThread t : tessellation.tessellations() )
-		{
-			for ( final Segment s : t.search().segments() )
-				s.resetPeaks();
 
-			// for determining the corresponding Segment
-			final RealRandomAccess< Segment > rra = Views.interpolate( t.search().randomAccessible(), new NearestNeighborInterpolatorFactory< Segment >() ).realRandomAccess();
+		// all segments of all rois in one label raster
+		final double[] sumPeakIntensity = new double[ compiled.numLabels() ];
+		final int[] numPeaks = new int[ compiled.numLabels() ];
 
-			for ( final RealPointValue< FloatType > max : maxima )
-				if ( t.roi().contains( Math.round( max.getFloatPosition( 0 ) ), Math.round( max.getFloatPosition( 1 ) ) ) )
-				{
-					rra.setPosition( max );
-					rra.get().addPeak( max.get().get() );
-					//maxTmp.add( max );
-				}
+		for ( final RealPointValue< FloatType > max : maxima )
+		{
+			// -1 if outside of all ROIs
+			final int l = compiled.label( Math.round( max.getFloatPosition( 0 ) ), Math.round( max.getFloatPosition( 1 ) ) );
 
-			for ( final Segment s : t.search().segments() )
+			if ( l >= 0 )
 			{
-				s.setValue( s.sumPeakIntensity() / s.numPeaks() );
-				//s.setValue( s.numPeaks() );
+				sumPeakIntensity[ l ] += max.get().get();
+				++numPeaks[ l ];
 			}
+		}
+
+		final double[] value = new double[ compiled.numLabels() ];
+
+		for ( int l = 0; l < compiled.numLabels(); ++l )
+			value[ l ] = sumPeakIntensity[ l ] / numPeaks[ l ];
+
+		if ( numNeighbors > 0 )
+			smoothValues( compiled, value, numNeighbors );
+
+		final Cursor< FloatType > c = this.measurement.cursor();
 
-			if ( numNeighbors > 0 )
-				smoothValues( t.search(), t.locationMap(), numNeighbors );
+		for ( int i = 0; i < compiled.width() * compiled.height(); ++i )
+		{
+			c.fwd();
+			final int l = compiled.label( i );
 
-			TessellationTools.drawValue( t.mask(), t.search().randomAccessible(), this.measurement );
+			if ( l >= 0 )
+				c.get().set( (float)value[ l ] );
 		}
 
-		/*
-		ImagePlus tmp = new ImagePlus( "", ImageTools.wrap( this.gene ) );
-		//TessellationTools.drawRealPoint( tmp, maxTmp );
-		tmp.show();
-		SimpleMultiThreading.threadHaltUnClean();
-		*/
+		return this.measurement;
 	}
 
 
+	/**
+	 * Same as {@link #smoothValues(Search, HashMap, int)} for the segments of all rois of a compiled tessellation,
+	 * the neighbors are found among the generators of the same roi
+	 */
+	public static void smoothValues( final CompiledTessellation compiled, final double[] value, final int numNeighbors )
+	{
+		final double[] tmp = value.clone();
+		final int[] nearest = new int[ numNeighbors + 1 ];
+		final double[] sqDist = new double[ numNeighbors + 1 ];
+
+		PointGrid grid = null;
+
+		for ( int l = 0; l < compiled.numLabels(); ++l )
+		{
+			// the labels are ordered by roi
+			if ( grid == null || compiled.roi( l ) != compiled.roi( l - 1 ) )
+				grid = compiled.pointGrid( compiled.roi( l ) );
+
+			final int n = grid.nearest( compiled.pointX( l ), compiled.pointY( l ), numNeighbors + 1, nearest, sqDist );
+
+			double weight = 0;
+			double intensity = 0;
+
+			for ( int i = 0; i < n; ++i )
+			{
+				final double dist = sqDist[ i ];
+
+				weight += dist;
+				intensity += dist * tmp[ nearest[ i ] ];
+			}
+
+			value[ l ] = intensity / weight;
+		}
+	}
+
 	public static void smoothValues( final Search< Segment > search, final HashMap< Integer, RealPoint > locationMap, final int numNeighbors )
 	{
 		for ( final Segment s : search.segments() )
@@ -154,11 +200,11 @@ public class QuantifyGeneExpression
 
 	public Collection< RealPoint > centerOfMasses()
 	{
+		final CompiledTessellation compiled = tessellation.compiled();
 		final ArrayList< RealPoint > list = new ArrayList< RealPoint >();
 
-		for ( final TessellationThread t : tessellation.tessellations() )
-			for ( final Segment s : t.search().segments() )
-			list.add( new RealPoint( s.centerOfMass() ) );
+		for ( int l = 0; l < compiled.numLabels(); ++l )
+			list.add( new RealPoint( new double[]{ compiled.centerX( l ), compiled.centerY( l ) } ) );
 
 		return list;
 	}
@@ -172,6 +218,26 @@ public class QuantifyGeneExpression
 			final boolean showTessellation,
 			final boolean showResult,
 			final boolean saveResult )
+	{
+		process( tessellationDir, imageDir, alignedImages, numNeighbors, minValue, showTessellation, showResult, saveResult, new int[ 0 ] );
+	}
+
+	/**
+	 * Same as above, but every image is also measured on coarser levels of the tessellation (see {@link LoadTessellation#level(int)}),
+	 * saved as all_quantified_&lt;area&gt;.tif
+	 *
+	 * @param levels - the target areas of the coarser levels
+	 */
+	public static void process(
+			final File tessellationDir,
+			final File imageDir,
+			final List< String > alignedImages,
+			final int numNeighbors,
+			final float minValue,
+			final boolean showTessellation,
+			final boolean showResult,
+			final boolean saveResult,
+			final int[] levels )
 	{
 		if ( !tessellationDir.exists() )
 			throw new RuntimeException( "Tessellation directory '" + tessellationDir.getAbsolutePath() + "' does not exist." );
@@ -196,6 +262,10 @@ public class QuantifyGeneExpression
 		}
 
 		final ImageStack stack = new ImageStack( (int)qge.interval().dimension( 0 ), (int)qge.interval().dimension( 1 ) );
+		final ImageStack[] levelStacks = new ImageStack[ levels.length ];
+
+		for ( int k = 0; k < levels.length; ++k )
+			levelStacks[ k ] = new ImageStack( (int)qge.interval().dimension( 0 ), (int)qge.interval().dimension( 1 ) );
 
 		for ( final String wingFileName : alignedImages )
 		{
@@ -213,22 +283,40 @@ public class QuantifyGeneExpression
 			
 			stack.addSlice( wingFile.getName(), qge.lastMeasurementImp().getProcessor() );
 			//qge.lastMeasurementImp().show();
+
+			// the peaks are found only once for all levels
+			for ( int k = 0; k < levels.length; ++k )
+			{
+				qge.measure( qge.tessellation().level( levels[ k ] ), numNeighbors );
+				levelStacks[ k ].addSlice( wingFile.getName(), qge.lastMeasurementImp().getProcessor() );
+			}
 		}
 
 		if ( showResult )
 		{
 			new ImagePlus( "quantification", stack ).show();
+
+			for ( int k = 0; k < levels.length; ++k )
+				new ImagePlus( "quantification_" + levels[ k ], levelStacks[ k ] ).show();
 		}
 
 		if ( saveResult )
 		{
-			if ( stack.getSize() == 1 )
-				new FileSaver( new ImagePlus( "quantification", stack ) ).saveAsTiff( new File( imageDir, "all_quantified.tif" ).getAbsolutePath() );
-			else
-				new FileSaver( new ImagePlus( "quantification", stack ) ).saveAsTiffStack( new File( imageDir, "all_quantified.tif" ).getAbsolutePath() );
+			save( stack, new File( imageDir, "all_quantified.tif" ) );
+
+			for ( int k = 0; k < levels.length; ++k )
+				save( levelStacks[ k ], new File( imageDir, "all_quantified_" + levels[ k ] + ".tif" ) );
 		}
 	}
 
+	protected static void save( final ImageStack stack, final File file )
+	{
+		if ( stack.getSize() == 1 )
+			new FileSaver( new ImagePlus( "quantification", stack ) ).saveAsTiff( file.getAbsolutePath() );
+		else
+			new FileSaver( new ImagePlus( "quantification", stack ) ).saveAsTiffStack( file.getAbsolutePath() );
+	}
+
 	public static void main( String[] args )
 	{
 		new ImageJ();
@@ -13,6 +13,7 @@ import java.util.List;
 
 import spim.fiji.plugin.util.GUIHelper;
 import wt.alignment.Alignment_ImageJ;
+import wt.tessellation.TessellationTools;
 import wt.tools.CommonFileName;
 
 public class QuantifyGeneExpression_ImageJ implements PlugIn
@@ -24,6 +25,7 @@ public class QuantifyGeneExpression_ImageJ implements PlugIn
 	public static boolean defaultSaveStack = true;
 	public static int defaultNumNeighbors = 5;
 	public static double defaultMinValue = 3;
+	public static String defaultLevels = "";
 
 	@Override
 	public void run( final String arg )
@@ -36,6 +38,7 @@ public class QuantifyGeneExpression_ImageJ implements PlugIn
 		gd.addMessage( "" );
 		gd.addSlider( "Expression level smoothing (#neighboring tiles)", 0, 20, defaultNumNeighbors );
 		gd.addNumericField( "Min_intensity to be considered a peak", defaultMinValue, 1 );
+		gd.addStringField( "Coarser_levels (target areas, e.g. 800,3200)", defaultLevels, 20 );
 		gd.addMessage( "" );
 		gd.addCheckbox( "Display_stack_of_quantified_images", defaultDisplayStack );
 		gd.addCheckbox( "Save_stack_of_quantified_images", defaultSaveStack );
@@ -52,16 +55,50 @@ public class QuantifyGeneExpression_ImageJ implements PlugIn
 		Alignment_ImageJ.defaultPath = gd.getNextString();
 		defaultDisplayFileNames = gd.getNextBoolean();
 		defaultNumNeighbors = (int)Math.round( gd.getNextNumber() );
+		defaultLevels = gd.getNextString();
 		defaultDisplayStack = gd.getNextBoolean();
 		defaultSaveStack = gd.getNextBoolean();
 		defaultDisplayTessellation = gd.getNextBoolean();
 
+		final String[] l = defaultLevels.trim().length() == 0 ? new String[ 0 ] : defaultLevels.split( "," );
+		final int[] levels = new int[ l.length ];
+
+		for ( int i = 0; i < l.length; ++i )
+		{
+			try
+			{
+				levels[ i ] = Integer.parseInt( l[ i ].trim() );
+			}
+			catch ( final NumberFormatException e )
+			{
+				IJ.log( "Coarser level '" + l[ i ].trim() + "' is not a target area, expected e.g. 800,3200." );
+				return;
+			}
+		}
+
 		if ( !new File( defaultTessellationDir ).exists() )
 		{
 			IJ.log( "Tessellation directory '" + new File( defaultTessellationDir ).getAbsolutePath() + "' does not exist." );
 			return;
 		}
 
+		if ( levels.length > 0 )
+		{
+			final int targetArea = TessellationTools.targetArea( new File( defaultTessellationDir ) );
+
+			if ( targetArea < 0 )
+				return;
+
+			for ( final int level : levels )
+			{
+				if ( level <= targetArea )
+				{
+					IJ.log( "Coarser level " + level + " must be larger than the target area " + targetArea + " of the tessellation." );
+					return;
+				}
+			}
+		}
+
 		List< String > alignedImages = CommonFileName.getAlignedImages( new File( Alignment_ImageJ.defaultPath ) );
 
 		if ( defaultDisplayFileNames )
@@ -100,7 +137,8 @@ public class QuantifyGeneExpression_ImageJ implements PlugIn
 		{
 			IJ.log( "num neighbors = " + defaultNumNeighbors );
 			IJ.log( "min value = " + defaultMinValue );
-			QuantifyGeneExpression.process( new File( defaultTessellationDir ), new File( Alignment_ImageJ.defaultPath ), alignedImages, defaultNumNeighbors, (float)defaultMinValue, defaultDisplayTessellation, defaultDisplayStack, defaultSaveStack );
+			IJ.log( "coarser levels = " + defaultLevels );
+			QuantifyGeneExpression.process( new File( defaultTessellationDir ), new File( Alignment_ImageJ.defaultPath ), alignedImages, defaultNumNeighbors, (float)defaultMinValue, defaultDisplayTessellation, defaultDisplayStack, defaultSaveStack, levels );
 		}
 		catch ( Exception e)
 		{
@@ -0,0 +1,202 @@
+package wt.tessellation;
+
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import net.imglib2.RealPoint;
+
+/**
+ * Which segments touch each other, i.e. the Delaunay dual of the labeled tessellation. For every pair of
+ * segments it counts the 4-neighbor pixel pairs they share, so it can be updated with every changed pixel.
+ * The neighbors of every segment are kept sorted by id.
+ */
+public class AdjacencyGraph
+{
+	int[][] neighbor, count;
+	final int[] degree;
+
+	// marks visited segments in within()
+	final int[] mark;
+	int stamp = 0;
+
+	public AdjacencyGraph( final int maxId )
+	{
+		this.neighbor = new int[ maxId + 1 ][ 8 ];
+		this.count = new int[ maxId + 1 ][ 8 ];
+		this.degree = new int[ maxId + 1 ];
+		this.mark = new int[ maxId + 1 ];
+	}
+
+	protected AdjacencyGraph( final AdjacencyGraph g )
+	{
+		this.neighbor = new int[ g.neighbor.length ][];
+		this.count = new int[ g.count.length ][];
+		this.degree = g.degree.clone();
+		this.mark = new int[ g.mark.length ];
+
+		for ( int i = 0; i < neighbor.length; ++i )
+		{
+			neighbor[ i ] = g.neighbor[ i ].clone();
+			count[ i ] = g.count[ i ].clone();
+		}
+	}
+
+	public AdjacencyGraph copy() { return new AdjacencyGraph( this ); }
+
+	public int size() { return degree.length; }
+	public int degree( final int id ) { return degree[ id ]; }
+
+	/**
+	 * @return - the k-th neighbor of the segment, ordered by id
+	 */
+	public int neighbor( final int id, final int k ) { return neighbor[ id ][ k ]; }
+
+	/**
+	 * @return - the number of pixel pairs the two segments share
+	 */
+	public int shared( final int a, final int b )
+	{
+		final int k = find( a, b );
+		return k < degree[ a ] && neighbor[ a ][ k ] == b ? count[ a ][ k ] : 0;
+	}
+
+	public void clear()
+	{
+		for ( int i = 0; i < degree.length; ++i )
+			degree[ i ] = 0;
+	}
+
+	/**
+	 * Adds inc shared pixel pairs between segments a and b
+	 */
+	public void add( final int a, final int b, final int inc )
+	{
+		addDirected( a, b, inc );
+		addDirected( b, a, inc );
+	}
+
+	/**
+	 * Collects all points within the radius around the point of segment id that can be reached through neighbors
+	 * within the radius. For an unclipped Voronoi diagram these are all points within the radius, as every site
+	 * whose cell is crossed by the line between two sites is at most as far away as the end of the line.
+	 * Points only reachable across gaps of the mask are missed.
+	 *
+	 * Not thread-safe, it marks the visited segments.
+	 *
+	 * @return - the number of ids written to ids, the first one is id itself
+	 */
+	public int within( final int id, final HashMap< Integer, RealPoint > locations, final double radius, final int[] ids )
+	{
+		if ( stamp == Integer.MAX_VALUE )
+		{
+			for ( int i = 0; i < mark.length; ++i )
+				mark[ i ] = 0;
+
+			stamp = 0;
+		}
+
+		++stamp;
+
+		final RealPoint p = locations.get( id );
+		final double x = p.getDoublePosition( 0 );
+		final double y = p.getDoublePosition( 1 );
+		final double sqRadius = radius * radius;
+
+		ids[ 0 ] = id;
+		mark[ id ] = stamp;
+		int head = 0, tail = 1;
+
+		// a segment without pixels has no neighbors, look at all points
+		if ( degree[ id ] == 0 )
+		{
+			for ( final Entry< Integer, RealPoint > e : locations.entrySet() )
+			{
+				final int n = e.getKey();
+				final double dx = e.getValue().getDoublePosition( 0 ) - x;
+				final double dy = e.getValue().getDoublePosition( 1 ) - y;
+
+				if ( n != id && dx * dx + dy * dy <= sqRadius )
+					ids[ tail++ ] = n;
+			}
+
+			return tail;
+		}
+
+		while ( head < tail )
+		{
+			final int i = ids[ head++ ];
+
+			for ( int k = 0; k < degree[ i ]; ++k )
+			{
+				final int n = neighbor[ i ][ k ];
+
+				if ( mark[ n ] == stamp )
+					continue;
+
+				mark[ n ] = stamp;
+
+				final RealPoint q = locations.get( n );
+				final double dx = q.getDoublePosition( 0 ) - x;
+				final double dy = q.getDoublePosition( 1 ) - y;
+
+				if ( dx * dx + dy * dy <= sqRadius )
+					ids[ tail++ ] = n;
+			}
+		}
+
+		return tail;
+	}
+
+	/**
+	 * @return - the position of b in the neighbors of a, or where it would have to be inserted
+	 */
+	protected int find( final int a, final int b )
+	{
+		final int[] n = neighbor[ a ];
+		int k = 0;
+
+		while ( k < degree[ a ] && n[ k ] < b )
+			++k;
+
+		return k;
+	}
+
+	protected void addDirected( final int a, final int b, final int inc )
+	{
+		final int k = find( a, b );
+		final int d = degree[ a ];
+
+		if ( k < d && neighbor[ a ][ k ] == b )
+		{
+			count[ a ][ k ] += inc;
+
+			if ( count[ a ][ k ] == 0 )
+			{
+				System.arraycopy( neighbor[ a ], k + 1, neighbor[ a ], k, d - k - 1 );
+				System.arraycopy( count[ a ], k + 1, count[ a ], k, d - k - 1 );
+				--degree[ a ];
+			}
+		}
+		else
+		{
+			if ( inc < 0 )
+				throw new RuntimeException( "Segments " + a + " and " + b + " do not touch." );
+
+			if ( d == neighbor[ a ].length )
+			{
+				final int[] n = new int[ d * 2 ];
+				final int[] c = new int[ d * 2 ];
+				System.arraycopy( neighbor[ a ], 0, n, 0, d );
+				System.arraycopy( count[ a ], 0, c, 0, d );
+				neighbor[ a ] = n;
+				count[ a ] = c;
+			}
+
+			System.arraycopy( neighbor[ a ], k, neighbor[ a ], k + 1, d - k );
+			System.arraycopy( count[ a ], k, count[ a ], k + 1, d - k );
+			neighbor[ a ][ k ] = b;
+			count[ a ][ k ] = inc;
+			++degree[ a ];
+		}
+	}
+}
@@ -0,0 +1,201 @@
+package wt.tessellation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map.Entry;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import net.imglib2.RealPoint;
+import wt.tessellation.error.IncrementalError;
+import wt.tessellation.pointupdate.PointUpdater;
+
+/**
+ * Scores the candidate moves of one iteration of a {@link TessellationThread} concurrently on a {@link ForkJoinPool}.
+ *
+ * Every worker owns a copy of the point positions, the {@link LabelMap} and the incremental errors. Before each
+ * candidate it only copies the positions that differ from the {@link TessellationThread}: the points the thread moved
+ * since the last iteration (see {@link #moved(int[], int)}) and the points the worker moved for its last candidate.
+ *
+ * The labels only depend on the positions and the total errors only on the labels (see {@link IncrementalError}),
+ * so every candidate gets exactly the error the thread would compute for it on its own. The chosen move depends
+ * neither on the scheduling nor on the number of workers.
+ */
+public class CandidateEvaluator
+{
+	final TessellationThread t;
+	final ForkJoinPool pool;
+	final Worker[] workers;
+
+	// the points the thread moved since the last evaluation, all of them if syncAll is set
+	final int[] pending;
+	int numPending = 0;
+	boolean syncAll = false;
+
+	public CandidateEvaluator( final TessellationThread t, final ForkJoinPool pool, final int numWorkers )
+	{
+		if ( numWorkers < 1 )
+			throw new RuntimeException( "Number of workers must be at least 1, but is " + numWorkers );
+
+		this.t = t;
+		this.pool = pool;
+		this.workers = new Worker[ numWorkers ];
+
+		for ( int w = 0; w < numWorkers; ++w )
+			workers[ w ] = new Worker( t );
+
+		this.pending = new int[ t.maxId() + 1 ];
+	}
+
+	public int numWorkers() { return workers.length; }
+
+	/**
+	 * The thread moved the first n points of ids, the workers copy them before the next evaluation
+	 */
+	public void moved( final int[] ids, final int n )
+	{
+		if ( syncAll || numPending + n > pending.length )
+		{
+			syncAll = true;
+			return;
+		}
+
+		System.arraycopy( ids, 0, pending, numPending, n );
+		numPending += n;
+	}
+
+	/**
+	 * The thread moved any number of points, the workers copy all of them before the next evaluation
+	 */
+	public void movedAll() { this.syncAll = true; }
+
+	/**
+	 * Moves the point with the given id by ( dx[ c ], dy[ c ] ) for every candidate c and computes the resulting error.
+	 * Only the first numLocal points of localIds can be moved by the updater. The positions of the {@link TessellationThread}
+	 * are only read.
+	 *
+	 * @return - the error of every candidate
+	 */
+	public double[] evaluate( final int id, final int[] localIds, final int numLocal, final PointUpdater updater, final double[] dx, final double[] dy )
+	{
+		final double[] errors = new double[ dx.length ];
+		final ArrayList< RecursiveAction > tasks = new ArrayList< RecursiveAction >();
+
+		for ( int w = 0; w < workers.length; ++w )
+		{
+			final Worker worker = workers[ w ];
+			final int first = w;
+
+			tasks.add( new RecursiveAction()
+			{
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected void compute()
+				{
+					// also workers without candidates, they have to keep up
+					worker.sync( pending, numPending, syncAll );
+
+					for ( int c = first; c < errors.length; c += workers.length )
+						errors[ c ] = worker.evaluate( id, localIds, numLocal, updater, dx[ c ], dy[ c ] );
+				}
+			});
+		}
+
+		final RecursiveAction all = new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() { invokeAll( tasks ); }
+		};
+
+		// if we already run inside a pool we can just join in
+		if ( ForkJoinTask.inForkJoinPool() )
+			all.invoke();
+		else
+			pool.invoke( all );
+
+		numPending = 0;
+		syncAll = false;
+
+		return errors;
+	}
+
+	protected static class Worker
+	{
+		final TessellationThread t;
+		final HashMap< Integer, RealPoint > locationMap;
+		final LabelMap labelMap;
+		final IncrementalError incrementalArea, incrementalCirc;
+
+		// the points moved for the last candidate, they differ from the thread
+		final int[] lastLocal;
+		int numLastLocal = 0;
+
+		public Worker( final TessellationThread t )
+		{
+			this.t = t;
+			this.locationMap = new HashMap< Integer, RealPoint >();
+
+			for ( final Entry< Integer, RealPoint > e : t.locationMap().entrySet() )
+				locationMap.put( e.getKey(), new RealPoint( e.getValue() ) );
+
+			this.labelMap = t.labelMap().copy( locationMap );
+			this.incrementalArea = t.incrementalArea().copy();
+			this.incrementalCirc = t.incrementalCirc().copy();
+			this.lastLocal = new int[ t.maxId() + 1 ];
+		}
+
+		/**
+		 * Copies the positions the thread moved since the last evaluation, all of them if syncAll is set
+		 */
+		public void sync( final int[] moved, final int numMoved, final boolean syncAll )
+		{
+			if ( syncAll )
+			{
+				for ( final Entry< Integer, RealPoint > e : t.locationMap().entrySet() )
+					locationMap.get( e.getKey() ).setPosition( e.getValue() );
+
+				numLastLocal = 0;
+			}
+			else
+			{
+				sync( moved, numMoved );
+			}
+		}
+
+		protected void sync( final int[] ids, final int n )
+		{
+			final HashMap< Integer, RealPoint > source = t.locationMap();
+
+			for ( int i = 0; i < n; ++i )
+				locationMap.get( ids[ i ] ).setPosition( source.get( ids[ i ] ) );
+		}
+
+		public double evaluate( final int id, final int[] localIds, final int numLocal, final PointUpdater updater, final double dx, final double dy )
+		{
+			// start from the current positions, the label map only relabels what differs from the last candidate
+			sync( lastLocal, numLastLocal );
+
+			final ArrayList< RealPoint > local = new ArrayList< RealPoint >( numLocal );
+
+			for ( int i = 0; i < numLocal; ++i )
+				local.add( locationMap.get( localIds[ i ] ) );
+
+			updater.updatePoints( locationMap.get( id ), local, dx, dy );
+
+			// the updater only moves the local points, the first of them is id itself
+			System.arraycopy( localIds, 0, lastLocal, 0, numLocal );
+			numLastLocal = numLocal;
+
+			labelMap.update();
+
+			final double errorA = t.normAreaError( incrementalArea.update( labelMap ) );
+			final double errorC = t.normLocalError( incrementalCirc.update( labelMap ) );
+
+			return t.computeLocalError( errorA, errorC );
+		}
+	}
+}
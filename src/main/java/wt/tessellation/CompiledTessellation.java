@@ -0,0 +1,394 @@
+package wt.tessellation;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Interval;
+import net.imglib2.RealPoint;
+
+/**
+ * A finished tessellation of all roi segments as one label raster, everything needed to quantify images without
+ * building the {@link TessellationThread}s. Every segment of every roi gets a global label, the raster holds the
+ * label of every pixel of the template (-1 outside of all rois), plus per label the roi, the segment id, the area,
+ * the generator location, the center of mass and the labels it touches.
+ *
+ * The file is memory-mapped when read, the raster stays in the mapped buffer and can be shared read-only by all threads.
+ */
+public class CompiledTessellation
+{
+	final public static int magic = 0x544c424c; // "TLBL"
+	final public static int version = 1;
+	final public static String fileName = "tessellation.labels";
+
+	final int width, height, numRois;
+
+	// per label
+	final int[] roi, id, area;
+	final double[] pointX, pointY, centerX, centerY;
+
+	// the labels adjacent to label l are adjacent[ adjacentStart[ l ] ] ... adjacent[ adjacentStart[ l + 1 ] - 1 ]
+	final int[] adjacentStart, adjacent;
+
+	// the label of every pixel, y * width + x
+	final IntBuffer labels;
+
+	protected CompiledTessellation(
+			final int width, final int height, final int numRois,
+			final int[] roi, final int[] id, final int[] area,
+			final double[] pointX, final double[] pointY, final double[] centerX, final double[] centerY,
+			final int[] adjacentStart, final int[] adjacent, final IntBuffer labels )
+	{
+		this.width = width;
+		this.height = height;
+		this.numRois = numRois;
+		this.roi = roi;
+		this.id = id;
+		this.area = area;
+		this.pointX = pointX;
+		this.pointY = pointY;
+		this.centerX = centerX;
+		this.centerY = centerY;
+		this.adjacentStart = adjacentStart;
+		this.adjacent = adjacent;
+		this.labels = labels;
+	}
+
+	public int width() { return width; }
+	public int height() { return height; }
+	public int numRois() { return numRois; }
+	public int numLabels() { return roi.length; }
+
+	public int roi( final int label ) { return roi[ label ]; }
+	public int id( final int label ) { return id[ label ]; }
+	public int area( final int label ) { return area[ label ]; }
+	public double pointX( final int label ) { return pointX[ label ]; }
+	public double pointY( final int label ) { return pointY[ label ]; }
+	public double centerX( final int label ) { return centerX[ label ]; }
+	public double centerY( final int label ) { return centerY[ label ]; }
+
+	public int numAdjacent( final int label ) { return adjacentStart[ label + 1 ] - adjacentStart[ label ]; }
+	public int adjacent( final int label, final int k ) { return adjacent[ adjacentStart[ label ] + k ]; }
+
+	/**
+	 * @return - the generator locations of all labels of a roi, the grid is indexed by label
+	 */
+	public PointGrid pointGrid( final int roi )
+	{
+		int n = 0, area = 0;
+
+		for ( int l = 0; l < numLabels(); ++l )
+			if ( this.roi[ l ] == roi )
+			{
+				++n;
+				area += this.area[ l ];
+			}
+
+		final int[] labels = new int[ n ];
+		n = 0;
+
+		for ( int l = 0; l < numLabels(); ++l )
+			if ( this.roi[ l ] == roi )
+				labels[ n++ ] = l;
+
+		return new PointGrid( labels, pointX, pointY, PointGrid.cellSize( area, n ) );
+	}
+
+	/**
+	 * @return - the label of the pixel, -1 if it is outside of all rois or the template
+	 */
+	public int label( final int x, final int y )
+	{
+		if ( x < 0 || y < 0 || x >= width || y >= height )
+			return -1;
+		else
+			return labels.get( y * width + x );
+	}
+
+	/**
+	 * @return - the label of the pixel y * width + x
+	 */
+	public int label( final int i ) { return labels.get( i ); }
+
+	/**
+	 * Collects the current labels of all segments, rois that overlap are labeled by the later roi. The labels
+	 * are ordered by roi.
+	 */
+	public static CompiledTessellation compile( final Interval interval, final List< TessellationThread > threads )
+	{
+		final int width = (int)interval.dimension( 0 );
+		final int height = (int)interval.dimension( 1 );
+
+		final ArrayList< ArrayList< Segment > > segments = new ArrayList< ArrayList< Segment > >();
+		int numLabels = 0;
+
+		for ( final TessellationThread t : threads )
+		{
+			segments.add( t.segmentList() );
+			numLabels += segments.get( segments.size() - 1 ).size();
+		}
+
+		final int[] roi = new int[ numLabels ];
+		final int[] id = new int[ numLabels ];
+		final int[] area = new int[ numLabels ];
+		final double[] pointX = new double[ numLabels ];
+		final double[] pointY = new double[ numLabels ];
+		final double[] centerX = new double[ numLabels ];
+		final double[] centerY = new double[ numLabels ];
+		final int[] adjacentStart = new int[ numLabels + 1 ];
+		final int[] labels = new int[ width * height ];
+
+		for ( int i = 0; i < labels.length; ++i )
+			labels[ i ] = -1;
+
+		// the global labels of the segment ids of every roi
+		final ArrayList< int[] > labelOfId = new ArrayList< int[] >();
+		final double[] c = new double[ 2 ];
+		int l = 0;
+
+		for ( int r = 0; r < threads.size(); ++r )
+		{
+			final TessellationThread t = threads.get( r );
+			final int[] lookup = new int[ t.labelMap().adjacency().size() ];
+
+			for ( final Segment s : segments.get( r ) )
+			{
+				final RealPoint p = t.locationMap().get( s.id() );
+				s.centerOfMass( c );
+
+				roi[ l ] = r;
+				id[ l ] = s.id();
+				area[ l ] = s.area();
+				pointX[ l ] = p.getDoublePosition( 0 );
+				pointY[ l ] = p.getDoublePosition( 1 );
+				centerX[ l ] = c[ 0 ];
+				centerY[ l ] = c[ 1 ];
+				lookup[ s.id() ] = l++;
+			}
+
+			labelOfId.add( lookup );
+
+			final LabelMap labelMap = t.labelMap();
+
+			for ( final int pixel : labelMap.pixels() )
+			{
+				final int x = Segment.x( pixel );
+				final int y = Segment.y( pixel );
+
+				if ( x < width && y < height )
+					labels[ y * width + x ] = lookup[ labelMap.label( x, y ) ];
+			}
+		}
+
+		// the adjacency graphs of the rois, as lists of labels
+		for ( l = 0; l < numLabels; ++l )
+			adjacentStart[ l + 1 ] = adjacentStart[ l ] + threads.get( roi[ l ] ).labelMap().adjacency().degree( id[ l ] );
+
+		final int[] adjacent = new int[ adjacentStart[ numLabels ] ];
+
+		for ( l = 0; l < numLabels; ++l )
+		{
+			final AdjacencyGraph graph = threads.get( roi[ l ] ).labelMap().adjacency();
+			final int[] lookup = labelOfId.get( roi[ l ] );
+
+			for ( int k = 0; k < graph.degree( id[ l ] ); ++k )
+				adjacent[ adjacentStart[ l ] + k ] = lookup[ graph.neighbor( id[ l ], k ) ];
+		}
+
+		return new CompiledTessellation(
+				width, height, threads.size(), roi, id, area, pointX, pointY, centerX, centerY,
+				adjacentStart, adjacent, IntBuffer.wrap( labels ) );
+	}
+
+	/**
+	 * @return - the file of the compiled tessellation in the tessellation directory
+	 */
+	public static File file( final File roiDirectory )
+	{
+		return new File( roiDirectory, fileName );
+	}
+
+	/**
+	 * @return - the file of a coarser level of the tessellation (see {@link TessellationHierarchy}) in the tessellation directory
+	 */
+	public static File file( final File roiDirectory, final int targetArea )
+	{
+		return new File( roiDirectory, "tessellation_" + targetArea + ".labels" );
+	}
+
+	/**
+	 * @return - true if the coarser level exists, is up to date and not older than the finest level
+	 */
+	public static boolean isUpToDate( final File roiDirectory, final int targetArea )
+	{
+		final File file = file( roiDirectory, targetArea );
+
+		return isUpToDate( roiDirectory ) && file.exists() && file.lastModified() >= file( roiDirectory ).lastModified();
+	}
+
+	/**
+	 * @return - true if the compiled tessellation exists and is not older than the rois, the points, the template
+	 * dimensions and the target area it was compiled from
+	 */
+	public static boolean isUpToDate( final File roiDirectory )
+	{
+		final File file = file( roiDirectory );
+
+		if ( !file.exists() )
+			return false;
+
+		final ArrayList< File > inputs = new ArrayList< File >();
+		inputs.addAll( TessellationTools.assembleSegments( roiDirectory ) );
+		inputs.addAll( TessellationTools.assemblePoints( roiDirectory ) );
+		inputs.add( new File( roiDirectory, "templatedims.txt" ) );
+		inputs.add( new File( roiDirectory, "targetarea.txt" ) );
+
+		for ( final File input : inputs )
+			if ( input.lastModified() > file.lastModified() )
+				return false;
+
+		return true;
+	}
+
+	public void write( final File file ) throws IOException
+	{
+		final File tmp = new File( file.getAbsolutePath() + ".tmp" );
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+
+		try
+		{
+			out.writeInt( magic );
+			out.writeInt( version );
+			out.writeInt( width );
+			out.writeInt( height );
+			out.writeInt( numRois );
+			out.writeInt( numLabels() );
+
+			for ( int l = 0; l < numLabels(); ++l )
+			{
+				out.writeInt( roi[ l ] );
+				out.writeInt( id[ l ] );
+				out.writeInt( area[ l ] );
+				out.writeDouble( pointX[ l ] );
+				out.writeDouble( pointY[ l ] );
+				out.writeDouble( centerX[ l ] );
+				out.writeDouble( centerY[ l ] );
+			}
+
+			for ( final int a : adjacentStart )
+				out.writeInt( a );
+
+			for ( final int a : adjacent )
+				out.writeInt( a );
+
+			for ( int i = 0; i < width * height; ++i )
+				out.writeInt( labels.get( i ) );
+
+			out.flush();
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	/**
+	 * Maps the file into memory, only the per label data is copied
+	 */
+	public static CompiledTessellation read( final File file )
+	{
+		try
+		{
+			final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			final ByteBuffer buffer;
+
+			try
+			{
+				buffer = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+			}
+			finally
+			{
+				// the mapping stays valid
+				raf.close();
+			}
+
+			if ( buffer.getInt() != magic )
+				throw new RuntimeException( "'" + file.getAbsolutePath() + "' is no compiled tessellation." );
+
+			final int v = buffer.getInt();
+
+			if ( v != version )
+				throw new RuntimeException( "Unsupported compiled tessellation version " + v + " in '" + file.getAbsolutePath() + "'." );
+
+			final int width = buffer.getInt();
+			final int height = buffer.getInt();
+			final int numRois = buffer.getInt();
+			final int numLabels = buffer.getInt();
+
+			final int[] roi = new int[ numLabels ];
+			final int[] id = new int[ numLabels ];
+			final int[] area = new int[ numLabels ];
+			final double[] pointX = new double[ numLabels ];
+			final double[] pointY = new double[ numLabels ];
+			final double[] centerX = new double[ numLabels ];
+			final double[] centerY = new double[ numLabels ];
+
+			for ( int l = 0; l < numLabels; ++l )
+			{
+				roi[ l ] = buffer.getInt();
+				id[ l ] = buffer.getInt();
+				area[ l ] = buffer.getInt();
+				pointX[ l ] = buffer.getDouble();
+				pointY[ l ] = buffer.getDouble();
+				centerX[ l ] = buffer.getDouble();
+				centerY[ l ] = buffer.getDouble();
+			}
+
+			final int[] adjacentStart = new int[ numLabels + 1 ];
+
+			for ( int l = 0; l <= numLabels; ++l )
+				adjacentStart[ l ] = buffer.getInt();
+
+			final int[] adjacent = new int[ adjacentStart[ numLabels ] ];
+
+			for ( int k = 0; k < adjacent.length; ++k )
+				adjacent[ k ] = buffer.getInt();
+
+			if ( buffer.remaining() != 4L * width * height )
+				throw new RuntimeException( "'" + file.getAbsolutePath() + "' is truncated." );
+
+			final IntBuffer labels = buffer.slice().asIntBuffer();
+
+			return new CompiledTessellation(
+					width, height, numRois, roi, id, area, pointX, pointY, centerX, centerY,
+					adjacentStart, adjacent, labels );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to read compiled tessellation '" + file.getAbsolutePath() + "': " + e );
+		}
+	}
+}
@@ -0,0 +1,120 @@
+package wt.tessellation;
+
+/**
+ * Decides when a segment is done: if its error did not improve by more than a relative tolerance within
+ * the last plateauWindow iterations, if it did not improve at all for maxNonImproving iterations, if it ran
+ * maxIterations iterations or if the wall clock budget for all segments is used up. A value &lt;= 0 disables
+ * a criterion.
+ *
+ * The wall clock starts when the criteria are created, so create them when the job starts and check
+ * {@link #outOfTime()} in the phases before the iterations, e.g. the pyramid and the Lloyd iterations.
+ */
+public class ConvergenceCriteria
+{
+	final int plateauWindow;
+	final double plateauTolerance;
+	final int maxNonImproving;
+	final int maxIterations;
+	final long wallClockMillis;
+
+	final long startTime;
+
+	// per segment, only accessed by the thread that runs the segment
+	final double[][] window;
+	final double[] bestError;
+	final int[] bestIteration, numSeen, lastIteration;
+	final String[] reason;
+
+	public ConvergenceCriteria( final int numSegments, final int plateauWindow, final double plateauTolerance, final int maxNonImproving, final int maxIterations, final long wallClockMillis )
+	{
+		this.plateauWindow = plateauWindow;
+		this.plateauTolerance = plateauTolerance;
+		this.maxNonImproving = maxNonImproving;
+		this.maxIterations = maxIterations;
+		this.wallClockMillis = wallClockMillis;
+
+		this.startTime = System.currentTimeMillis();
+
+		this.window = new double[ numSegments ][ Math.max( 1, plateauWindow ) ];
+		this.bestError = new double[ numSegments ];
+		this.bestIteration = new int[ numSegments ];
+		this.numSeen = new int[ numSegments ];
+		this.lastIteration = new int[ numSegments ];
+		this.reason = new String[ numSegments ];
+
+		for ( int i = 0; i < numSegments; ++i )
+		{
+			bestError[ i ] = Double.MAX_VALUE;
+			lastIteration[ i ] = -1;
+		}
+	}
+
+	/**
+	 * Only stops after the iteration budget
+	 */
+	public static ConvergenceCriteria iterations( final int numSegments, final int maxIterations )
+	{
+		return new ConvergenceCriteria( numSegments, 0, 0, 0, maxIterations, 0 );
+	}
+
+	/**
+	 * @return - true if the wall clock budget is used up, can be called from any thread
+	 */
+	public boolean outOfTime()
+	{
+		return wallClockMillis > 0 && System.currentTimeMillis() - startTime >= wallClockMillis;
+	}
+
+	/**
+	 * @return - why the segment converged, null if it did not
+	 */
+	public String reason( final int id ) { return reason[ id ]; }
+
+	/**
+	 * Call after every iteration of a segment and before its first one, from the thread that runs it. Calling it
+	 * again for the same iteration only checks the budgets, the error is counted once.
+	 *
+	 * @return - true if the segment should not run any more iterations
+	 */
+	public boolean converged( final TessellationThread t )
+	{
+		final int id = t.id();
+		final double error = t.error();
+
+		if ( reason[ id ] != null )
+			return true;
+
+		final boolean seen = t.iteration() == lastIteration[ id ];
+		lastIteration[ id ] = t.iteration();
+
+		if ( error < bestError[ id ] )
+		{
+			bestError[ id ] = error;
+			bestIteration[ id ] = t.iteration();
+		}
+
+		if ( plateauWindow > 0 && !seen )
+		{
+			// the error plateauWindow iterations ago is about to be overwritten
+			final int slot = numSeen[ id ] % plateauWindow;
+			final double old = window[ id ][ slot ];
+
+			window[ id ][ slot ] = error;
+			++numSeen[ id ];
+
+			if ( numSeen[ id ] > plateauWindow && ( old - error ) <= plateauTolerance * Math.abs( old ) )
+				reason[ id ] = "error improved by less than " + ( plateauTolerance * 100 ) + "% within " + plateauWindow + " iterations";
+		}
+
+		if ( maxNonImproving > 0 && t.iteration() - bestIteration[ id ] >= maxNonImproving )
+			reason[ id ] = "no improvement for " + maxNonImproving + " iterations";
+
+		if ( maxIterations > 0 && t.iteration() >= maxIterations )
+			reason[ id ] = "reached " + maxIterations + " iterations";
+
+		if ( outOfTime() )
+			reason[ id ] = "ran out of time after " + ( wallClockMillis / 1000 ) + " seconds";
+
+		return reason[ id ] != null;
+	}
+}
@@ -0,0 +1,185 @@
+package wt.tessellation;
+
+/**
+ * Labels every pixel of a box with the id of its closest site in linear time, using a separable
+ * exact Euclidean distance transform that carries the closest site along (Felzenszwalb &amp; Huttenlocher):
+ * first the closest site within every column, then the lower envelope of the column parabolas along every row.
+ *
+ * Sites have integer pixel coordinates, ties go to the smaller id. Sites do not need to be inside the box.
+ */
+public class FeatureTransform
+{
+	/**
+	 * @param minX, minY, width, height - the box to label
+	 * @param sx, sy, sid - coordinates and ids of the n sites
+	 * @param labels - receives the id of the closest site for every pixel of the box, ( y - minY ) * width + x - minX
+	 */
+	public static void label(
+			final int minX, final int minY, final int width, final int height,
+			final int[] sx, final int[] sy, final int[] sid, final int n,
+			final int[] labels )
+	{
+		if ( n == 0 )
+			throw new RuntimeException( "Cannot label without sites." );
+
+		// the region has to contain all sites
+		int x0 = minX, y0 = minY, x1 = minX + width - 1, y1 = minY + height - 1;
+
+		for ( int i = 0; i < n; ++i )
+		{
+			x0 = Math.min( x0, sx[ i ] );
+			y0 = Math.min( y0, sy[ i ] );
+			x1 = Math.max( x1, sx[ i ] );
+			y1 = Math.max( y1, sy[ i ] );
+		}
+
+		final int w = x1 - x0 + 1;
+		final int h = y1 - y0 + 1;
+
+		// closest site within each column and its squared distance, row by row so all passes run along memory
+		final int[] site = new int[ w * h ];
+		final double[] g = new double[ w * h ];
+
+		for ( int i = 0; i < site.length; ++i )
+			site[ i ] = -1;
+
+		// site index per pixel, the smaller id wins
+		for ( int i = 0; i < n; ++i )
+		{
+			final int j = ( sy[ i ] - y0 ) * w + sx[ i ] - x0;
+
+			if ( site[ j ] < 0 || sid[ i ] < sid[ site[ j ] ] )
+				site[ j ] = i;
+		}
+
+		columns( site, g, w, h, sy, sid, y0 );
+
+		// lower envelope per row
+		final int[] v = new int[ w ];
+		final double[] z = new double[ w + 1 ];
+
+		for ( int y = minY - y0; y < minY - y0 + height; ++y )
+			row( site, g, y * w, w, v, z, minX - x0, width, sid, labels, ( y - minY + y0 ) * width );
+	}
+
+	/**
+	 * Propagates the closest site along all columns, down and up
+	 */
+	protected static void columns( final int[] site, final double[] g, final int w, final int h, final int[] sy, final int[] sid, final int y0 )
+	{
+		// the closest site above (or at) the current row for every column
+		final int[] last = new int[ w ];
+
+		for ( int x = 0; x < w; ++x )
+			last[ x ] = -1;
+
+		for ( int y = 0; y < h; ++y )
+			for ( int x = 0, j = y * w; x < w; ++x, ++j )
+			{
+				if ( site[ j ] >= 0 )
+					last[ x ] = site[ j ];
+				else
+					site[ j ] = last[ x ];
+			}
+
+		// now the closest site below (or at) the current row
+		for ( int x = 0; x < w; ++x )
+			last[ x ] = -1;
+
+		for ( int y = h - 1; y >= 0; --y )
+			for ( int x = 0, j = y * w; x < w; ++x, ++j )
+			{
+				final int s = site[ j ];
+
+				if ( s >= 0 && sy[ s ] - y0 == y )
+					last[ x ] = s;
+				else if ( last[ x ] >= 0 )
+				{
+					final int b = last[ x ];
+					final int dBelow = sy[ b ] - y0 - y;
+
+					if ( s < 0 )
+						site[ j ] = b;
+					else
+					{
+						final int dAbove = y - ( sy[ s ] - y0 );
+
+						if ( dBelow < dAbove || ( dBelow == dAbove && sid[ b ] < sid[ s ] ) )
+							site[ j ] = b;
+					}
+				}
+
+				if ( site[ j ] < 0 )
+					g[ j ] = Double.MAX_VALUE;
+				else
+				{
+					final double d = sy[ site[ j ] ] - y0 - y;
+					g[ j ] = d * d;
+				}
+			}
+	}
+
+	/**
+	 * Lower envelope of the parabolas g( q ) + ( x - q )^2 of all columns q of one row, evaluated for x in [ bx, bx + width )
+	 */
+	protected static void row(
+			final int[] site, final double[] g, final int offset, final int w,
+			final int[] v, final double[] z, final int bx, final int width,
+			final int[] sid, final int[] labels, final int labelOffset )
+	{
+		int k = -1;
+
+		for ( int q = 0; q < w; ++q )
+		{
+			final double fq = g[ offset + q ];
+
+			if ( fq == Double.MAX_VALUE )
+				continue;
+
+			double s = -Double.MAX_VALUE;
+
+			while ( k >= 0 )
+			{
+				final int p = v[ k ];
+				s = ( ( fq + (double)q * q ) - ( g[ offset + p ] + (double)p * p ) ) / ( 2.0 * ( q - p ) );
+
+				// keep parabolas that only touch the envelope in one point, they can win a tie there
+				if ( s < z[ k ] )
+					--k;
+				else
+					break;
+			}
+
+			++k;
+			v[ k ] = q;
+			z[ k ] = k == 0 ? -Double.MAX_VALUE : s;
+			z[ k + 1 ] = Double.MAX_VALUE;
+		}
+
+		k = 0;
+
+		for ( int x = bx; x < bx + width; ++x )
+		{
+			while ( z[ k + 1 ] < x )
+				++k;
+
+			// all parabolas that meet exactly at x are equally close
+			int best = site[ offset + v[ k ] ];
+			double bestDist = g[ offset + v[ k ] ] + (double)( x - v[ k ] ) * ( x - v[ k ] );
+
+			for ( int j = k + 1; z[ j ] == x; ++j )
+			{
+				final int s = site[ offset + v[ j ] ];
+				final double d = g[ offset + v[ j ] ] + (double)( x - v[ j ] ) * ( x - v[ j ] );
+
+				if ( d < bestDist || ( d == bestDist && sid[ s ] < sid[ best ] ) )
+				{
+					best = s;
+					bestDist = d;
+				}
+			}
+
+			labels[ labelOffset + x - bx ] = sid[ best ];
+		}
+	}
+}
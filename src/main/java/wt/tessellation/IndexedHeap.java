@@ -0,0 +1,103 @@
+package wt.tessellation;
+
+/**
+ * Binary min-heap over the elements 0...n-1 with a key each, where the key of any element can be changed
+ * in O(log n). Elements with equal keys are ordered by their index, so the top is always the element with
+ * the smallest key and the smallest index among those.
+ */
+public class IndexedHeap
+{
+	final double[] key;
+
+	// heap of elements and the heap position of every element
+	final int[] heap, pos;
+
+	public IndexedHeap( final double[] keys )
+	{
+		final int n = keys.length;
+
+		this.key = keys.clone();
+		this.heap = new int[ n ];
+		this.pos = new int[ n ];
+
+		for ( int i = 0; i < n; ++i )
+		{
+			heap[ i ] = i;
+			pos[ i ] = i;
+		}
+
+		for ( int i = n / 2 - 1; i >= 0; --i )
+			down( i );
+	}
+
+	public int size() { return heap.length; }
+	public double key( final int element ) { return key[ element ]; }
+
+	/**
+	 * @return - the element with the smallest key
+	 */
+	public int top() { return heap[ 0 ]; }
+
+	public void set( final int element, final double k )
+	{
+		final double old = key[ element ];
+		key[ element ] = k;
+
+		if ( k < old )
+			up( pos[ element ] );
+		else if ( k > old )
+			down( pos[ element ] );
+	}
+
+	protected boolean less( final int a, final int b )
+	{
+		return key[ a ] < key[ b ] || ( key[ a ] == key[ b ] && a < b );
+	}
+
+	protected void up( int i )
+	{
+		final int e = heap[ i ];
+
+		while ( i > 0 )
+		{
+			final int parent = ( i - 1 ) / 2;
+
+			if ( !less( e, heap[ parent ] ) )
+				break;
+
+			heap[ i ] = heap[ parent ];
+			pos[ heap[ i ] ] = i;
+			i = parent;
+		}
+
+		heap[ i ] = e;
+		pos[ e ] = i;
+	}
+
+	protected void down( int i )
+	{
+		final int n = heap.length;
+		final int e = heap[ i ];
+
+		while ( true )
+		{
+			int child = 2 * i + 1;
+
+			if ( child >= n )
+				break;
+
+			if ( child + 1 < n && less( heap[ child + 1 ], heap[ child ] ) )
+				++child;
+
+			if ( !less( heap[ child ], e ) )
+				break;
+
+			heap[ i ] = heap[ child ];
+			pos[ heap[ i ] ] = i;
+			i = child;
+		}
+
+		heap[ i ] = e;
+		pos[ e ] = i;
+	}
+}
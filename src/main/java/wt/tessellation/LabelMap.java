@@ -0,0 +1,829 @@
+package wt.tessellation;
+
+import java.util.HashMap;
+
+import net.imglib2.RealPoint;
+
+/**
+ * Persistent segment-id raster of one ROI mask. Once labeled, only the cells
+ * that can change are relabeled after generators moved: the old cells of the
+ * moved generators, the cells their new positions fall into, every neighbor
+ * of a cell that lost or gained pixels and every cell close enough to a new
+ * position to lose pixels to it, also across gaps of the mask.
+ *
+ * Nearest generators are looked up in a uniform grid that is updated per moved
+ * generator, so no search structure has to be rebuilt while testing moves.
+ *
+ * With {@link Search.LabelEngine#FEATURE_TRANSFORM} the generators are snapped to the
+ * closest pixel, full relabels run in linear time with a {@link FeatureTransform} and
+ * moves smaller than a pixel do not change anything.
+ */
+public class LabelMap
+{
+	final int[][] mask;
+
+	// packed coordinates ( see Segment.pack ) of every mask pixel
+	final int[] pixel;
+
+	// bounding box of the mask
+	final int minX, minY, width, height;
+
+	// mask index for every pixel of the bounding box, -1 if outside of the mask
+	final int[] index;
+
+	// segment id for every mask pixel
+	final int[] label;
+
+	// number of border pixels by segment id, updated with every changed label
+	final int[] border;
+
+	// by segment id the squared distance from the generator to its farthest pixel, and an upper bound of all of them
+	final double[] sqRadius;
+	double maxSqRadius;
+
+	// which segments touch, updated with every changed label
+	final AdjacencyGraph adjacency;
+
+	// all segments and their generators by id
+	final int[] ids;
+	final Segment[] segments;
+	final RealPoint[] points;
+
+	// generator positions the current labels were computed for
+	final double[] px, py;
+	boolean labeled;
+	Search.LabelEngine labelEngine = Search.LabelEngine.NEAREST_NEIGHBOR;
+
+	// uniform grid of the generators, linked lists per grid cell
+	final double cellSize;
+	final int gridW, gridH;
+	final int[] gridHead, gridNext, gridCell;
+
+	// temporary structures for relabeling
+	final int[] moved, queue, visited, seed, dirty, dirtyList;
+	int[] changed;
+	int numChanged, numDirty, stamp;
+
+	public LabelMap( final int[][] mask, final Iterable< Segment > segmentList, final HashMap< Integer, RealPoint > locationMap )
+	{
+		this.mask = mask;
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+		for ( final int[] ml : mask )
+		{
+			minX = Math.min( minX, ml[ 0 ] );
+			minY = Math.min( minY, ml[ 1 ] );
+			maxX = Math.max( maxX, ml[ 0 ] );
+			maxY = Math.max( maxY, ml[ 1 ] );
+		}
+
+		if ( mask.length == 0 )
+			minX = minY = maxX = maxY = 0;
+
+		if ( minX < 0 || minY < 0 || maxX > 0xffff || maxY > 0xffff )
+			throw new RuntimeException( "Mask coordinates out of range for packed pixels: " + minX + "," + minY + " - " + maxX + "," + maxY );
+
+		this.minX = minX;
+		this.minY = minY;
+		this.width = maxX - minX + 1;
+		this.height = maxY - minY + 1;
+
+		this.index = new int[ width * height ];
+
+		for ( int i = 0; i < index.length; ++i )
+			index[ i ] = -1;
+
+		this.pixel = new int[ mask.length ];
+
+		for ( int i = 0; i < mask.length; ++i )
+		{
+			pixel[ i ] = Segment.pack( mask[ i ][ 0 ], mask[ i ][ 1 ] );
+			index[ ( mask[ i ][ 1 ] - minY ) * width + mask[ i ][ 0 ] - minX ] = i;
+		}
+
+		this.label = new int[ mask.length ];
+
+		// segments by id
+		int numSegments = 0, maxId = -1;
+
+		for ( final Segment s : segmentList )
+		{
+			++numSegments;
+			maxId = Math.max( maxId, s.id() );
+		}
+
+		this.ids = new int[ numSegments ];
+		this.segments = new Segment[ maxId + 1 ];
+		this.points = new RealPoint[ maxId + 1 ];
+
+		int j = 0;
+		for ( final Segment s : segmentList )
+		{
+			ids[ j++ ] = s.id();
+			segments[ s.id() ] = s;
+			points[ s.id() ] = locationMap.get( s.id() );
+		}
+
+		this.border = new int[ maxId + 1 ];
+		this.sqRadius = new double[ maxId + 1 ];
+		this.maxSqRadius = 0;
+		this.adjacency = new AdjacencyGraph( maxId );
+		this.px = new double[ maxId + 1 ];
+		this.py = new double[ maxId + 1 ];
+		this.labeled = false;
+
+		// on average one generator per grid cell
+		this.cellSize = Math.max( 1.0, Math.sqrt( (double)mask.length / Math.max( 1, numSegments ) ) );
+		this.gridW = (int)( width / cellSize ) + 1;
+		this.gridH = (int)( height / cellSize ) + 1;
+		this.gridHead = new int[ gridW * gridH ];
+		this.gridNext = new int[ maxId + 1 ];
+		this.gridCell = new int[ maxId + 1 ];
+
+		this.moved = new int[ numSegments ];
+		this.queue = new int[ maxId + 1 ];
+		this.visited = new int[ maxId + 1 ];
+		this.seed = new int[ maxId + 1 ];
+		this.dirty = new int[ maxId + 1 ];
+		this.dirtyList = new int[ maxId + 1 ];
+		this.changed = new int[ 1024 ];
+		this.stamp = 0;
+	}
+
+	/**
+	 * A copy with its own labels and segments that follows the positions in another locationMap,
+	 * e.g. to test moves in parallel. The mask is shared.
+	 */
+	protected LabelMap( final LabelMap l, final HashMap< Integer, RealPoint > locationMap )
+	{
+		this.mask = l.mask;
+		this.pixel = l.pixel;
+		this.minX = l.minX;
+		this.minY = l.minY;
+		this.width = l.width;
+		this.height = l.height;
+		this.index = l.index;
+		this.label = l.label.clone();
+		this.border = l.border.clone();
+		this.sqRadius = l.sqRadius.clone();
+		this.maxSqRadius = l.maxSqRadius;
+		this.adjacency = l.adjacency.copy();
+
+		this.ids = l.ids;
+		this.segments = new Segment[ l.segments.length ];
+		this.points = new RealPoint[ l.points.length ];
+
+		for ( final int id : ids )
+		{
+			segments[ id ] = l.segments[ id ].copy();
+			points[ id ] = locationMap.get( id );
+		}
+
+		this.px = l.px.clone();
+		this.py = l.py.clone();
+		this.labeled = l.labeled;
+		this.labelEngine = l.labelEngine;
+
+		this.cellSize = l.cellSize;
+		this.gridW = l.gridW;
+		this.gridH = l.gridH;
+		this.gridHead = l.gridHead.clone();
+		this.gridNext = l.gridNext.clone();
+		this.gridCell = l.gridCell.clone();
+
+		this.moved = new int[ l.moved.length ];
+		this.queue = new int[ l.queue.length ];
+		this.visited = new int[ l.visited.length ];
+		this.seed = new int[ l.seed.length ];
+		this.dirty = new int[ l.dirty.length ];
+		this.dirtyList = new int[ l.dirtyList.length ];
+		this.changed = new int[ 1024 ];
+		this.stamp = 0;
+	}
+
+	public LabelMap copy( final HashMap< Integer, RealPoint > locationMap ) { return new LabelMap( this, locationMap ); }
+
+	public int[][] mask() { return mask; }
+	public Search.LabelEngine labelEngine() { return labelEngine; }
+	public AdjacencyGraph adjacency() { return adjacency; }
+
+	/**
+	 * Selects how pixels are labeled, the next update relabels everything
+	 */
+	public void setLabelEngine( final Search.LabelEngine labelEngine )
+	{
+		this.labelEngine = labelEngine;
+		this.labeled = false;
+	}
+	public int numPixels() { return pixel.length; }
+
+	/**
+	 * @return - packed coordinates ( see Segment.pack ) of every mask pixel, do not modify
+	 */
+	public int[] pixels() { return pixel; }
+	public int numChanged() { return numChanged; }
+	public Segment segment( final int id ) { return segments[ id ]; }
+
+	/**
+	 * @return - the number of segments that lost or gained pixels during the last update
+	 */
+	public int numTouched() { return numDirty; }
+	public int touched( final int i ) { return dirtyList[ i ]; }
+
+	/**
+	 * @return - the id of the segment the pixel belongs to, -1 if it is not part of the mask
+	 */
+	public int label( final int x, final int y )
+	{
+		final int i = maskIndex( x, y );
+
+		if ( i < 0 )
+			return -1;
+		else
+			return label[ i ];
+	}
+
+	/**
+	 * Copies the segment id of every mask pixel as unsigned 16 bit values
+	 */
+	public void labels( final short[] target )
+	{
+		for ( int i = 0; i < label.length; ++i )
+		{
+			if ( label[ i ] > 0xffff )
+				throw new RuntimeException( "Segment id " + label[ i ] + " does not fit into 16 bit." );
+
+			target[ i ] = (short)label[ i ];
+		}
+	}
+
+	/**
+	 * Brings the labels up to date with the current generator positions. Only the
+	 * neighborhood of generators that moved since the last call is relabeled.
+	 */
+	public void update()
+	{
+		if ( !labeled )
+		{
+			updateAll();
+			return;
+		}
+
+		final int numMoved = moveGenerators();
+
+		if ( numMoved == 0 )
+		{
+			numChanged = 0;
+			numDirty = 0;
+			return;
+		}
+
+		// most cells are affected, a single pass over the mask is cheaper
+		if ( numMoved * 2 > ids.length )
+		{
+			relabelAll();
+			return;
+		}
+
+		nextStamp();
+
+		numChanged = 0;
+		numDirty = 0;
+
+		int head = 0, tail = 0;
+
+		for ( int i = 0; i < numMoved; ++i )
+		{
+			final int id = moved[ i ];
+
+			// the cell it left and the cell it moved into
+			tail = enqueue( id, tail, true );
+			tail = enqueue( closestLabel( px[ id ], py[ id ] ), tail, true );
+
+			// the cells that can lose pixels to it, which do not need to touch the other two
+			tail = enqueueReachable( id, tail );
+		}
+
+		// a cell that changed can pass changes on to all its neighbors
+		while ( head < tail )
+		{
+			final int id = queue[ head++ ];
+
+			if ( relabelCell( id ) || seed[ id ] == stamp )
+				tail = enqueueNeighbors( id, tail );
+		}
+
+		applyChanges( numMoved );
+	}
+
+	/**
+	 * Recomputes the label of every mask pixel.
+	 */
+	public void updateAll()
+	{
+		for ( int i = 0; i < gridHead.length; ++i )
+			gridHead[ i ] = -1;
+
+		for ( final int id : ids )
+		{
+			px[ id ] = position( id, 0 );
+			py[ id ] = position( id, 1 );
+			addToGrid( id );
+		}
+
+		relabelAll();
+	}
+
+	protected void relabelAll()
+	{
+		for ( final int id : ids )
+			segments[ id ].clearPixels();
+
+		if ( labelEngine == Search.LabelEngine.FEATURE_TRANSFORM && ids.length > 0 )
+		{
+			final int[] sx = new int[ ids.length ];
+			final int[] sy = new int[ ids.length ];
+
+			for ( int j = 0; j < ids.length; ++j )
+			{
+				sx[ j ] = (int)px[ ids[ j ] ];
+				sy[ j ] = (int)py[ ids[ j ] ];
+			}
+
+			final int[] box = new int[ width * height ];
+			FeatureTransform.label( minX, minY, width, height, sx, sy, ids, ids.length, box );
+
+			for ( int i = 0; i < pixel.length; ++i )
+			{
+				final int l = box[ ( Segment.y( pixel[ i ] ) - minY ) * width + Segment.x( pixel[ i ] ) - minX ];
+				label[ i ] = l;
+				segments[ l ].addPixel( pixel[ i ] );
+			}
+		}
+		else
+		{
+			for ( int i = 0; i < pixel.length; ++i )
+			{
+				final int l = nearest( Segment.x( pixel[ i ] ), Segment.y( pixel[ i ] ) );
+				label[ i ] = l;
+				segments[ l ].addPixel( pixel[ i ] );
+			}
+		}
+
+		for ( final int id : ids )
+			border[ id ] = 0;
+
+		for ( int i = 0; i < pixel.length; ++i )
+			if ( isBorder( Segment.x( pixel[ i ] ), Segment.y( pixel[ i ] ), label[ i ] ) )
+				++border[ label[ i ] ];
+
+		// every pair of pixels once, with the right and the lower neighbor
+		adjacency.clear();
+
+		for ( int i = 0; i < pixel.length; ++i )
+		{
+			final int x = Segment.x( pixel[ i ] );
+			final int y = Segment.y( pixel[ i ] );
+
+			countShared( x + 1, y, label[ i ], 1 );
+			countShared( x, y + 1, label[ i ], 1 );
+		}
+
+		maxSqRadius = 0;
+
+		for ( int j = 0; j < ids.length; ++j )
+		{
+			segments[ ids[ j ] ].setArea( segments[ ids[ j ] ].numPixels() );
+			segments[ ids[ j ] ].setBorderPixels( border[ ids[ j ] ] );
+			dirtyList[ j ] = ids[ j ];
+			updateRadius( ids[ j ] );
+		}
+
+		numDirty = ids.length;
+		numChanged = mask.length;
+		labeled = true;
+	}
+
+	/**
+	 * Updates the stored positions and the grid for all generators that moved
+	 *
+	 * @return - the number of moved generators
+	 */
+	protected int moveGenerators()
+	{
+		int numMoved = 0;
+
+		for ( final int id : ids )
+		{
+			final double x = position( id, 0 );
+			final double y = position( id, 1 );
+
+			if ( x != px[ id ] || y != py[ id ] )
+			{
+				removeFromGrid( id );
+				px[ id ] = x;
+				py[ id ] = y;
+				addToGrid( id );
+
+				moved[ numMoved++ ] = id;
+			}
+		}
+
+		return numMoved;
+	}
+
+	/**
+	 * @return - the position of a generator as it is used for labeling
+	 */
+	protected double position( final int id, final int d )
+	{
+		if ( labelEngine == Search.LabelEngine.FEATURE_TRANSFORM )
+			return Math.round( points[ id ].getDoublePosition( d ) );
+		else
+			return points[ id ].getDoublePosition( d );
+	}
+
+	/**
+	 * Relabels all pixels the segment had before this update
+	 *
+	 * @return - true if any of them changed
+	 */
+	protected boolean relabelCell( final int id )
+	{
+		final int[] pixels = segments[ id ].pixels();
+		final int n = segments[ id ].numPixels();
+
+		boolean anyChange = false;
+
+		for ( int k = 0; k < n; ++k )
+		{
+			final int x = Segment.x( pixels[ k ] );
+			final int y = Segment.y( pixels[ k ] );
+			final int i = index[ ( y - minY ) * width + x - minX ];
+			final int l = nearest( x, y );
+
+			if ( l != label[ i ] )
+			{
+				addChange( i );
+				markDirty( label[ i ] );
+				markDirty( l );
+				setLabel( i, x, y, l );
+
+				anyChange = true;
+			}
+		}
+
+		return anyChange;
+	}
+
+	protected int enqueueNeighbors( final int id, int tail )
+	{
+		final int[] pixels = segments[ id ].pixels();
+		final int n = segments[ id ].numPixels();
+
+		for ( int k = 0; k < n; ++k )
+		{
+			final int x = Segment.x( pixels[ k ] );
+			final int y = Segment.y( pixels[ k ] );
+
+			tail = enqueue( label( x - 1, y ), tail, false );
+			tail = enqueue( label( x + 1, y ), tail, false );
+			tail = enqueue( label( x, y - 1 ), tail, false );
+			tail = enqueue( label( x, y + 1 ), tail, false );
+		}
+
+		return tail;
+	}
+
+	/**
+	 * Enqueues every cell that can lose pixels to the moved generator. A pixel q of cell c only goes to the generator
+	 * m if |q - m| &lt;= |q - c| &lt;= radius( c ), so |c - m| &lt;= 2 radius( c ). The cell m left is relabeled anyways.
+	 */
+	protected int enqueueReachable( final int id, int tail )
+	{
+		final double x = px[ id ];
+		final double y = py[ id ];
+
+		// the grid clamps positions outside of the bounding box, which never increases their distance in cells
+		final int r = (int)Math.ceil( 2 * Math.sqrt( maxSqRadius ) / cellSize ) + 1;
+		final int cx = gridX( x );
+		final int cy = gridY( y );
+
+		for ( int gy = Math.max( 0, cy - r ); gy <= Math.min( gridH - 1, cy + r ); ++gy )
+			for ( int gx = Math.max( 0, cx - r ); gx <= Math.min( gridW - 1, cx + r ); ++gx )
+				for ( int c = gridHead[ gy * gridW + gx ]; c >= 0; c = gridNext[ c ] )
+				{
+					final double dx = px[ c ] - x;
+					final double dy = py[ c ] - y;
+
+					if ( dx * dx + dy * dy <= 4 * sqRadius[ c ] )
+						tail = enqueue( c, tail, false );
+				}
+
+		return tail;
+	}
+
+	/**
+	 * Recomputes the squared distance from the generator of the segment to its farthest pixel
+	 */
+	protected void updateRadius( final int id )
+	{
+		final int[] pixels = segments[ id ].pixels();
+		final int n = segments[ id ].numPixels();
+
+		double max = 0;
+
+		for ( int k = 0; k < n; ++k )
+		{
+			final double dx = Segment.x( pixels[ k ] ) - px[ id ];
+			final double dy = Segment.y( pixels[ k ] ) - py[ id ];
+
+			max = Math.max( max, dx * dx + dy * dy );
+		}
+
+		sqRadius[ id ] = max;
+
+		// only grows between full relabels, it just has to be an upper bound
+		maxSqRadius = Math.max( maxSqRadius, max );
+	}
+
+	protected int enqueue( final int id, final int tail, final boolean isSeed )
+	{
+		if ( id < 0 )
+			return tail;
+
+		if ( isSeed )
+			seed[ id ] = stamp;
+
+		if ( visited[ id ] == stamp )
+			return tail;
+
+		visited[ id ] = stamp;
+		queue[ tail ] = id;
+
+		return tail + 1;
+	}
+
+	/**
+	 * Updates pixel lists, areas and radii of all segments that lost or gained pixels and the radii of the first
+	 * numMoved moved generators
+	 */
+	protected void applyChanges( final int numMoved )
+	{
+		for ( int d = 0; d < numDirty; ++d )
+		{
+			final Segment s = segments[ dirtyList[ d ] ];
+			final int[] pixels = s.pixels();
+			final int n = s.numPixels();
+
+			int j = 0;
+
+			for ( int k = 0; k < n; ++k )
+			{
+				final int p = pixels[ k ];
+
+				if ( label[ index[ ( Segment.y( p ) - minY ) * width + Segment.x( p ) - minX ] ] == s.id() )
+					pixels[ j++ ] = p;
+			}
+
+			s.setNumPixels( j );
+		}
+
+		for ( int c = 0; c < numChanged; ++c )
+			segments[ label[ changed[ c ] ] ].addPixel( pixel[ changed[ c ] ] );
+
+		for ( int d = 0; d < numDirty; ++d )
+		{
+			final int id = dirtyList[ d ];
+
+			segments[ id ].setArea( segments[ id ].numPixels() );
+			segments[ id ].setBorderPixels( border[ id ] );
+			updateRadius( id );
+		}
+
+		for ( int i = 0; i < numMoved; ++i )
+			if ( dirty[ moved[ i ] ] != stamp )
+				updateRadius( moved[ i ] );
+	}
+
+	/**
+	 * Changes the label of a mask pixel, which can only change the border state
+	 * of the pixel itself and its 4-neighbors and the pixel pairs it is part of
+	 */
+	protected void setLabel( final int i, final int x, final int y, final int l )
+	{
+		final int old = label[ i ];
+
+		countBorder( x, y, -1 );
+		countBorder( x - 1, y, -1 );
+		countBorder( x + 1, y, -1 );
+		countBorder( x, y - 1, -1 );
+		countBorder( x, y + 1, -1 );
+
+		countShared( x - 1, y, old, -1 );
+		countShared( x + 1, y, old, -1 );
+		countShared( x, y - 1, old, -1 );
+		countShared( x, y + 1, old, -1 );
+
+		label[ i ] = l;
+
+		countBorder( x, y, 1 );
+		countBorder( x - 1, y, 1 );
+		countBorder( x + 1, y, 1 );
+		countBorder( x, y - 1, 1 );
+		countBorder( x, y + 1, 1 );
+
+		countShared( x - 1, y, l, 1 );
+		countShared( x + 1, y, l, 1 );
+		countShared( x, y - 1, l, 1 );
+		countShared( x, y + 1, l, 1 );
+	}
+
+	/**
+	 * Counts the pixel pair of a pixel of segment l and the pixel at x, y if they belong to different segments
+	 */
+	protected void countShared( final int x, final int y, final int l, final int inc )
+	{
+		final int n = label( x, y );
+
+		if ( n >= 0 && n != l )
+			adjacency.add( l, n, inc );
+	}
+
+	protected void countBorder( final int x, final int y, final int inc )
+	{
+		final int l = label( x, y );
+
+		if ( l >= 0 && isBorder( x, y, l ) )
+			border[ l ] += inc;
+	}
+
+	/**
+	 * @return - true if any 4-neighbor belongs to another segment or is outside of the mask
+	 */
+	protected boolean isBorder( final int x, final int y, final int l )
+	{
+		return label( x - 1, y ) != l || label( x + 1, y ) != l || label( x, y - 1 ) != l || label( x, y + 1 ) != l;
+	}
+
+	protected void addChange( final int i )
+	{
+		if ( numChanged == changed.length )
+		{
+			final int[] tmp = new int[ changed.length * 2 ];
+			System.arraycopy( changed, 0, tmp, 0, changed.length );
+			changed = tmp;
+		}
+
+		changed[ numChanged++ ] = i;
+	}
+
+	protected void markDirty( final int id )
+	{
+		if ( dirty[ id ] != stamp )
+		{
+			dirty[ id ] = stamp;
+			dirtyList[ numDirty++ ] = id;
+		}
+	}
+
+	protected void nextStamp()
+	{
+		if ( stamp == Integer.MAX_VALUE )
+		{
+			for ( int i = 0; i < visited.length; ++i )
+				visited[ i ] = seed[ i ] = dirty[ i ] = 0;
+
+			stamp = 0;
+		}
+
+		++stamp;
+	}
+
+	protected int maskIndex( final int x, final int y )
+	{
+		final int rx = x - minX;
+		final int ry = y - minY;
+
+		if ( rx < 0 || ry < 0 || rx >= width || ry >= height )
+			return -1;
+
+		return index[ ry * width + rx ];
+	}
+
+	/**
+	 * The label of the mask pixel closest to a position, if the position itself is
+	 * not part of the mask (generators can be pushed outside of the ROI).
+	 */
+	protected int closestLabel( final double x, final double y )
+	{
+		if ( mask.length == 0 )
+			return -1;
+
+		final int cx = Math.min( width - 1, Math.max( 0, (int)Math.round( x ) - minX ) );
+		final int cy = Math.min( height - 1, Math.max( 0, (int)Math.round( y ) - minY ) );
+
+		for ( int r = 0; ; ++r )
+		{
+			for ( int ry = cy - r; ry <= cy + r; ++ry )
+			{
+				if ( ry < 0 || ry >= height )
+					continue;
+
+				final int step = ( ry == cy - r || ry == cy + r ) ? 1 : Math.max( 1, 2 * r );
+
+				for ( int rx = cx - r; rx <= cx + r; rx += step )
+					if ( rx >= 0 && rx < width && index[ ry * width + rx ] >= 0 )
+						return label[ index[ ry * width + rx ] ];
+			}
+		}
+	}
+
+	/**
+	 * @return - the id of the generator closest to the pixel, ties go to the smaller id
+	 */
+	protected int nearest( final int x, final int y )
+	{
+		final int cx = gridX( x );
+		final int cy = gridY( y );
+		final int maxR = Math.max( Math.max( cx, gridW - 1 - cx ), Math.max( cy, gridH - 1 - cy ) );
+
+		int best = -1;
+		double bestDist = Double.MAX_VALUE;
+
+		for ( int r = 0; r <= maxR; ++r )
+		{
+			// no cell of this ring can contain a closer generator anymore
+			if ( best >= 0 && r > 1 && ( r - 1 ) * cellSize * ( r - 1 ) * cellSize > bestDist )
+				break;
+
+			for ( int gy = cy - r; gy <= cy + r; ++gy )
+			{
+				if ( gy < 0 || gy >= gridH )
+					continue;
+
+				final int step = ( gy == cy - r || gy == cy + r ) ? 1 : Math.max( 1, 2 * r );
+
+				for ( int gx = cx - r; gx <= cx + r; gx += step )
+				{
+					if ( gx < 0 || gx >= gridW )
+						continue;
+
+					for ( int id = gridHead[ gy * gridW + gx ]; id >= 0; id = gridNext[ id ] )
+					{
+						final double dx = px[ id ] - x;
+						final double dy = py[ id ] - y;
+						final double dist = dx * dx + dy * dy;
+
+						if ( dist < bestDist || ( dist == bestDist && id < best ) )
+						{
+							bestDist = dist;
+							best = id;
+						}
+					}
+				}
+			}
+		}
+
+		return best;
+	}
+
+	protected int gridX( final double x )
+	{
+		return Math.min( gridW - 1, Math.max( 0, (int)Math.floor( ( x - minX ) / cellSize ) ) );
+	}
+
+	protected int gridY( final double y )
+	{
+		return Math.min( gridH - 1, Math.max( 0, (int)Math.floor( ( y - minY ) / cellSize ) ) );
+	}
+
+	protected void addToGrid( final int id )
+	{
+		final int cell = gridY( py[ id ] ) * gridW + gridX( px[ id ] );
+
+		gridCell[ id ] = cell;
+		gridNext[ id ] = gridHead[ cell ];
+		gridHead[ cell ] = id;
+	}
+
+	protected void removeFromGrid( final int id )
+	{
+		final int cell = gridCell[ id ];
+
+		if ( gridHead[ cell ] == id )
+		{
+			gridHead[ cell ] = gridNext[ id ];
+		}
+		else
+		{
+			int prev = gridHead[ cell ];
+
+			while ( gridNext[ prev ] != id )
+				prev = gridNext[ prev ];
+
+			gridNext[ prev ] = gridNext[ id ];
+		}
+	}
+}
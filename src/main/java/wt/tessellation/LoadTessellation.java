@@ -1,13 +1,18 @@
 package wt.tessellation;
 
+import ij.IJ;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
@@ -18,22 +23,43 @@ public class LoadTessellation
 {
 	final Interval interval;
 	final List< Roi > segments;
+	final List< File > currentState;
 	final int targetArea;
-	final ArrayList< TessellationThread > threads;
+	final File roiData;
+
+	// built only when needed if the compiled tessellation could be loaded
+	ArrayList< TessellationThread > threads;
+	CompiledTessellation compiled;
+
+	// coarser levels by target area, see level()
+	final HashMap< Integer, CompiledTessellation > levels = new HashMap< Integer, CompiledTessellation >();
 
 	ImagePlus impArea, impId;
 	Img< FloatType > imgArea, imgId;
 
+	/**
+	 * Loads the compiled tessellation if it is up to date, otherwise builds all segments from the points
+	 * and saves the compiled tessellation next to them
+	 */
 	public LoadTessellation( final File roiData )
 	{
 		this(
 				TessellationTools.templateDimensions( roiData ),
 				TessellationTools.loadROIs( TessellationTools.assembleSegments( roiData ) ),
 				TessellationTools.assemblePoints( roiData ),
-				TessellationTools.targetArea( roiData ) );
+				TessellationTools.targetArea( roiData ),
+				roiData );
 	}
 
 	public LoadTessellation( final Interval interval, final List< Roi > segments, final List< File > currentState, final int targetArea )
+	{
+		this( interval, segments, currentState, targetArea, null );
+	}
+
+	/**
+	 * @param roiData - where the compiled tessellation is read from and written to, or null
+	 */
+	protected LoadTessellation( final Interval interval, final List< Roi > segments, final List< File > currentState, final int targetArea, final File roiData )
 	{
 		if ( interval == null )
 			throw new RuntimeException( "Interval is null, error loading it?" );
@@ -49,30 +75,158 @@ public class LoadTessellation
 
 		this.interval = interval;
 		this.segments = segments;
+		this.currentState = currentState;
 		this.targetArea = targetArea;
+		this.roiData = roiData;
+
+		if ( roiData != null && CompiledTessellation.isUpToDate( roiData ) )
+		{
+			this.compiled = CompiledTessellation.read( CompiledTessellation.file( roiData ) );
+
+			if ( compiled.width() != interval.dimension( 0 ) || compiled.height() != interval.dimension( 1 ) ||
+				compiled.numRois() != segments.size() )
+				this.compiled = null;
+		}
+
+		if ( compiled == null )
+		{
+			this.compiled = CompiledTessellation.compile( interval, tessellations() );
+
+			if ( roiData != null )
+			{
+				try
+				{
+					compiled.write( CompiledTessellation.file( roiData ) );
+				}
+				catch ( final IOException e )
+				{
+					// it is just compiled again next time
+					IJ.log( "Failed to write compiled tessellation to '" + roiData.getAbsolutePath() + "': " + e );
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return - all segments, they are built from the points on the first call if the compiled tessellation was loaded
+	 */
+	public List< TessellationThread > tessellations()
+	{
+		if ( threads == null )
+		{
+			threads = new ArrayList< TessellationThread >();
+
+			for ( int i = 0; i < segments.size(); ++i )
+				threads.add( new TessellationThread( i, segments.get( i ), interval, targetArea, currentState.get( i ) ) );
+		}
+
+		return threads;
+	}
+
+	/**
+	 * @return - the labels of all segments in one read-only raster
+	 */
+	public CompiledTessellation compiled() { return compiled; }
+
+	/**
+	 * @return - the level of the tessellation with cells of the given target area: the finest level for the target area
+	 * of the tessellation, a coarser one (see {@link TessellationHierarchy}) is loaded if it was saved and is up to date,
+	 * otherwise merged from the finest level and saved
+	 */
+	public CompiledTessellation level( final int area )
+	{
+		if ( area == targetArea )
+			return compiled;
+
+		if ( area < targetArea )
+		{
+			final String message = "Cannot merge a level of target area " + area + ", it must be larger than the target area " + targetArea + " of the tessellation.";
+			IJ.log( message );
+			throw new RuntimeException( message );
+		}
+
+		CompiledTessellation level = levels.get( area );
+
+		if ( level != null )
+			return level;
+
+		if ( roiData != null && CompiledTessellation.isUpToDate( roiData, area ) )
+		{
+			level = CompiledTessellation.read( CompiledTessellation.file( roiData, area ) );
+
+			if ( level.width() != compiled.width() || level.height() != compiled.height() || level.numRois() != compiled.numRois() )
+				level = null;
+		}
 
-		this.threads = new ArrayList< TessellationThread >();
-		for ( int i = 0; i < segments.size(); ++i )
-			this.threads.add( new TessellationThread( i, segments.get( i ), interval, targetArea, currentState.get( i ) ) );
+		if ( level == null )
+		{
+			level = new TessellationHierarchy( compiled, targetArea, area ).level( 1 );
+
+			if ( roiData != null )
+			{
+				try
+				{
+					level.write( CompiledTessellation.file( roiData, area ) );
+				}
+				catch ( final IOException e )
+				{
+					IJ.log( "Failed to write tessellation level " + area + " to '" + roiData.getAbsolutePath() + "': " + e );
+				}
+			}
+		}
+
+		levels.put( area, level );
+
+		return level;
 	}
 
-	public List< TessellationThread > tessellations() { return threads; }
+	/**
+	 * Selects how the pixels are assigned to the points for all segments, see {@link Search.LabelEngine}
+	 */
+	public void setLabelEngine( final Search.LabelEngine labelEngine )
+	{
+		for ( final TessellationThread tt : tessellations() )
+			tt.setLabelEngine( labelEngine );
+
+		// only in memory, the compiled tessellation on disk is the one of the default engine
+		this.compiled = CompiledTessellation.compile( interval, threads );
+		this.levels.clear();
+
+		// render again with the new labels
+		this.imgArea = null;
+		this.impArea = null;
+		this.imgId = null;
+		this.impId = null;
+	}
 	public Interval interval() { return interval; }
 
 	public void renderIdImage( final boolean normalizeIds )
 	{
+		final int n = compiled.width() * compiled.height();
+
 		if ( this.imgId == null || this.impId == null )
 		{
 			this.imgId = ArrayImgs.floats( interval.dimension( 0 ), interval.dimension( 1 ) );
 			this.impId = new ImagePlus( "voronoiId", ImageTools.wrap( imgId ) );
 		}
 
-		for ( final TessellationThread tt : threads )
+		// the ids are normalized by the largest id of their roi
+		final float[] maxId = new float[ segments.size() ];
+		Arrays.fill( maxId, 1 );
+
+		if ( normalizeIds )
+			for ( int l = 0; l < compiled.numLabels(); ++l )
+				maxId[ compiled.roi( l ) ] = Math.max( maxId[ compiled.roi( l ) ], compiled.id( l ) );
+
+		final Cursor< FloatType > c = imgId.cursor();
+
+		for ( int i = 0; i < n; ++i )
 		{
-			if ( normalizeIds )
-				TessellationTools.drawId( tt.mask(), tt.search().randomAccessible, imgId, tt.search().realInterval );
-			else
-				TessellationTools.drawId( tt.mask(), tt.search().randomAccessible, imgId );
+			c.fwd();
+			final int l = compiled.label( i );
+
+			if ( l >= 0 )
+				c.get().set( compiled.id( l ) / maxId[ compiled.roi( l ) ] );
 		}
 
 		this.impId.resetDisplayRange();
@@ -81,12 +235,22 @@ public class LoadTessellation
 
 	public void renderAreaImage()
 	{
+		final int n = compiled.width() * compiled.height();
+
 		this.imgArea = ArrayImgs.floats( interval.dimension( 0 ), interval.dimension( 1 ) );
 		this.impArea = new ImagePlus( "voronoiArea", ImageTools.wrap( imgArea ) );
 		this.impArea.setDisplayRange( 0, targetArea * 2 );
 
-		for ( final TessellationThread tt : threads )
-			TessellationTools.drawArea( tt.mask(), tt.search().randomAccessible, imgArea );
+		final Cursor< FloatType > c = imgArea.cursor();
+
+		for ( int i = 0; i < n; ++i )
+		{
+			c.fwd();
+			final int l = compiled.label( i );
+
+			if ( l >= 0 )
+				c.get().set( compiled.area( l ) );
+		}
 
 		impArea.updateAndDraw();
 	}
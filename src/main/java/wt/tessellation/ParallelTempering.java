@@ -0,0 +1,164 @@
+package wt.tessellation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.Interval;
+
+/**
+ * Optimizes one segment with several replicas at different temperatures (see {@link TessellationThread#setTemperature(double)})
+ * that periodically exchange their temperatures (parallel tempering). The coldest replica only takes improvements, hotter
+ * ones can leave local minima, and good states move down to the cold end through the exchanges.
+ *
+ * All replicas start as copies of the given segment, each with its own stream of random numbers split from the
+ * stream of the segment, so the result only depends on the seed of the segment. The temperatures are 0 and then doubling up
+ * to maxTemperature. The best state any replica had at an exchange is kept.
+ */
+public class ParallelTempering
+{
+	final Interval interval;
+	final TessellationThread[] replicas;
+
+	// the temperature of every slot, ascending, and which replica currently runs in every slot
+	final double[] temperature;
+	final int[] replica;
+
+	final RandomStream rnd;
+	int numExchanges = 0, numSwaps = 0, numRounds = 0;
+
+	TessellationCheckpoint.State best;
+	double bestError;
+
+	public ParallelTempering( final TessellationThread t, final Interval interval, final int numReplicas, final double maxTemperature )
+	{
+		if ( numReplicas < 1 )
+			throw new RuntimeException( "Number of replicas must be at least 1, but is " + numReplicas );
+
+		this.interval = interval;
+		this.replicas = new TessellationThread[ numReplicas ];
+		this.temperature = new double[ numReplicas ];
+		this.replica = new int[ numReplicas ];
+		// stream 0 for the exchanges, stream i for replica i
+		this.rnd = t.random().stream( 0 );
+
+		final TessellationCheckpoint.State state = t.state();
+
+		replicas[ 0 ] = t;
+
+		for ( int i = 1; i < numReplicas; ++i )
+		{
+			replicas[ i ] = new TessellationThread( t.id(), t.roi(), interval, t.targetArea(), state );
+			replicas[ i ].setRandom( t.random().stream( i ) );
+			replicas[ i ].copySettings( t );
+		}
+
+		for ( int i = 0; i < numReplicas; ++i )
+		{
+			temperature[ i ] = i == 0 ? 0 : maxTemperature * Math.pow( 0.5, numReplicas - 1 - i );
+			replica[ i ] = i;
+			replicas[ i ].setTemperature( temperature[ i ] );
+		}
+
+		this.best = state;
+		this.bestError = t.error();
+	}
+
+	public List< TessellationThread > replicas()
+	{
+		final ArrayList< TessellationThread > list = new ArrayList< TessellationThread >();
+
+		for ( final TessellationThread t : replicas )
+			list.add( t );
+
+		return list;
+	}
+
+	public int id() { return replicas[ 0 ].id(); }
+	public double bestError() { return bestError; }
+
+	/**
+	 * @return - the best state any replica had at an exchange
+	 */
+	public TessellationCheckpoint.State bestState() { return best; }
+
+	/**
+	 * @return - the fraction of proposed exchanges that were accepted
+	 */
+	public double acceptanceRate() { return numExchanges == 0 ? 0 : numSwaps / (double)numExchanges; }
+
+	/**
+	 * Proposes to exchange the temperatures of neighboring slots, alternating between the even and the odd pairs.
+	 * Must be called while no replica runs.
+	 */
+	public void exchange()
+	{
+		for ( int i = numRounds % 2; i + 1 < replicas.length; i += 2 )
+		{
+			final TessellationThread cold = replicas[ replica[ i ] ];
+			final TessellationThread hot = replicas[ replica[ i + 1 ] ];
+
+			++numExchanges;
+
+			if ( accept( cold.error(), temperature[ i ], hot.error(), temperature[ i + 1 ] ) )
+			{
+				final int tmp = replica[ i ];
+				replica[ i ] = replica[ i + 1 ];
+				replica[ i + 1 ] = tmp;
+
+				replicas[ replica[ i ] ].setTemperature( temperature[ i ] );
+				replicas[ replica[ i + 1 ] ].setTemperature( temperature[ i + 1 ] );
+
+				++numSwaps;
+			}
+		}
+
+		++numRounds;
+
+		for ( final TessellationThread t : replicas )
+		{
+			if ( t.error() < bestError )
+			{
+				bestError = t.error();
+				best = t.state();
+			}
+		}
+	}
+
+	/**
+	 * Metropolis criterion of parallel tempering on the log of the errors, as the temperatures are relative
+	 */
+	protected boolean accept( final double errorCold, final double temperatureCold, final double errorHot, final double temperatureHot )
+	{
+		// positive if the hotter replica is better
+		final double d = Math.log( errorCold ) - Math.log( errorHot );
+
+		if ( d > 0 )
+			return true;
+		else if ( temperatureCold == 0 )
+			return false;
+		else
+			return rnd.nextDouble() < Math.exp( ( 1.0 / temperatureCold - 1.0 / temperatureHot ) * d );
+	}
+
+	/**
+	 * @return - the replica with the best state, or a new segment from the best state if no replica has it any more.
+	 * Its temperature is 0.
+	 */
+	public TessellationThread best()
+	{
+		for ( final TessellationThread t : replicas )
+		{
+			if ( t.error() <= bestError )
+			{
+				t.setTemperature( 0 );
+				return t;
+			}
+		}
+
+		final TessellationThread t = replicas[ 0 ];
+		final TessellationThread b = new TessellationThread( t.id(), t.roi(), interval, t.targetArea(), best );
+		b.copySettings( t );
+
+		return b;
+	}
+}
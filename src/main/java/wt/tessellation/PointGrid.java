@@ -0,0 +1,296 @@
+package wt.tessellation;
+
+/**
+ * Buckets the points of a segment into a uniform grid of square cells, for exact k nearest neighbor queries and to
+ * approximate sums over all points: points in cells close to the query are visited one by one, farther cells only
+ * by the sum of their values at their center of mass plus a first order correction for how the values are spread
+ * within the cell (like Barnes-Hut with a dipole term, but with one level).
+ *
+ * Points are addressed by their id, all arrays are indexed by id. Queries are thread-safe once the grid is built.
+ */
+public class PointGrid
+{
+	// cells up to this many cells away (in x or y) from the cell of the query are visited point by point
+	final public static int near = 2;
+
+	final int[] ids;
+	final double[] x, y;
+
+	final double minX, minY, cellSize;
+	final int width, height;
+
+	// the ids of cell c are cellIds[ cellStart[ c ] ] ... cellIds[ cellStart[ c + 1 ] - 1 ]
+	final int[] cellStart, cellIds;
+
+	// per cell, set by setValues(): sum of the values, center of mass of the points and sum of value * ( location - center )
+	double[] cellValue, cellX, cellY, cellDX, cellDY;
+	double[] value;
+
+	/**
+	 * @param ids - the ids of the points
+	 * @param x, y - the location of every point, indexed by id
+	 * @param cellSize - edge length of a cell
+	 */
+	public PointGrid( final int[] ids, final double[] x, final double[] y, final double cellSize )
+	{
+		this.ids = ids;
+		this.x = x;
+		this.y = y;
+		this.cellSize = cellSize;
+
+		double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+
+		for ( final int id : ids )
+		{
+			minX = Math.min( minX, x[ id ] );
+			minY = Math.min( minY, y[ id ] );
+			maxX = Math.max( maxX, x[ id ] );
+			maxY = Math.max( maxY, y[ id ] );
+		}
+
+		this.minX = minX;
+		this.minY = minY;
+		this.width = (int)( ( maxX - minX ) / cellSize ) + 1;
+		this.height = (int)( ( maxY - minY ) / cellSize ) + 1;
+
+		// counting sort of the ids by cell
+		this.cellStart = new int[ width * height + 1 ];
+		this.cellIds = new int[ ids.length ];
+
+		for ( final int id : ids )
+			++cellStart[ cell( id ) + 1 ];
+
+		for ( int c = 0; c < width * height; ++c )
+			cellStart[ c + 1 ] += cellStart[ c ];
+
+		final int[] next = new int[ width * height ];
+		System.arraycopy( cellStart, 0, next, 0, next.length );
+
+		for ( final int id : ids )
+			cellIds[ next[ cell( id ) ]++ ] = id;
+	}
+
+	/**
+	 * @return - a cell size that balances the points visited one by one and the cells visited for sums
+	 */
+	public static double cellSize( final double area, final int numPoints )
+	{
+		return Math.sqrt( area / Math.max( 1, 5 * Math.sqrt( numPoints ) ) );
+	}
+
+	protected int cellX( final double px ) { return Math.min( width - 1, Math.max( 0, (int)( ( px - minX ) / cellSize ) ) ); }
+	protected int cellY( final double py ) { return Math.min( height - 1, Math.max( 0, (int)( ( py - minY ) / cellSize ) ) ); }
+	protected int cell( final int id ) { return cellY( y[ id ] ) * width + cellX( x[ id ] ); }
+
+	/**
+	 * Finds the k nearest points (including a point at the query location itself), in no particular order
+	 *
+	 * @param nearest - receives the ids, at least k long
+	 * @param sqDist - scratch, at least k long
+	 * @return - the number of ids found, k unless there are fewer points
+	 */
+	public int nearest( final double qx, final double qy, final int k, final int[] nearest, final double[] sqDist )
+	{
+		final int k0 = Math.min( k, ids.length );
+		final int cx = cellX( qx ), cy = cellY( qy );
+		final int maxRing = Math.max( Math.max( cx, width - 1 - cx ), Math.max( cy, height - 1 - cy ) );
+
+		int n = 0;
+
+		for ( int r = 0; r <= maxRing; ++r )
+		{
+			// every point in ring r is at least ( r - 1 ) cells away
+			if ( n == k0 && r > 1 && ( r - 1 ) * cellSize * ( r - 1 ) * cellSize > sqDist[ 0 ] )
+				break;
+
+			for ( int gy = cy - r; gy <= cy + r; ++gy )
+			{
+				if ( gy < 0 || gy >= height )
+					continue;
+
+				// only the border of the ring
+				final int step = ( gy == cy - r || gy == cy + r ) ? 1 : Math.max( 1, 2 * r );
+
+				for ( int gx = cx - r; gx <= cx + r; gx += step )
+				{
+					if ( gx < 0 || gx >= width )
+						continue;
+
+					final int c = gy * width + gx;
+
+					for ( int i = cellStart[ c ]; i < cellStart[ c + 1 ]; ++i )
+					{
+						final int id = cellIds[ i ];
+						final double dx = x[ id ] - qx;
+						final double dy = y[ id ] - qy;
+						final double d = dx * dx + dy * dy;
+
+						if ( n < k0 )
+							push( nearest, sqDist, n++, id, d );
+						else if ( d < sqDist[ 0 ] )
+							replaceTop( nearest, sqDist, n, id, d );
+					}
+				}
+			}
+		}
+
+		return n;
+	}
+
+	/**
+	 * Sets the value of every point (indexed by id) and sums them up per cell
+	 */
+	public void setValues( final double[] value )
+	{
+		this.value = value;
+		this.cellValue = new double[ width * height ];
+		this.cellX = new double[ width * height ];
+		this.cellY = new double[ width * height ];
+		this.cellDX = new double[ width * height ];
+		this.cellDY = new double[ width * height ];
+
+		for ( int c = 0; c < width * height; ++c )
+		{
+			final int n = cellStart[ c + 1 ] - cellStart[ c ];
+
+			for ( int i = cellStart[ c ]; i < cellStart[ c + 1 ]; ++i )
+			{
+				final int id = cellIds[ i ];
+				cellValue[ c ] += value[ id ];
+				cellX[ c ] += x[ id ];
+				cellY[ c ] += y[ id ];
+			}
+
+			if ( n > 0 )
+			{
+				cellX[ c ] /= n;
+				cellY[ c ] /= n;
+			}
+
+			for ( int i = cellStart[ c ]; i < cellStart[ c + 1 ]; ++i )
+			{
+				final int id = cellIds[ i ];
+				cellDX[ c ] += value[ id ] * ( x[ id ] - cellX[ c ] );
+				cellDY[ c ] += value[ id ] * ( y[ id ] - cellY[ c ] );
+			}
+		}
+	}
+
+	/**
+	 * Sums value[ p ] * w( d ) * ( q - p ) / d over all other points p, d = |q - p|, w( d ) = exp( -d^2 / two_sq_sigma ),
+	 * and w( d ) itself. Cells farther than {@link #near} cells are summed at their center of mass, assuming w changes
+	 * slowly across a cell.
+	 *
+	 * @param sum - receives the sum for x, for y and the sum of the weights
+	 */
+	public void weightedSum( final int id, final double two_sq_sigma, final double[] sum )
+	{
+		final double qx = x[ id ], qy = y[ id ];
+		final int cx = cellX( qx ), cy = cellY( qy );
+
+		double sx = 0, sy = 0, sw = 0;
+
+		for ( int gy = 0; gy < height; ++gy )
+			for ( int gx = 0; gx < width; ++gx )
+			{
+				final int c = gy * width + gx;
+				final int n = cellStart[ c + 1 ] - cellStart[ c ];
+
+				if ( n == 0 )
+					continue;
+
+				if ( Math.abs( gx - cx ) <= near && Math.abs( gy - cy ) <= near )
+				{
+					for ( int i = cellStart[ c ]; i < cellStart[ c + 1 ]; ++i )
+					{
+						final int p = cellIds[ i ];
+
+						if ( p == id )
+							continue;
+
+						final double dx = qx - x[ p ];
+						final double dy = qy - y[ p ];
+						final double sqDist = dx * dx + dy * dy;
+
+						if ( sqDist == 0 )
+							continue;
+
+						final double dist = Math.sqrt( sqDist );
+						final double w = Math.exp( -sqDist / two_sq_sigma );
+
+						sx += value[ p ] * dx / dist * w;
+						sy += value[ p ] * dy / dist * w;
+						sw += w;
+					}
+				}
+				else
+				{
+					final double dx = qx - cellX[ c ];
+					final double dy = qy - cellY[ c ];
+					final double sqDist = dx * dx + dy * dy;
+					final double dist = Math.sqrt( sqDist );
+					final double w = Math.exp( -sqDist / two_sq_sigma );
+					final double ux = dx / dist;
+					final double uy = dy / dist;
+
+					// the derivative of the direction ( I - u u^T ) / d applied to the spread of the values
+					final double ud = ux * cellDX[ c ] + uy * cellDY[ c ];
+
+					sx += ( cellValue[ c ] * ux - ( cellDX[ c ] - ux * ud ) / dist ) * w;
+					sy += ( cellValue[ c ] * uy - ( cellDY[ c ] - uy * ud ) / dist ) * w;
+					sw += n * w;
+				}
+			}
+
+		sum[ 0 ] = sx;
+		sum[ 1 ] = sy;
+		sum[ 2 ] = sw;
+	}
+
+	/**
+	 * Max-heap on sqDist of the first n entries
+	 */
+	protected static void push( final int[] ids, final double[] sqDist, int i, final int id, final double d )
+	{
+		while ( i > 0 )
+		{
+			final int parent = ( i - 1 ) / 2;
+
+			if ( sqDist[ parent ] >= d )
+				break;
+
+			ids[ i ] = ids[ parent ];
+			sqDist[ i ] = sqDist[ parent ];
+			i = parent;
+		}
+
+		ids[ i ] = id;
+		sqDist[ i ] = d;
+	}
+
+	protected static void replaceTop( final int[] ids, final double[] sqDist, final int n, final int id, final double d )
+	{
+		int i = 0;
+
+		while ( true )
+		{
+			int child = 2 * i + 1;
+
+			if ( child >= n )
+				break;
+
+			if ( child + 1 < n && sqDist[ child + 1 ] > sqDist[ child ] )
+				++child;
+
+			if ( sqDist[ child ] <= d )
+				break;
+
+			ids[ i ] = ids[ child ];
+			sqDist[ i ] = sqDist[ child ];
+			i = child;
+		}
+
+		ids[ i ] = id;
+		sqDist[ i ] = d;
+	}
+}
@@ -0,0 +1,121 @@
+package wt.tessellation;
+
+import java.util.Random;
+
+/**
+ * A SplitMix64 random number generator that can be split into independent streams, e.g. one per roi, replica
+ * or worker. The stream with a given index only depends on the seed of its parent, not on how many numbers the
+ * parent already drew, so every stream is the same no matter in which order or on which thread they are created.
+ *
+ * Unlike Random it is not thread-safe, every thread needs its own stream. Its whole state are two longs
+ * ( see {@link #key()}, {@link #state()} ), so a checkpoint continues exactly where the stream was.
+ */
+public class RandomStream extends Random
+{
+	private static final long serialVersionUID = 1L;
+
+	final private static long golden = 0x9e3779b97f4a7c15L;
+
+	// identifies the stream, its children are derived from it
+	private long key;
+
+	// advanced by golden for every number
+	private long state;
+
+	public RandomStream( final long seed )
+	{
+		// calls setSeed()
+		super( seed );
+	}
+
+	/**
+	 * @return - the stream that continues exactly where the stream with this key and state was
+	 */
+	public static RandomStream restore( final long key, final long state )
+	{
+		final RandomStream s = new RandomStream( 0 );
+		s.key = key;
+		s.state = state;
+
+		return s;
+	}
+
+	public long key() { return key; }
+	public long state() { return state; }
+
+	/**
+	 * @return - the stream with this index, independent of this stream and all other indices
+	 */
+	public RandomStream stream( final long index )
+	{
+		return new RandomStream( key ^ mix64( golden * ( index + 1 ) ) );
+	}
+
+	/**
+	 * @return - the stream of the indices, e.g. stream( seed, roi, replica ) is new RandomStream( seed ).stream( roi ).stream( replica )
+	 */
+	public static RandomStream stream( final long seed, final long... indices )
+	{
+		RandomStream s = new RandomStream( seed );
+
+		for ( final long index : indices )
+			s = s.stream( index );
+
+		return s;
+	}
+
+	@Override
+	public void setSeed( final long seed )
+	{
+		// resets the cached gaussian
+		super.setSeed( seed );
+
+		this.key = mix64( seed );
+		this.state = key;
+	}
+
+	@Override
+	public long nextLong()
+	{
+		state += golden;
+		return mix64( state );
+	}
+
+	@Override
+	protected int next( final int bits )
+	{
+		return (int)( nextLong() >>> ( 64 - bits ) );
+	}
+
+	@Override
+	public double nextDouble()
+	{
+		return ( nextLong() >>> 11 ) * 0x1.0p-53;
+	}
+
+	/**
+	 * Like Random, but without keeping the second value for the next call, so key and state are all there is
+	 */
+	@Override
+	public double nextGaussian()
+	{
+		double v1, v2, s;
+
+		do
+		{
+			v1 = 2 * nextDouble() - 1;
+			v2 = 2 * nextDouble() - 1;
+			s = v1 * v1 + v2 * v2;
+		}
+		while ( s >= 1 || s == 0 );
+
+		return v1 * StrictMath.sqrt( -2 * StrictMath.log( s ) / s );
+	}
+
+	protected static long mix64( long z )
+	{
+		z = ( z ^ ( z >>> 30 ) ) * 0xbf58476d1ce4e5b9L;
+		z = ( z ^ ( z >>> 27 ) ) * 0x94d049bb133111ebL;
+		return z ^ ( z >>> 31 );
+	}
+}
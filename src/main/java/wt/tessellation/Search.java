@@ -2,7 +2,9 @@ package wt.tessellation;
 
 import net.imglib2.IterableRealInterval;
 import net.imglib2.KDTree;
+import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessible;
+import net.imglib2.RealCursor;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.interpolation.neighborsearch.NearestNeighborSearchInterpolatorFactory;
 import net.imglib2.neighborsearch.NearestNeighborSearch;
@@ -11,6 +13,15 @@ import net.imglib2.view.Views;
 
 public class Search< S extends Segment >
 {
+	/**
+	 * How the pixels of a mask are assigned to their closest point: NEAREST_NEIGHBOR looks up the exact
+	 * positions in the KDTree, FEATURE_TRANSFORM labels all pixels at once in linear time, but snaps the
+	 * points to the closest pixel first.
+	 */
+	public enum LabelEngine { NEAREST_NEIGHBOR, FEATURE_TRANSFORM }
+
+	LabelEngine labelEngine = LabelEngine.NEAREST_NEIGHBOR;
+
 	// point list
 	final IterableRealInterval< S > realInterval;
 
@@ -29,6 +40,9 @@ public class Search< S extends Segment >
 	// convert it into a RandomAccessible which can be displayed
 	RandomAccessible< S > randomAccessible;
 
+	// the points moved since the kd-tree was built, it is rebuilt once it is needed
+	boolean dirty;
+
 	public Search( final IterableRealInterval< S > realInterval )
 	{
 		this.realInterval = realInterval;
@@ -36,15 +50,91 @@ public class Search< S extends Segment >
 		update();
 	}
 
+	/**
+	 * Rebuilds the kd-tree now
+	 */
 	public void update()
 	{
 		this.kdTree = new KDTree< S > ( realInterval );
 		this.search = new NearestNeighborSearchOnKDTree< S >( kdTree );
 		this.realRandomAccessible = Views.interpolate( search, factory );
 		this.randomAccessible = Views.raster( realRandomAccessible );
+		this.dirty = false;
+	}
+
+	/**
+	 * The points moved, the kd-tree is rebuilt the next time it is needed
+	 */
+	public void invalidate() { this.dirty = true; }
+
+	protected void updateIfDirty()
+	{
+		if ( dirty )
+			update();
 	}
 
-	public KDTree< S > kdTree() { return kdTree; }
+	public KDTree< S > kdTree() { updateIfDirty(); return kdTree; }
 	public IterableRealInterval< S > segments() { return realInterval; }
-	public RandomAccessible< S > randomAccessible() { return randomAccessible; }
+	public RandomAccessible< S > randomAccessible() { updateIfDirty(); return randomAccessible; }
+	public LabelEngine labelEngine() { return labelEngine; }
+	public void setLabelEngine( final LabelEngine labelEngine ) { this.labelEngine = labelEngine; }
+
+	/**
+	 * @return - the id of the closest point for every mask pixel
+	 */
+	public int[] label( final int[][] mask )
+	{
+		final int[] labels = new int[ mask.length ];
+
+		if ( mask.length == 0 )
+			return labels;
+
+		if ( labelEngine == LabelEngine.NEAREST_NEIGHBOR )
+		{
+			final RandomAccess< S > ra = randomAccessible().randomAccess();
+
+			for ( int i = 0; i < mask.length; ++i )
+			{
+				ra.setPosition( mask[ i ] );
+				labels[ i ] = ra.get().id();
+			}
+
+			return labels;
+		}
+
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+		for ( final int[] ml : mask )
+		{
+			minX = Math.min( minX, ml[ 0 ] );
+			minY = Math.min( minY, ml[ 1 ] );
+			maxX = Math.max( maxX, ml[ 0 ] );
+			maxY = Math.max( maxY, ml[ 1 ] );
+		}
+
+		final int n = (int)realInterval.size();
+		final int[] sx = new int[ n ];
+		final int[] sy = new int[ n ];
+		final int[] sid = new int[ n ];
+
+		final RealCursor< S > c = realInterval.localizingCursor();
+
+		for ( int i = 0; i < n; ++i )
+		{
+			c.fwd();
+			sx[ i ] = (int)Math.round( c.getDoublePosition( 0 ) );
+			sy[ i ] = (int)Math.round( c.getDoublePosition( 1 ) );
+			sid[ i ] = c.get().id();
+		}
+
+		final int width = maxX - minX + 1;
+		final int[] box = new int[ width * ( maxY - minY + 1 ) ];
+
+		FeatureTransform.label( minX, minY, width, maxY - minY + 1, sx, sy, sid, n, box );
+
+		for ( int i = 0; i < mask.length; ++i )
+			labels[ i ] = box[ ( mask[ i ][ 1 ] - minY ) * width + mask[ i ][ 0 ] - minX ];
+
+		return labels;
+	}
 }
@@ -1,7 +1,5 @@
 package wt.tessellation;
 
-import java.util.ArrayList;
-
 public class Segment
 {
 	final static private double PI4 = 4.0 * Math.PI;
@@ -9,9 +7,16 @@ public class Segment
 	final protected int id;
 	protected int area;
 	protected double value;
-	protected final ArrayList< int[] > pixels;
 	public double tmp;
 
+	// pixel coordinates packed as ( y << 16 ) | x, only the first numPixels are valid
+	protected int[] pixels;
+	protected int numPixels;
+
+	// cached number of border pixels, invalid once the pixels change
+	protected int borderPixels;
+	protected boolean borderPixelsValid;
+
 	protected double sumPeakIntensity;
 	protected int numPeaks;
 
@@ -20,19 +25,80 @@ public class Segment
 		this( id, -1, 0, null );
 	}
 
-	public Segment( final int id, final int area, final double value, final ArrayList< int[] > pixels )
+	public Segment( final int id, final int area, final double value, final int[] pixels )
 	{
 		this.id = id;
 		this.area = area;
 		this.value = value;
 
 		if ( pixels == null )
-			this.pixels = new ArrayList< int[] >();
+		{
+			this.pixels = new int[ 16 ];
+			this.numPixels = 0;
+		}
 		else
+		{
 			this.pixels = pixels;
+			this.numPixels = pixels.length;
+		}
+
+		this.borderPixelsValid = false;
+	}
+
+	/**
+	 * @return - a copy with its own pixel storage
+	 */
+	public Segment copy()
+	{
+		final int[] p = new int[ Math.max( 16, numPixels ) ];
+		System.arraycopy( pixels, 0, p, 0, numPixels );
+
+		final Segment s = new Segment( id, area, value, p );
+		s.numPixels = numPixels;
+		s.tmp = tmp;
+		s.sumPeakIntensity = sumPeakIntensity;
+		s.numPeaks = numPeaks;
+		s.borderPixels = borderPixels;
+		s.borderPixelsValid = borderPixelsValid;
+
+		return s;
+	}
+
+	public final static int pack( final int x, final int y ) { return ( y << 16 ) | x; }
+	public final static int x( final int pixel ) { return pixel & 0xffff; }
+	public final static int y( final int pixel ) { return pixel >>> 16; }
+
+	/**
+	 * @return - the packed pixel coordinates, only the first numPixels() entries are valid
+	 */
+	public int[] pixels() { return pixels; }
+	public int numPixels() { return numPixels; }
+	public void setNumPixels( final int numPixels ) { this.numPixels = numPixels; this.borderPixelsValid = false; }
+	public void clearPixels() { this.numPixels = 0; this.borderPixelsValid = false; }
+
+	public void addPixel( final int pixel )
+	{
+		if ( numPixels == pixels.length )
+		{
+			final int[] tmp = new int[ pixels.length * 2 ];
+			System.arraycopy( pixels, 0, tmp, 0, numPixels );
+			pixels = tmp;
+		}
+
+		pixels[ numPixels++ ] = pixel;
+		borderPixelsValid = false;
+	}
+
+	/**
+	 * Sets the number of border pixels if it is maintained outside (e.g. by the {@link LabelMap})
+	 * so it does not need to be recomputed
+	 */
+	public void setBorderPixels( final int borderPixels )
+	{
+		this.borderPixels = borderPixels;
+		this.borderPixelsValid = true;
 	}
 
-	public ArrayList< int[] > pixels() { return pixels; }
 	public int id() { return id; }
 	public int area() { return area; }
 	public void setArea( final int area ) { this.area = area; }
@@ -54,14 +120,14 @@ public class Segment
 		double xp = 0;
 		double yp = 0;
 
-		for ( final int[] p : pixels )
+		for ( int i = 0; i < numPixels; ++i )
 		{
-			xp += p[ 0 ];
-			yp += p[ 1 ];
+			xp += x( pixels[ i ] );
+			yp += y( pixels[ i ] );
 		}
 
-		xp /= (double)pixels.size();
-		yp /= (double)pixels.size();
+		xp /= (double)numPixels;
+		yp /= (double)numPixels;
 
 		c[ 0 ] = xp;
 		c[ 1 ] = yp;
@@ -89,21 +155,29 @@ public class Segment
 	}
 
 	public int borderPixels()
+	{
+		if ( !borderPixelsValid )
+			setBorderPixels( computeBorderPixels() );
+
+		return borderPixels;
+	}
+
+	public int computeBorderPixels()
 	{
 		int minX, minY, maxX, maxY;
 
-		if ( pixels.size() == 0 )
+		if ( numPixels == 0 )
 			return 0;
 
-		minX = maxX = pixels.get( 0 )[ 0 ];
-		minY = maxY = pixels.get( 0 )[ 1 ];
+		minX = maxX = x( pixels[ 0 ] );
+		minY = maxY = y( pixels[ 0 ] );
 
-		for ( final int[] l : pixels )
+		for ( int i = 0; i < numPixels; ++i )
 		{
-			minX = Math.min( minX, l[ 0 ] );
-			minY = Math.min( minY, l[ 1 ] );
-			maxX = Math.max( maxX, l[ 0 ] );
-			maxY = Math.max( maxY, l[ 1 ] );
+			minX = Math.min( minX, x( pixels[ i ] ) );
+			minY = Math.min( minY, y( pixels[ i ] ) );
+			maxX = Math.max( maxX, x( pixels[ i ] ) );
+			maxY = Math.max( maxY, y( pixels[ i ] ) );
 		}
 
 		final int w = maxX - minX + 1 + 2; // +2: a black border around it for easy 4-neighborhood testing
@@ -112,16 +186,16 @@ public class Segment
 		// populate the temporary image
 		final byte[][] img = new byte[ w ][ h ];
 
-		for ( final int[] l : pixels )
-			img[ l[ 0 ] - minX + 1 ][ l[ 1 ] - minY + 1 ] = 1;
+		for ( int i = 0; i < numPixels; ++i )
+			img[ x( pixels[ i ] ) - minX + 1 ][ y( pixels[ i ] ) - minY + 1 ] = 1;
 
 		// check for each pixel if it is a border pixel by 4-neighborhood
 		int borderPixels = 0;
 
-		for ( final int[] l : pixels )
+		for ( int i = 0; i < numPixels; ++i )
 		{
-			final int x = l[ 0 ] - minX + 1;
-			final int y = l[ 1 ] - minY + 1;
+			final int x = x( pixels[ i ] ) - minX + 1;
+			final int y = y( pixels[ i ] ) - minY + 1;
 
 			if ( img[ x ][ y ] != 1 )
 				throw new RuntimeException( "this should be one" );
@@ -0,0 +1,80 @@
+package wt.tessellation;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Keeps the segments of a tessellation in heaps by area and inverse circularity, so the smallest, largest
+ * and least circular segment can be picked without scanning all of them. Ties go to the segment that comes
+ * first in the point list, like in the scans of {@link TessellationTools}.
+ *
+ * After labels changed, {@link #update(LabelMap)} updates the segments that were touched.
+ */
+public class SegmentIndex
+{
+	// segments in the order of the point list and the index of every segment id
+	final Segment[] segments;
+	final int[] indexOf;
+
+	final IndexedHeap minArea, maxArea, maxInvCirc;
+
+	public SegmentIndex( final Iterable< Segment > segmentList )
+	{
+		final ArrayList< Segment > list = new ArrayList< Segment >();
+		int maxId = -1;
+
+		for ( final Segment s : segmentList )
+		{
+			list.add( s );
+			maxId = Math.max( maxId, s.id() );
+		}
+
+		this.segments = list.toArray( new Segment[ list.size() ] );
+		this.indexOf = new int[ maxId + 1 ];
+
+		final double[] area = new double[ segments.length ];
+		final double[] negArea = new double[ segments.length ];
+		final double[] negInvCirc = new double[ segments.length ];
+
+		for ( int i = 0; i < segments.length; ++i )
+		{
+			indexOf[ segments[ i ].id() ] = i;
+			area[ i ] = segments[ i ].area();
+			negArea[ i ] = -segments[ i ].area();
+			negInvCirc[ i ] = -segments[ i ].invCircularity();
+		}
+
+		this.minArea = new IndexedHeap( area );
+		this.maxArea = new IndexedHeap( negArea );
+		this.maxInvCirc = new IndexedHeap( negInvCirc );
+	}
+
+	public int size() { return segments.length; }
+	public Segment get( final int i ) { return segments[ i ]; }
+	public Segment random( final Random rnd ) { return segments[ rnd.nextInt( segments.length ) ]; }
+
+	public Segment smallest() { return segments[ minArea.top() ]; }
+	public Segment largest() { return segments[ maxArea.top() ]; }
+	public Segment maxInvCircular() { return segments[ maxInvCirc.top() ]; }
+
+	/**
+	 * Updates the position of one segment in the heaps after its area or border changed
+	 */
+	public void update( final Segment s )
+	{
+		final int i = indexOf[ s.id() ];
+
+		minArea.set( i, s.area() );
+		maxArea.set( i, -s.area() );
+		maxInvCirc.set( i, -s.invCircularity() );
+	}
+
+	/**
+	 * Updates all segments touched by the last update of the {@link LabelMap}
+	 */
+	public void update( final LabelMap labelMap )
+	{
+		for ( int i = 0; i < labelMap.numTouched(); ++i )
+			update( labelMap.segment( labelMap.touched( i ) ) );
+	}
+}
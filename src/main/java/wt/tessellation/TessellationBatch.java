@@ -0,0 +1,478 @@
+package wt.tessellation;
+
+import ij.gui.Roi;
+import ij.io.FileSaver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.spim.io.TextFileAccess;
+import net.imglib2.Interval;
+
+/**
+ * Runs tessellations of several templates, target areas and seeds concurrently on one shared pool, e.g. for several
+ * genotypes at several resolutions. The pool has numCores threads for all jobs together, idle threads of one job steal
+ * work of the others (see {@link TessellationScheduler}). Every job gets its own {@link TessellationHeadless} with
+ * numCores / numConcurrent threads, so its result does not depend on which other jobs run at the same time.
+ *
+ * Every job writes points, logs and a progress file (see {@link TessellationHeadless#setProgress(File)}) into its own
+ * directory. Jobs whose progress file says they are done are skipped, so a batch can simply be started again.
+ */
+public class TessellationBatch
+{
+	final public static String progressFileName = "progress.txt";
+	final public static String checkpointFileName = "checkpoint.bin";
+
+	public static class Job
+	{
+		final File templateDirectory;
+		final int targetArea;
+		final long seed;
+		final File directory;
+
+		public Job( final File templateDirectory, final int targetArea, final long seed, final File directory )
+		{
+			if ( targetArea <= 0 )
+				throw new RuntimeException( "Target area must be positive, but is " + targetArea );
+
+			this.templateDirectory = templateDirectory;
+			this.targetArea = targetArea;
+			this.seed = seed;
+			this.directory = directory;
+		}
+
+		public File directory() { return directory; }
+		public File progressFile() { return new File( directory, progressFileName ); }
+
+		@Override
+		public String toString() { return templateDirectory.getName() + " targetArea=" + targetArea + " seed=" + seed; }
+	}
+
+	final List< Job > jobs;
+	final int numCores, numConcurrent;
+
+	// the convergence criteria of every job, see ConvergenceCriteria
+	int plateauWindow = 0, maxNonImproving = 0, maxIterations = 100000;
+	double plateauTolerance = 0;
+	long wallClockMillis = 0;
+
+	int lloydIterations = 0;
+	boolean lloydWeighted = false;
+
+	int pyramidLevels = 0, pyramidIterations = 0;
+	int numReplicas = 1;
+
+	int[] levels = null;
+	boolean checkpoints = false;
+	boolean render = false;
+
+	/**
+	 * @param numCores - the size of the pool shared by all jobs
+	 * @param numConcurrent - how many jobs run at the same time, the others wait
+	 */
+	public TessellationBatch( final List< Job > jobs, final int numCores, final int numConcurrent )
+	{
+		if ( numCores < 1 )
+			throw new RuntimeException( "Number of cores must be at least 1, but is " + numCores );
+
+		if ( numConcurrent < 1 )
+			throw new RuntimeException( "Number of concurrent jobs must be at least 1, but is " + numConcurrent );
+
+		this.jobs = jobs;
+		this.numCores = numCores;
+		this.numConcurrent = Math.min( numConcurrent, Math.max( 1, jobs.size() ) );
+	}
+
+	/**
+	 * The convergence criteria of every job, see {@link ConvergenceCriteria}; the wall clock starts when the job starts and
+	 * also covers the pyramid, the Lloyd iterations and the replicas
+	 */
+	public void setCriteria( final int plateauWindow, final double plateauTolerance, final int maxNonImproving, final int maxIterations, final long wallClockMillis )
+	{
+		this.plateauWindow = plateauWindow;
+		this.plateauTolerance = plateauTolerance;
+		this.maxNonImproving = maxNonImproving;
+		this.maxIterations = maxIterations;
+		this.wallClockMillis = wallClockMillis;
+	}
+
+	/**
+	 * Starts every job with up to that many (area weighted) Lloyd iterations, see {@link TessellationHeadless#relax(int, boolean)}
+	 */
+	public void setLloyd( final int lloydIterations, final boolean lloydWeighted )
+	{
+		this.lloydIterations = lloydIterations;
+		this.lloydWeighted = lloydWeighted;
+	}
+
+	/**
+	 * Starts every job on downsampled masks, see {@link TessellationHeadless#runPyramid(int, int)}
+	 */
+	public void setPyramid( final int pyramidLevels, final int pyramidIterations )
+	{
+		this.pyramidLevels = pyramidLevels;
+		this.pyramidIterations = pyramidIterations;
+	}
+
+	/**
+	 * Every job runs its iterations with that many replicas per segment and keeps the best, 0 uses as many replicas
+	 * as the job has threads per segment, see {@link TessellationHeadless#runReplicas(int, int, double, ConvergenceCriteria)}
+	 */
+	public void setReplicas( final int numReplicas ) { this.numReplicas = numReplicas; }
+
+	/**
+	 * Every job also writes coarser levels, see {@link TessellationHeadless#writeLevels(File, int...)}
+	 */
+	public void setLevels( final int... coarserAreas ) { this.levels = coarserAreas; }
+
+	/**
+	 * Every job writes a checkpoint into its directory every 1000 iterations and continues from it if it exists
+	 */
+	public void setCheckpoints( final boolean checkpoints ) { this.checkpoints = checkpoints; }
+
+	/**
+	 * Every job saves the area image as voronoi_area.zip in its directory
+	 */
+	public void setRender( final boolean render ) { this.render = render; }
+
+	/**
+	 * Runs all jobs, a failing job is recorded in its progress file and does not stop the others. The first Error of a
+	 * job (e.g. out of memory) cancels the remaining jobs and is thrown.
+	 *
+	 * @return - the number of jobs that failed
+	 */
+	public int run()
+	{
+		final ForkJoinPool pool = new ForkJoinPool( numCores );
+
+		// the jobs only wait for their segments, the iterations run on the pool
+		final ExecutorService drivers = Executors.newFixedThreadPool( numConcurrent );
+
+		// the results in the order the jobs finish, so an Error is seen as soon as it happens
+		final ExecutorCompletionService< Boolean > completion = new ExecutorCompletionService< Boolean >( drivers );
+
+		final int numThreads = Math.max( 1, numCores / numConcurrent );
+		final ArrayList< Future< Boolean > > results = new ArrayList< Future< Boolean > >();
+
+		System.out.println( "running " + jobs.size() + " jobs on " + numCores + " cores, " + numConcurrent + " at a time with " + numThreads + " threads each" );
+
+		for ( final Job job : jobs )
+			results.add( completion.submit( new Callable< Boolean >()
+			{
+				@Override
+				public Boolean call() { return run( job, pool, numThreads ); }
+			}));
+
+		int numFailed = 0;
+
+		// the first Error of a job, the remaining jobs are cancelled
+		Error error = null;
+
+		try
+		{
+			for ( int i = 0; i < results.size() && error == null; ++i )
+			{
+				try
+				{
+					if ( !completion.take().get() )
+						++numFailed;
+				}
+				catch ( final ExecutionException e )
+				{
+					// the status of the job is already recorded
+					++numFailed;
+
+					if ( e.getCause() instanceof Error )
+						error = (Error)e.getCause();
+				}
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while running the batch: " + e );
+		}
+		finally
+		{
+			if ( error == null )
+			{
+				drivers.shutdown();
+				pool.shutdown();
+			}
+			else
+			{
+				// jobs that did not start yet never start, running jobs fail on the next iterations they submit
+				for ( final Future< Boolean > result : results )
+					result.cancel( true );
+
+				drivers.shutdownNow();
+				pool.shutdownNow();
+			}
+		}
+
+		if ( error != null )
+		{
+			System.out.println( "cancelled the remaining jobs after: " + error );
+
+			// the running jobs record their status and close their checkpoints
+			try
+			{
+				drivers.awaitTermination( 1, TimeUnit.MINUTES );
+			}
+			catch ( final InterruptedException e ) {}
+
+			throw error;
+		}
+
+		System.out.println( ( jobs.size() - numFailed ) + " of " + jobs.size() + " jobs done" );
+
+		return numFailed;
+	}
+
+	/**
+	 * @return - true if the job is done
+	 */
+	protected boolean run( final Job job, final ForkJoinPool pool, final int numThreads )
+	{
+		if ( isDone( job ) )
+		{
+			System.out.println( job + ": already done in '" + job.directory().getAbsolutePath() + "'" );
+			return true;
+		}
+
+		final long time = System.currentTimeMillis();
+		TessellationHeadless tessellation = null;
+
+		try
+		{
+			if ( !job.directory().exists() && !job.directory().mkdirs() )
+				throw new RuntimeException( "Could not create directory '" + job.directory().getAbsolutePath() + "'" );
+
+			final List< Roi > segments = TessellationTools.loadROIs( TessellationTools.assembleSegments( job.templateDirectory ) );
+			final Interval interval = TessellationTools.templateDimensions( job.templateDirectory );
+
+			// the wall clock starts with the job, it also covers the warm start
+			final ConvergenceCriteria criteria = new ConvergenceCriteria( segments.size(), plateauWindow, plateauTolerance, maxNonImproving, maxIterations, wallClockMillis );
+
+			final File checkpointFile = new File( job.directory(), checkpointFileName );
+			final boolean restored = checkpoints && checkpointFile.exists();
+
+			if ( restored )
+				tessellation = TessellationHeadless.restore( interval, segments, checkpointFile, job.targetArea, pool, numThreads );
+			else
+				tessellation = new TessellationHeadless( interval, segments, job.targetArea, pool, numThreads, job.seed );
+
+			tessellation.setDirectory( job.directory() );
+			tessellation.setVerbose( false );
+			tessellation.setProgress( job.progressFile() );
+
+			System.out.println( job + ": " + ( restored ? "continuing" : "starting" ) + " " + segments.size() + " segments in '" + job.directory().getAbsolutePath() + "'" );
+
+			// a restored tessellation is already past the warm start
+			if ( pyramidLevels > 0 && !restored )
+			{
+				tessellation.writeProgress( "pyramid" );
+				tessellation.runPyramid( pyramidLevels, pyramidIterations, criteria );
+			}
+
+			if ( lloydIterations > 0 && !restored )
+			{
+				tessellation.writeProgress( "relaxing" );
+				tessellation.relax( lloydIterations, lloydWeighted, criteria );
+			}
+
+			// also written during the replicas
+			if ( checkpoints )
+				tessellation.setCheckpoint( checkpointFile, 1000 );
+
+			// the best replicas continue below, they already did the iterations
+			if ( numReplicas != 1 )
+			{
+				tessellation.writeProgress( "replicas" );
+				tessellation.runReplicas( numReplicas, 1000, 0.01, criteria );
+			}
+
+			tessellation.run( criteria );
+
+			if ( levels != null )
+				tessellation.writeLevels( job.directory(), levels );
+
+			if ( render )
+				new FileSaver( tessellation.renderAreaImage() ).saveAsZip( new File( job.directory(), "voronoi_area.zip" ).getAbsolutePath() );
+
+			tessellation.writeProgress( "done" );
+
+			System.out.println( job + ": done after " + ( System.currentTimeMillis() - time ) / 1000 + " s" );
+
+			return true;
+		}
+		catch ( final Throwable e )
+		{
+			final String status = "failed: " + e;
+
+			if ( tessellation != null )
+				tessellation.writeProgress( status );
+			else
+				writeStatus( job.progressFile(), status );
+
+			System.out.println( job + ": " + status );
+
+			// e.g. out of memory, the batch should not go on as if nothing happened
+			if ( e instanceof Error )
+				throw (Error)e;
+
+			return false;
+		}
+		finally
+		{
+			// does not shut down the shared pool
+			if ( tessellation != null )
+				tessellation.close();
+		}
+	}
+
+	/**
+	 * @return - true if the progress file of the job says it is done
+	 */
+	public static boolean isDone( final Job job )
+	{
+		if ( !job.progressFile().exists() )
+			return false;
+
+		try
+		{
+			final BufferedReader in = TextFileAccess.openFileReadEx( job.progressFile() );
+			final String line = in.readLine();
+			in.close();
+
+			return line != null && line.equals( "status\tdone" );
+		}
+		catch ( final IOException e )
+		{
+			return false;
+		}
+	}
+
+	protected static void writeStatus( final File progressFile, final String status )
+	{
+		final PrintWriter out = TextFileAccess.openFileWrite( progressFile );
+		out.println( "status\t" + status );
+		out.close();
+	}
+
+	/**
+	 * Reads one job per line: &lt;templateDirectory&gt; &lt;targetArea&gt; [seed] [outputDirectory], separated by
+	 * whitespace. Empty lines and lines starting with # are ignored. Without an output directory a job writes into
+	 * outputRoot/&lt;template name&gt;_&lt;targetArea&gt;_&lt;seed&gt;.
+	 */
+	public static List< Job > readJobs( final File jobFile, final File outputRoot )
+	{
+		final ArrayList< Job > jobs = new ArrayList< Job >();
+
+		try
+		{
+			final BufferedReader in = TextFileAccess.openFileReadEx( jobFile );
+
+			String line;
+			int lineNumber = 0;
+
+			while ( ( line = in.readLine() ) != null )
+			{
+				++lineNumber;
+				line = line.trim();
+
+				if ( line.length() == 0 || line.startsWith( "#" ) )
+					continue;
+
+				final String[] entries = line.split( "\\s+" );
+
+				if ( entries.length < 2 )
+				{
+					in.close();
+					throw new RuntimeException( "Line " + lineNumber + " of '" + jobFile.getAbsolutePath() + "' is not <templateDirectory> <targetArea> [seed] [outputDirectory]: " + line );
+				}
+
+				final File templateDirectory = new File( entries[ 0 ] );
+				final int targetArea = Integer.parseInt( entries[ 1 ] );
+				final long seed = entries.length > 2 ? Long.parseLong( entries[ 2 ] ) : TessellationThread.defaultSeed;
+				final File directory = entries.length > 3 ? new File( entries[ 3 ] ) : new File( outputRoot, templateDirectory.getName() + "_" + targetArea + "_" + seed );
+
+				jobs.add( new Job( templateDirectory, targetArea, seed, directory ) );
+			}
+
+			in.close();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to read the jobs from '" + jobFile.getAbsolutePath() + "': " + e );
+		}
+
+		// two jobs writing into the same directory would overwrite each other
+		for ( int i = 0; i < jobs.size(); ++i )
+			for ( int j = i + 1; j < jobs.size(); ++j )
+				if ( jobs.get( i ).directory().getAbsoluteFile().equals( jobs.get( j ).directory().getAbsoluteFile() ) )
+					throw new RuntimeException( "Jobs '" + jobs.get( i ) + "' and '" + jobs.get( j ) + "' both write into '" + jobs.get( i ).directory().getAbsolutePath() + "'" );
+
+		return jobs;
+	}
+
+	public static void main( String[] args )
+	{
+		if ( args.length < 4 )
+		{
+			System.out.println( "usage: TessellationBatch <jobFile> <outputDirectory> <iterations> <cores> [concurrent=<jobs>] [checkpoint] [render]" );
+			System.out.println( "       [plateau=<iterations>,<relative tolerance>] [maxNonImproving=<iterations>] [maxMinutes=<minutes>] [lloyd=<iterations>[,weighted]]" );
+			System.out.println( "       [replicas[=<number>]] [pyramid=<levels>,<iterations per level>] [levels=<area>,<area>,...]" );
+			System.out.println( "  jobFile - one job per line: <templateDirectory> <targetArea> [seed] [outputDirectory]" );
+			System.out.println( "  outputDirectory - jobs without an output directory write into <outputDirectory>/<template name>_<targetArea>_<seed>" );
+			System.out.println( "  cores - the threads shared by all jobs" );
+			System.out.println( "  concurrent=<jobs> - how many jobs run at the same time, each with cores/jobs threads (default: all)" );
+			System.out.println( "  checkpoint - every job writes " + checkpointFileName + " every 1000 iterations and continues from it if it exists" );
+			System.out.println( "  render - every job saves the area image of its final tessellation as voronoi_area.zip" );
+			System.out.println( "  plateau, maxNonImproving, maxMinutes, lloyd, replicas, pyramid, levels - per job, like TessellationHeadless" );
+			System.out.println( "  jobs whose " + progressFileName + " says done are skipped" );
+			return;
+		}
+
+		System.setProperty( "java.awt.headless", "true" );
+
+		final List< Job > jobs = readJobs( new File( args[ 0 ] ), new File( args[ 1 ] ) );
+		final int numIterations = Integer.parseInt( args[ 2 ] );
+		final int numCores = Integer.parseInt( args[ 3 ] );
+
+		final TessellationOptions o = TessellationOptions.parse( args, 4,
+				"concurrent", "checkpoint", "render", "plateau", "maxNonImproving", "maxMinutes", "lloyd", "replicas", "pyramid", "levels" );
+
+		// every job has its own checkpoint file
+		if ( o.checkpointFile != null )
+			throw new RuntimeException( "checkpoint takes no file in a batch, every job writes " + checkpointFileName + " into its directory" );
+
+		final TessellationBatch batch = new TessellationBatch( jobs, numCores, o.numConcurrent > 0 ? o.numConcurrent : jobs.size() );
+
+		batch.setCriteria( o.plateauWindow, o.plateauTolerance, o.maxNonImproving, numIterations, o.maxMillis() );
+		batch.setLloyd( o.lloydIterations, o.lloydWeighted );
+		batch.setPyramid( o.pyramidLevels, o.pyramidIterations );
+		batch.setReplicas( o.numReplicas );
+		batch.setCheckpoints( o.checkpoint );
+		batch.setRender( o.render );
+
+		if ( o.levels != null )
+			batch.setLevels( o.levels );
+
+		final int numFailed = batch.run();
+
+		if ( numFailed > 0 )
+			System.exit( 1 );
+	}
+}
@@ -0,0 +1,415 @@
+package wt.tessellation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import net.imglib2.RealPoint;
+import net.imglib2.RealPointSampleList;
+
+/**
+ * A binary checkpoint of all segments of a tessellation, from which every {@link TessellationThread} can continue
+ * exactly where it was: the points, the state of the random number generator, the iteration, the last move and how
+ * it is optimized (strategy, label engine, expand/shrink interval).
+ *
+ * The latest state of every segment is collected with {@link #update(TessellationThread)} from the thread that runs
+ * the segment, {@link #writeAsync()} writes them in the background. Files are written to a temporary file first and
+ * renamed afterwards, so there is always a complete checkpoint on disk.
+ */
+public class TessellationCheckpoint
+{
+	final public static int magic = 0x54455353; // "TESS"
+	final public static int version = 2;
+
+	/**
+	 * The state of one segment, immutable once created
+	 */
+	public static class State
+	{
+		final public int id, iteration, lastDir, lastIteration;
+		final public boolean lastIterationUpdated;
+		final public double lastDX, lastDY, lastDist, lastSigma;
+		final public double errorArea, errorCirc, error;
+
+		// how the segment is optimized, the labels and errors depend on the label engine
+		final public TessellationThread.Strategy strategy;
+		final public Search.LabelEngine labelEngine;
+		final public int expandShrinkInterval;
+
+		// the random number generator, see RandomStream.restore()
+		final long randomKey, randomState;
+
+		// the points in the order of the point list
+		final int[] ids;
+		final double[] x, y;
+
+		public State(
+				final int id, final int iteration,
+				final double lastDX, final double lastDY, final int lastDir, final double lastDist, final double lastSigma,
+				final int lastIteration, final boolean lastIterationUpdated,
+				final double errorArea, final double errorCirc, final double error,
+				final TessellationThread.Strategy strategy, final Search.LabelEngine labelEngine, final int expandShrinkInterval,
+				final long randomKey, final long randomState, final int[] ids, final double[] x, final double[] y )
+		{
+			this.id = id;
+			this.iteration = iteration;
+			this.lastDX = lastDX;
+			this.lastDY = lastDY;
+			this.lastDir = lastDir;
+			this.lastDist = lastDist;
+			this.lastSigma = lastSigma;
+			this.lastIteration = lastIteration;
+			this.lastIterationUpdated = lastIterationUpdated;
+			this.errorArea = errorArea;
+			this.errorCirc = errorCirc;
+			this.error = error;
+			this.strategy = strategy;
+			this.labelEngine = labelEngine;
+			this.expandShrinkInterval = expandShrinkInterval;
+			this.randomKey = randomKey;
+			this.randomState = randomState;
+			this.ids = ids;
+			this.x = x;
+			this.y = y;
+		}
+
+		public int numPoints() { return ids.length; }
+
+		/**
+		 * @return - the same state with other points, e.g. downsampled
+		 */
+		public State withPoints( final double[] x, final double[] y )
+		{
+			return new State(
+					id, iteration, lastDX, lastDY, lastDir, lastDist, lastSigma, lastIteration, lastIterationUpdated,
+					errorArea, errorCirc, error, strategy, labelEngine, expandShrinkInterval, randomKey, randomState, ids, x, y );
+		}
+
+		/**
+		 * @return - the points as they were, also added to locations
+		 */
+		public RealPointSampleList< Segment > points( final HashMap< Integer, RealPoint > locations )
+		{
+			final RealPointSampleList< Segment > elements = new RealPointSampleList< Segment >( 2 );
+
+			for ( int i = 0; i < ids.length; ++i )
+			{
+				final RealPoint point = new RealPoint( new double[]{ x[ i ], y[ i ] } );
+				final Segment s = new Segment( ids[ i ] );
+				elements.add( point, s );
+
+				if ( locations != null )
+					locations.put( s.id(), point );
+			}
+
+			return elements;
+		}
+
+		/**
+		 * @return - a new random number generator that continues where the stored one was
+		 */
+		public RandomStream random() { return RandomStream.restore( randomKey, randomState ); }
+	}
+
+	final File file;
+	final AtomicReferenceArray< State > states;
+	final ExecutorService writer;
+	final AtomicBoolean writePending;
+
+	// the first failed background write, thrown by the next call
+	volatile Exception failure = null;
+
+	public TessellationCheckpoint( final File file, final int numSegments )
+	{
+		this.file = file;
+		this.states = new AtomicReferenceArray< State >( numSegments );
+		this.writer = Executors.newSingleThreadExecutor();
+		this.writePending = new AtomicBoolean( false );
+	}
+
+	public File file() { return file; }
+
+	/**
+	 * Remembers the current state of a segment, must be called from the thread that runs its iterations
+	 */
+	public void update( final TessellationThread t )
+	{
+		states.set( t.id(), t.state() );
+	}
+
+	/**
+	 * Remembers a state of a segment taken earlier, e.g. the best one of its replicas
+	 */
+	public void update( final State state )
+	{
+		states.set( state.id, state );
+	}
+
+	/**
+	 * Writes the latest states in the background, if a write is still pending this call does nothing
+	 * as the pending write will pick up the latest states anyways
+	 *
+	 * @return - the pending write, or null if there was already one
+	 * @throws RuntimeException - if a previous background write failed
+	 */
+	public Future< ? > writeAsync()
+	{
+		checkFailure();
+
+		if ( !writePending.compareAndSet( false, true ) )
+			return null;
+
+		return writer.submit( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				writePending.set( false );
+
+				try
+				{
+					write( file, states() );
+				}
+				catch ( final IOException e )
+				{
+					// the previous checkpoint is still intact, nobody reads the future
+					if ( failure == null )
+						failure = e;
+				}
+				catch ( final RuntimeException e )
+				{
+					// e.g. a segment without state
+					if ( failure == null )
+						failure = e;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes the latest states and waits until they are on disk
+	 *
+	 * @throws RuntimeException - if a previous background write failed
+	 */
+	public void write()
+	{
+		checkFailure();
+
+		try
+		{
+			write( file, states() );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to write checkpoint '" + file.getAbsolutePath() + "': " + e );
+		}
+	}
+
+	/**
+	 * Waits for pending writes and stops the background writer
+	 *
+	 * @throws RuntimeException - if a background write failed
+	 */
+	public void close()
+	{
+		writer.shutdown();
+
+		try
+		{
+			while ( !writer.awaitTermination( 1, TimeUnit.MINUTES ) );
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while writing checkpoint '" + file.getAbsolutePath() + "': " + e );
+		}
+
+		checkFailure();
+	}
+
+	protected void checkFailure()
+	{
+		if ( failure != null )
+			throw new RuntimeException( "Failed to write checkpoint '" + file.getAbsolutePath() + "': " + failure, failure );
+	}
+
+	protected List< State > states()
+	{
+		final ArrayList< State > list = new ArrayList< State >();
+
+		for ( int i = 0; i < states.length(); ++i )
+			if ( states.get( i ) == null )
+				throw new RuntimeException( "No state for segment " + i + " yet." );
+			else
+				list.add( states.get( i ) );
+
+		return list;
+	}
+
+	public static void write( final File file, final List< State > states ) throws IOException
+	{
+		final File tmp = new File( file.getAbsolutePath() + ".tmp" );
+		final FileOutputStream stream = new FileOutputStream( tmp );
+		final DataOutputStream out = new DataOutputStream( new BufferedOutputStream( stream ) );
+
+		try
+		{
+			out.writeInt( magic );
+			out.writeInt( version );
+			out.writeInt( states.size() );
+
+			for ( final State s : states )
+			{
+				out.writeInt( s.id );
+				out.writeInt( s.iteration );
+				out.writeDouble( s.lastDX );
+				out.writeDouble( s.lastDY );
+				out.writeInt( s.lastDir );
+				out.writeDouble( s.lastDist );
+				out.writeDouble( s.lastSigma );
+				out.writeInt( s.lastIteration );
+				out.writeBoolean( s.lastIterationUpdated );
+				out.writeDouble( s.errorArea );
+				out.writeDouble( s.errorCirc );
+				out.writeDouble( s.error );
+
+				out.writeUTF( s.strategy.name() );
+				out.writeUTF( s.labelEngine.name() );
+				out.writeInt( s.expandShrinkInterval );
+
+				out.writeLong( s.randomKey );
+				out.writeLong( s.randomState );
+
+				out.writeInt( s.ids.length );
+
+				for ( int i = 0; i < s.ids.length; ++i )
+				{
+					out.writeInt( s.ids[ i ] );
+					out.writeDouble( s.x[ i ] );
+					out.writeDouble( s.y[ i ] );
+				}
+			}
+
+			// the data has to be on disk before the rename, otherwise a crash can leave the new name with incomplete data
+			out.flush();
+			stream.getFD().sync();
+			out.close();
+		}
+		catch ( final IOException e )
+		{
+			out.close();
+			tmp.delete();
+			throw e;
+		}
+
+		try
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE );
+		}
+		catch ( final AtomicMoveNotSupportedException e )
+		{
+			Files.move( tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING );
+		}
+	}
+
+	public static List< State > read( final File file )
+	{
+		final ArrayList< State > states = new ArrayList< State >();
+
+		try
+		{
+			final DataInputStream in = new DataInputStream( new BufferedInputStream( new FileInputStream( file ) ) );
+
+			if ( in.readInt() != magic )
+			{
+				in.close();
+				throw new RuntimeException( "'" + file.getAbsolutePath() + "' is no tessellation checkpoint." );
+			}
+
+			final int v = in.readInt();
+
+			if ( v != version )
+			{
+				in.close();
+				throw new RuntimeException( "Unsupported checkpoint version " + v + " in '" + file.getAbsolutePath() + "'." );
+			}
+
+			final int numSegments = in.readInt();
+
+			for ( int j = 0; j < numSegments; ++j )
+			{
+				final int id = in.readInt();
+				final int iteration = in.readInt();
+				final double lastDX = in.readDouble();
+				final double lastDY = in.readDouble();
+				final int lastDir = in.readInt();
+				final double lastDist = in.readDouble();
+				final double lastSigma = in.readDouble();
+				final int lastIteration = in.readInt();
+				final boolean lastIterationUpdated = in.readBoolean();
+				final double errorArea = in.readDouble();
+				final double errorCirc = in.readDouble();
+				final double error = in.readDouble();
+
+				final TessellationThread.Strategy strategy;
+				final Search.LabelEngine labelEngine;
+
+				try
+				{
+					strategy = TessellationThread.Strategy.valueOf( in.readUTF() );
+					labelEngine = Search.LabelEngine.valueOf( in.readUTF() );
+				}
+				catch ( final IllegalArgumentException e )
+				{
+					in.close();
+					throw new RuntimeException( "Unknown strategy or label engine of segment " + id + " in '" + file.getAbsolutePath() + "': " + e.getMessage() );
+				}
+
+				final int expandShrinkInterval = in.readInt();
+
+				final long randomKey = in.readLong();
+				final long randomState = in.readLong();
+
+				final int numPoints = in.readInt();
+				final int[] ids = new int[ numPoints ];
+				final double[] x = new double[ numPoints ];
+				final double[] y = new double[ numPoints ];
+
+				for ( int i = 0; i < numPoints; ++i )
+				{
+					ids[ i ] = in.readInt();
+					x[ i ] = in.readDouble();
+					y[ i ] = in.readDouble();
+				}
+
+				states.add( new State(
+						id, iteration, lastDX, lastDY, lastDir, lastDist, lastSigma, lastIteration, lastIterationUpdated,
+						errorArea, errorCirc, error, strategy, labelEngine, expandShrinkInterval, randomKey, randomState, ids, x, y ) );
+			}
+
+			in.close();
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to read checkpoint '" + file.getAbsolutePath() + "': " + e );
+		}
+
+		return states;
+	}
+}
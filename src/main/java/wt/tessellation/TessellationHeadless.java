@@ -0,0 +1,665 @@
+package wt.tessellation;
+
+import ij.ImagePlus;
+import ij.gui.Roi;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import mpicbg.spim.io.TextFileAccess;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import wt.alignment.ImageTools;
+import wt.tessellation.TessellationScheduler.IterationListener;
+
+/**
+ * Runs the tessellation without any windows, e.g. on cluster nodes without a display.
+ * Nothing is drawn unless {@link #renderAreaImage()} is called.
+ */
+public class TessellationHeadless
+{
+	final Interval interval;
+	final int targetArea;
+	final int numThreads;
+	final ArrayList< TessellationThread > threads;
+	final ForkJoinPool pool;
+
+	// a pool shared with other tessellations is not shut down by close()
+	final boolean sharedPool;
+
+	// where points, levels and the area image are written, null is the working directory
+	File directory = null;
+
+	// prints the state of every segment to the console, it is always logged
+	boolean verbose = true;
+
+	// the state of all segments, written every 1000 iterations of any segment and at the end, if set
+	File progressFile = null;
+	String status = "created";
+	boolean[] converged;
+
+	// written every checkpointInterval iterations of a segment, if set
+	TessellationCheckpoint checkpoint = null;
+	int checkpointInterval = 1000;
+
+	// labels written in the background, if set
+	TessellationSnapshotWriter snapshots = null;
+
+	public TessellationHeadless( final Interval interval, final List< Roi > segments, final int targetArea, final int numThreads )
+	{
+		this( interval, segments, targetArea, numThreads, TessellationThread.defaultSeed );
+	}
+
+	/**
+	 * For a given seed and number of threads the result is always the same, see {@link RandomStream}
+	 */
+	public TessellationHeadless( final Interval interval, final List< Roi > segments, final int targetArea, final int numThreads, final long seed )
+	{
+		this( interval, segments, null, null, targetArea, null, numThreads, seed );
+	}
+
+	/**
+	 * Runs on a pool shared with other tessellations, numThreads is its share of the pool. For a given seed and
+	 * numThreads the result is the same as with a pool of its own.
+	 */
+	public TessellationHeadless( final Interval interval, final List< Roi > segments, final int targetArea, final ForkJoinPool pool, final int numThreads, final long seed )
+	{
+		this( interval, segments, null, null, targetArea, pool, numThreads, seed );
+	}
+
+	public TessellationHeadless( final Interval interval, final List< Roi > segments, final List< File > currentState, final int targetArea, final int numThreads )
+	{
+		this( interval, segments, currentState, null, targetArea, null, numThreads, TessellationThread.defaultSeed );
+	}
+
+	protected TessellationHeadless( final Interval interval, final List< Roi > segments, final List< File > currentState, final List< TessellationCheckpoint.State > checkpointStates, final int targetArea, final ForkJoinPool pool, final int numThreads, final long seed )
+	{
+		if ( interval == null )
+			throw new RuntimeException( "Interval is null, error loading it?" );
+
+		if ( segments == null )
+			throw new RuntimeException( "ROI segment list is null, error loading it?" );
+
+		if ( targetArea <= 0 )
+			throw new RuntimeException( "Target area must be positive, but is " + targetArea );
+
+		if ( numThreads < 1 )
+			throw new RuntimeException( "Number of threads must be at least 1, but is " + numThreads );
+
+		if ( checkpointStates != null && checkpointStates.size() != segments.size() )
+			throw new RuntimeException( "Checkpoint has " + checkpointStates.size() + " segments, but there are " + segments.size() + " ROIs." );
+
+		this.interval = interval;
+		this.targetArea = targetArea;
+		this.numThreads = numThreads;
+		this.sharedPool = pool != null;
+		this.pool = sharedPool ? pool : new ForkJoinPool( numThreads );
+		this.converged = new boolean[ segments.size() ];
+		this.threads = new ArrayList< TessellationThread >();
+
+		final int numWorkers = Math.max( 1, numThreads / segments.size() );
+
+		for ( int i = 0; i < segments.size(); ++i )
+		{
+			final TessellationThread t;
+
+			if ( checkpointStates != null )
+				t = new TessellationThread( i, segments.get( i ), interval, targetArea, checkpointStates.get( i ) );
+			else if ( currentState == null || currentState.size() != segments.size() )
+				t = new TessellationThread( i, segments.get( i ), interval, targetArea, seed );
+			else
+			{
+				t = new TessellationThread( i, segments.get( i ), interval, targetArea, currentState.get( i ) );
+				t.setSeed( seed );
+			}
+
+			t.parallelize( pool, numWorkers );
+			threads.add( t );
+		}
+	}
+
+	/**
+	 * @return - a tessellation that continues exactly from the state in the checkpoint file
+	 */
+	public static TessellationHeadless restore( final Interval interval, final List< Roi > segments, final File checkpointFile, final int targetArea, final int numThreads )
+	{
+		return restore( interval, segments, checkpointFile, targetArea, null, numThreads );
+	}
+
+	/**
+	 * @return - a tessellation that continues exactly from the state in the checkpoint file, on a shared pool if it is not null
+	 */
+	public static TessellationHeadless restore( final Interval interval, final List< Roi > segments, final File checkpointFile, final int targetArea, final ForkJoinPool pool, final int numThreads )
+	{
+		final List< TessellationCheckpoint.State > states = TessellationCheckpoint.read( checkpointFile );
+		final TessellationHeadless tessellation = new TessellationHeadless( interval, segments, null, states, targetArea, pool, numThreads, TessellationThread.defaultSeed );
+
+		// the labels and errors only depend on the points, a different error means a different template or target area
+		for ( final TessellationThread t : tessellation.threads )
+		{
+			final double error = states.get( t.id() ).error;
+
+			if ( Math.abs( t.error() - error ) > 1e-9 * Math.abs( error ) )
+				throw new RuntimeException( "Segment " + t.id() + " restored from '" + checkpointFile.getAbsolutePath() + "' has error " + t.error() + ", but it was saved with error " + error + ". Was the checkpoint written for another template or target area?" );
+		}
+
+		return tessellation;
+	}
+
+	public List< TessellationThread > tessellations() { return threads; }
+	public File directory() { return directory; }
+
+	/**
+	 * Writes the points, logs, levels and the area image into this directory instead of the working directory,
+	 * call before the logs are opened by the first iteration
+	 */
+	public void setDirectory( final File directory )
+	{
+		if ( !directory.exists() && !directory.mkdirs() )
+			throw new RuntimeException( "Could not create directory '" + directory.getAbsolutePath() + "'" );
+
+		this.directory = directory;
+
+		for ( final TessellationThread t : threads )
+			t.setDirectory( directory );
+	}
+
+	/**
+	 * @param verbose - if false the state of the segments is only logged, not printed
+	 */
+	public void setVerbose( final boolean verbose ) { this.verbose = verbose; }
+
+	/**
+	 * Writes the status and the iteration, error and convergence of every segment into this file every 1000 iterations
+	 * of any segment and at the end of {@link #run(ConvergenceCriteria)}
+	 */
+	public void setProgress( final File file )
+	{
+		this.progressFile = file;
+		writeProgress( status );
+	}
+
+	/**
+	 * Updates the progress file if one is set, e.g. with "running", "done" or "failed: ...". Reads the state of segments
+	 * that might be running, so the numbers are only approximately from the same moment.
+	 */
+	public synchronized void writeProgress( final String status )
+	{
+		this.status = status;
+
+		if ( progressFile == null )
+			return;
+
+		final PrintWriter out = TextFileAccess.openFileWrite( progressFile );
+
+		out.println( "status\t" + status );
+		out.println( "targetArea\t" + targetArea );
+		out.println( "segment\titeration\terror\tconverged" );
+
+		for ( final TessellationThread t : threads )
+			out.println( t.id() + "\t" + t.iteration() + "\t" + t.error() + "\t" + converged[ t.id() ] );
+
+		out.close();
+	}
+
+	/**
+	 * Writes a checkpoint of all segments in the background every checkpointInterval iterations of any segment and at the end
+	 */
+	public void setCheckpoint( final File file, final int checkpointInterval )
+	{
+		this.checkpoint = new TessellationCheckpoint( file, threads.size() );
+		this.checkpointInterval = checkpointInterval;
+
+		for ( final TessellationThread t : threads )
+			checkpoint.update( t );
+	}
+
+	/**
+	 * Writes the labels of every segment in the background every everyNth iterations or if its error dropped by minImprovement
+	 */
+	public void setSnapshots( final File directory, final int everyNth, final double minImprovement )
+	{
+		this.snapshots = new TessellationSnapshotWriter( directory, threads.size(), 64, everyNth, minImprovement );
+	}
+
+	/**
+	 * Optimizes all segments in parallel on masks downsampled by 2^numLevels, ..., 4, 2, iterationsPerLevel iterations
+	 * each (see {@link TessellationPyramid}), to warm-start the full resolution
+	 */
+	public void runPyramid( final int numLevels, final int iterationsPerLevel )
+	{
+		runPyramid( numLevels, iterationsPerLevel, null );
+	}
+
+	/**
+	 * Like {@link #runPyramid(int, int)}, but stops once the wall clock budget of the criteria is used up
+	 */
+	public void runPyramid( final int numLevels, final int iterationsPerLevel, final ConvergenceCriteria criteria )
+	{
+		final ArrayList< Callable< Integer > > tasks = new ArrayList< Callable< Integer > >();
+
+		for ( final TessellationThread t : threads )
+			tasks.add( new Callable< Integer >()
+			{
+				@Override
+				public Integer call() { return new TessellationPyramid( t, interval ).run( numLevels, iterationsPerLevel, criteria ); }
+			});
+
+		try
+		{
+			final List< Future< Integer > > results = pool.invokeAll( tasks );
+
+			for ( int i = 0; i < threads.size(); ++i )
+			{
+				final TessellationThread t = threads.get( i );
+
+				// also throws if the task failed
+				final int n = results.get( i ).get();
+
+				if ( verbose )
+					System.out.println( "segment " + t.id() + ": " + n + " pyramid levels, error=" + t.error() );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while running the pyramid: " + e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Running the pyramid failed: " + e.getCause(), e.getCause() );
+		}
+	}
+
+	/**
+	 * Runs Lloyd iterations on all segments in parallel until no point moves by more than 0.1 pixels,
+	 * to warm-start the line search of {@link #run(int)}
+	 */
+	public void relax( final int maxIterations, final boolean areaWeighted )
+	{
+		relax( maxIterations, areaWeighted, null );
+	}
+
+	/**
+	 * Like {@link #relax(int, boolean)}, but stops once the wall clock budget of the criteria is used up
+	 */
+	public void relax( final int maxIterations, final boolean areaWeighted, final ConvergenceCriteria criteria )
+	{
+		final ArrayList< Callable< Integer > > tasks = new ArrayList< Callable< Integer > >();
+
+		for ( final TessellationThread t : threads )
+			tasks.add( new Callable< Integer >()
+			{
+				@Override
+				public Integer call() { return t.relax( maxIterations, 0.1, areaWeighted, criteria ); }
+			});
+
+		try
+		{
+			final List< Future< Integer > > results = pool.invokeAll( tasks );
+
+			for ( int i = 0; i < threads.size(); ++i )
+			{
+				final TessellationThread t = threads.get( i );
+
+				// also throws if the task failed
+				final int n = results.get( i ).get();
+
+				if ( verbose )
+					System.out.println( "segment " + t.id() + ": " + n + " Lloyd iterations, error=" + t.error() );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while relaxing: " + e );
+		}
+		catch ( final ExecutionException e )
+		{
+			throw new RuntimeException( "Relaxing failed: " + e.getCause(), e.getCause() );
+		}
+	}
+
+	/**
+	 * Runs numReplicas replicas of every segment at different temperatures until they did the given number of iterations,
+	 * exchanging temperatures every exchangeInterval iterations (see {@link ParallelTempering}). Afterwards every segment
+	 * is replaced by its best replica. numReplicas &lt; 1 uses as many replicas as there are threads per segment.
+	 */
+	public void runReplicas( final int numReplicas, final int numIterations, final int exchangeInterval, final double maxTemperature )
+	{
+		runReplicas( numReplicas, exchangeInterval, maxTemperature, ConvergenceCriteria.iterations( threads.size(), numIterations ) );
+	}
+
+	/**
+	 * Like {@link #runReplicas(int, int, int, double)}, but the replicas of a segment stop once it converged by the criteria,
+	 * which are checked on the replica at temperature 0. If a checkpoint is set, the best state of every segment is written
+	 * at every exchange.
+	 */
+	public void runReplicas( final int numReplicas, final int exchangeInterval, final double maxTemperature, final ConvergenceCriteria criteria )
+	{
+		final int n = numReplicas < 1 ? Math.max( 1, numThreads / threads.size() ) : numReplicas;
+		final int numWorkers = Math.max( 1, numThreads / ( threads.size() * n ) );
+		final int numIterations = criteria.maxIterations > 0 ? criteria.maxIterations : Integer.MAX_VALUE;
+
+		final ArrayList< ParallelTempering > tempering = new ArrayList< ParallelTempering >();
+
+		for ( final TessellationThread t : threads )
+		{
+			final ParallelTempering pt = new ParallelTempering( t, interval, n, maxTemperature );
+
+			for ( final TessellationThread r : pt.replicas() )
+				r.parallelize( pool, numWorkers );
+
+			tempering.add( pt );
+		}
+
+		if ( verbose )
+			System.out.println( "running " + n + " replicas of " + threads.size() + " segments with " + numWorkers + " workers each" );
+
+		// all replicas of a segment have done the same number of iterations, unless it converged
+		final int[] end = new int[ threads.size() ];
+		final AtomicIntegerArray done = new AtomicIntegerArray( threads.size() );
+
+		while ( true )
+		{
+			final ArrayList< TessellationThread > all = new ArrayList< TessellationThread >();
+
+			for ( int i = 0; i < threads.size(); ++i )
+			{
+				final ParallelTempering pt = tempering.get( i );
+				end[ i ] = (int)Math.min( numIterations, (long)pt.replicas[ 0 ].iteration() + exchangeInterval );
+
+				if ( done.get( i ) == 0 && pt.replicas[ 0 ].iteration() < numIterations )
+					all.addAll( pt.replicas() );
+			}
+
+			if ( all.size() == 0 )
+				break;
+
+			new TessellationScheduler( all, pool, new IterationListener()
+			{
+				@Override
+				public boolean start( final TessellationThread t )
+				{
+					return !converged( t ) && t.iteration() < end[ t.id() ];
+				}
+
+				@Override
+				public boolean iterationFinished( final TessellationThread t, final boolean updated )
+				{
+					return !converged( t ) && t.iteration() < end[ t.id() ];
+				}
+
+				// the temperatures only change between the rounds, the replica at 0 is the one the criteria follow
+				protected boolean converged( final TessellationThread t )
+				{
+					if ( t.temperature() == 0 && criteria.converged( t ) )
+						done.set( t.id(), 1 );
+
+					return done.get( t.id() ) != 0;
+				}
+			}).run();
+
+			for ( final ParallelTempering pt : tempering )
+				if ( all.contains( pt.replicas[ 0 ] ) )
+					pt.exchange();
+
+			// a killed run continues from the best states
+			if ( checkpoint != null )
+			{
+				for ( final ParallelTempering pt : tempering )
+					checkpoint.update( pt.bestState() );
+
+				checkpoint.writeAsync();
+			}
+		}
+
+		for ( int i = 0; i < threads.size(); ++i )
+		{
+			final ParallelTempering pt = tempering.get( i );
+			final TessellationThread t = pt.best();
+
+			t.parallelize( pool, Math.max( 1, numThreads / threads.size() ) );
+			threads.set( i, t );
+
+			if ( verbose )
+				System.out.println( t.id() + "\tbest replica error=" + t.error() + ", " + Math.round( pt.acceptanceRate() * 100 ) + "% of the exchanges accepted" );
+		}
+	}
+
+	/**
+	 * Runs every segment until it did the given number of iterations, writes the points every 1000 iterations and at the end
+	 */
+	public void run( final int numIterations )
+	{
+		run( ConvergenceCriteria.iterations( threads.size(), numIterations ) );
+	}
+
+	/**
+	 * Runs every segment until it converged, converged segments stop while the others continue.
+	 * Writes the points every 1000 iterations and at the end, a final checkpoint if one is set.
+	 */
+	public void run( final ConvergenceCriteria criteria )
+	{
+		for ( final TessellationThread t : threads )
+			printCurrentState( t );
+
+		writeProgress( "running" );
+
+		new TessellationScheduler( threads, pool, new IterationListener()
+		{
+			@Override
+			public boolean start( final TessellationThread t )
+			{
+				// e.g. restored from a checkpoint that was written after it converged
+				return !converged( t, criteria );
+			}
+
+			@Override
+			public boolean iterationFinished( final TessellationThread t, final boolean updated )
+			{
+				if ( updated )
+					printCurrentState( t );
+
+				if ( t.iteration() % 1000 == 0 )
+				{
+					TessellationTools.writePoints( t );
+					t.logFile().flush();
+					writeProgress( status );
+				}
+
+				if ( snapshots != null )
+					snapshots.offer( t );
+
+				if ( checkpoint != null && t.iteration() % checkpointInterval == 0 )
+				{
+					checkpoint.update( t );
+					checkpoint.writeAsync();
+				}
+
+				return !converged( t, criteria );
+			}
+		}).run();
+
+		for ( final TessellationThread t : threads )
+		{
+			TessellationTools.writePoints( t );
+			t.logFile().flush();
+
+			if ( checkpoint != null )
+				checkpoint.update( t );
+		}
+
+		if ( checkpoint != null )
+			checkpoint.write();
+
+		writeProgress( "finished" );
+	}
+
+	protected boolean converged( final TessellationThread t, final ConvergenceCriteria criteria )
+	{
+		if ( !criteria.converged( t ) )
+			return false;
+
+		converged[ t.id() ] = true;
+
+		if ( verbose )
+			System.out.println( t.id() + "\tconverged after " + t.iteration() + " iterations: " + criteria.reason( t.id() ) );
+
+		return true;
+	}
+
+	protected void printCurrentState( final TessellationThread t )
+	{
+		if ( verbose )
+			TessellationTools.printCurrentState( t );
+		else
+			t.logFile().println( TessellationTools.currentState( t ) );
+	}
+
+	/**
+	 * Closes logs, checkpoint and snapshots, and shuts the pool down unless it is shared
+	 */
+	public void close()
+	{
+		if ( !sharedPool )
+			pool.shutdown();
+
+		if ( checkpoint != null )
+			checkpoint.close();
+
+		if ( snapshots != null )
+			snapshots.close();
+
+		for ( final TessellationThread t : threads )
+			t.logFile().close();
+	}
+
+	/**
+	 * Writes the current tessellation and coarser levels merged from it (see {@link TessellationHierarchy}) into the directory
+	 *
+	 * @param coarserAreas - the target areas of the coarser levels, ascending
+	 */
+	public void writeLevels( final File directory, final int... coarserAreas )
+	{
+		final TessellationHierarchy hierarchy = new TessellationHierarchy( CompiledTessellation.compile( interval, threads ), targetArea, coarserAreas );
+
+		try
+		{
+			hierarchy.write( directory );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( "Failed to write the tessellation levels to '" + directory.getAbsolutePath() + "': " + e );
+		}
+
+		for ( int k = 0; k < hierarchy.numLevels(); ++k )
+			if ( verbose )
+				System.out.println( "level " + k + ": target area " + hierarchy.targetArea( k ) + ", " + hierarchy.level( k ).numLabels() + " cells" );
+	}
+
+	/**
+	 * @return - an image of the area of all segments, it is not shown
+	 */
+	public ImagePlus renderAreaImage()
+	{
+		final Img< FloatType > img = ArrayImgs.floats( interval.dimension( 0 ), interval.dimension( 1 ) );
+
+		for ( final TessellationThread t : threads )
+			TessellationTools.drawArea( t.pointList(), img );
+
+		final ImagePlus imp = new ImagePlus( "voronoiArea", ImageTools.wrap( img ) );
+		imp.setDisplayRange( 0, targetArea * 2 );
+
+		return imp;
+	}
+
+	public static void main( String[] args )
+	{
+		if ( args.length < 4 )
+		{
+			System.out.println( "usage: TessellationHeadless <templateDirectory> <targetArea> <iterations> <threads> [render] [checkpoint=<file>] [snapshots=<dir>]" );
+			System.out.println( "       [plateau=<iterations>,<relative tolerance>] [maxNonImproving=<iterations>] [maxMinutes=<minutes>] [lloyd=<iterations>[,weighted]]" );
+			System.out.println( "       [replicas[=<number>]] [pyramid=<levels>,<iterations per level>] [levels=<area>,<area>,...]" );
+			System.out.println( "       [seed=<seed>]" );
+			System.out.println( "  render - save the area image of the final tessellation as voronoi_area.zip" );
+			System.out.println( "  checkpoint=<file> - continue from this checkpoint if it exists and update it every 1000 iterations" );
+			System.out.println( "  snapshots=<dir> - write the labels every 100 iterations or if the error dropped by 1%" );
+			System.out.println( "  plateau=<iterations>,<relative tolerance> - stop a segment once its error improved by less than that within the iterations" );
+			System.out.println( "  maxNonImproving=<iterations> - stop a segment once its error did not improve for that many iterations" );
+			System.out.println( "  maxMinutes=<minutes> - stop all segments after that time" );
+			System.out.println( "  lloyd=<iterations>[,weighted] - start with up to that many (area weighted) Lloyd iterations" );
+			System.out.println( "  pyramid=<levels>,<iterations> - start on masks downsampled by 2^levels ... 2 with that many iterations each" );
+			System.out.println( "  replicas[=<number>] - run the iterations with that many replicas per segment (default: threads per segment) and keep the best" );
+			System.out.println( "  levels=<area>,<area>,... - also save nested coarser tessellations with these target areas by merging the final one" );
+			System.out.println( "  seed=<seed> - seed of the random numbers, the same seed and number of threads give the same result (default: " + TessellationThread.defaultSeed + ")" );
+			return;
+		}
+
+		System.setProperty( "java.awt.headless", "true" );
+
+		final File roiDirectory = new File( args[ 0 ] );
+		final int targetArea = Integer.parseInt( args[ 1 ] );
+		final int numIterations = Integer.parseInt( args[ 2 ] );
+		final int numThreads = Integer.parseInt( args[ 3 ] );
+
+		final TessellationOptions o = TessellationOptions.parse( args, 4,
+				"render", "checkpoint", "snapshots", "plateau", "maxNonImproving", "maxMinutes", "lloyd", "replicas", "pyramid", "levels", "seed" );
+
+		if ( o.checkpoint && o.checkpointFile == null )
+			throw new RuntimeException( "checkpoint needs a file: checkpoint=<file>" );
+
+		final List< Roi > segments = TessellationTools.loadROIs( TessellationTools.assembleSegments( roiDirectory ) );
+		final Interval interval = TessellationTools.templateDimensions( roiDirectory );
+
+		// the wall clock starts now, it also covers the warm start
+		final ConvergenceCriteria criteria = new ConvergenceCriteria(
+				segments.size(), o.plateauWindow, o.plateauTolerance, o.maxNonImproving, numIterations, o.maxMillis() );
+
+		final TessellationHeadless tessellation;
+		final boolean restored = o.checkpointFile != null && o.checkpointFile.exists();
+
+		if ( restored )
+			tessellation = restore( interval, segments, o.checkpointFile, targetArea, numThreads );
+		else
+			tessellation = new TessellationHeadless( interval, segments, targetArea, numThreads, o.seed );
+
+		// a restored tessellation is already past the warm start
+		if ( o.pyramidLevels > 0 && !restored )
+			tessellation.runPyramid( o.pyramidLevels, o.pyramidIterations, criteria );
+
+		if ( o.lloydIterations > 0 && !restored )
+			tessellation.relax( o.lloydIterations, o.lloydWeighted, criteria );
+
+		// also written during the replicas
+		if ( o.checkpointFile != null )
+			tessellation.setCheckpoint( o.checkpointFile, 1000 );
+
+		// the best replicas continue below, they already did the iterations
+		if ( o.numReplicas != 1 )
+			tessellation.runReplicas( o.numReplicas, 1000, 0.01, criteria );
+
+		if ( o.snapshotDirectory != null )
+			tessellation.setSnapshots( o.snapshotDirectory, 100, 0.01 );
+
+		tessellation.run( criteria );
+
+		// next to the points
+		if ( o.levels != null )
+			tessellation.writeLevels( tessellation.directory() != null ? tessellation.directory() : new File( "." ), o.levels );
+
+		if ( o.render )
+			new FileSaver( tessellation.renderAreaImage() ).saveAsZip( "voronoi_area.zip" );
+
+		tessellation.close();
+	}
+}
@@ -0,0 +1,550 @@
+package wt.tessellation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Nested tessellations of increasing target area built from one finished tessellation. Every cell of a coarser level
+ * is a union of cells of the level below, so measurements of all levels agree where they overlap.
+ *
+ * The cells of a roi are merged by Lloyd iterations on the cells of the level below: every cell is assigned to the
+ * nearest coarse center, the centers move to the area weighted center of mass of their cells. The distances are
+ * power distances with a weight per center that grows while it has too few pixels, which balances the areas. The
+ * centers start spread out by farthest point sampling, one per targetArea pixels of the roi. Afterwards every coarse
+ * cell is made connected over the adjacency of the cells, which the nearest centers alone do not ensure in concave rois.
+ */
+public class TessellationHierarchy
+{
+	final public static int maxIterations = 100;
+
+	// how many of the nearest centers compete for a cell, and how fast the weights follow the area error (pixels^2 per pixel)
+	final public static int numCandidates = 8;
+	final public static double balance = 0.25;
+
+	final int[] targetArea;
+	final CompiledTessellation[] level;
+
+	// parent[ k ][ l ] is the label in level k + 1 that contains label l of level k
+	final int[][] parent;
+
+	/**
+	 * @param finest - the finest level, e.g. {@link CompiledTessellation#compile(net.imglib2.Interval, java.util.List)}
+	 * @param finestArea - the target area it was optimized for
+	 * @param coarserAreas - the target areas of the coarser levels, ascending
+	 */
+	public TessellationHierarchy( final CompiledTessellation finest, final int finestArea, final int... coarserAreas )
+	{
+		this.targetArea = new int[ coarserAreas.length + 1 ];
+		this.level = new CompiledTessellation[ coarserAreas.length + 1 ];
+		this.parent = new int[ coarserAreas.length ][];
+
+		targetArea[ 0 ] = finestArea;
+		level[ 0 ] = finest;
+
+		for ( int k = 0; k < coarserAreas.length; ++k )
+		{
+			if ( coarserAreas[ k ] <= targetArea[ k ] )
+				throw new RuntimeException( "Target areas must be ascending, but " + coarserAreas[ k ] + " follows " + targetArea[ k ] );
+
+			targetArea[ k + 1 ] = coarserAreas[ k ];
+			parent[ k ] = merge( level[ k ], coarserAreas[ k ] );
+			level[ k + 1 ] = coarsen( level[ k ], parent[ k ] );
+		}
+	}
+
+	public int numLevels() { return level.length; }
+	public int targetArea( final int k ) { return targetArea[ k ]; }
+	public CompiledTessellation level( final int k ) { return level[ k ]; }
+
+	/**
+	 * @return - the label of level k + 1 that contains label l of level k
+	 */
+	public int parent( final int k, final int l ) { return parent[ k ][ l ]; }
+
+	/**
+	 * Writes the finest level as {@link CompiledTessellation#fileName} and every coarser level as
+	 * {@link CompiledTessellation#file(File, int)} into the directory
+	 */
+	public void write( final File directory ) throws IOException
+	{
+		level[ 0 ].write( CompiledTessellation.file( directory ) );
+
+		for ( int k = 1; k < level.length; ++k )
+			level[ k ].write( CompiledTessellation.file( directory, targetArea[ k ] ) );
+	}
+
+	/**
+	 * @return - for every label of the tessellation the coarse label it is merged into, the coarse labels are
+	 * ordered by roi like the labels
+	 */
+	public static int[] merge( final CompiledTessellation t, final int targetArea )
+	{
+		final int[] parent = new int[ t.numLabels() ];
+		int numCoarse = 0;
+
+		// the labels of a roi are consecutive
+		for ( int first = 0; first < t.numLabels(); )
+		{
+			int last = first + 1;
+
+			while ( last < t.numLabels() && t.roi( last ) == t.roi( first ) )
+				++last;
+
+			numCoarse += merge( t, first, last, targetArea, numCoarse, parent );
+			first = last;
+		}
+
+		return parent;
+	}
+
+	/**
+	 * Merges the labels first ... last - 1 of one roi
+	 *
+	 * @return - the number of coarse labels, numbered from offset on
+	 */
+	protected static int merge( final CompiledTessellation t, final int first, final int last, final int targetArea, final int offset, final int[] parent )
+	{
+		final int n = last - first;
+
+		double area = 0;
+
+		for ( int l = first; l < last; ++l )
+			area += t.area( l );
+
+		final int k = (int)Math.max( 1, Math.min( n, Math.round( area / targetArea ) ) );
+
+		final double[] cx = new double[ k ];
+		final double[] cy = new double[ k ];
+		seed( t, first, last, cx, cy );
+
+		final int[] ids = new int[ k ];
+
+		for ( int i = 0; i < k; ++i )
+			ids[ i ] = i;
+
+		final int[] assigned = new int[ n ];
+		Arrays.fill( assigned, -1 );
+
+		// the assignment with the smallest squared area error so far
+		final int[] bestAssigned = new int[ n ];
+		double bestError = Double.MAX_VALUE;
+
+		// additive weights of the centers (a power diagram), they grow for centers with too few pixels
+		final double[] weight = new double[ k ];
+		final double meanArea = area / k;
+
+		final int m = Math.min( k, numCandidates );
+		final int[] nearest = new int[ m ];
+		final double[] sqDist = new double[ m ];
+		final double[] sx = new double[ k ];
+		final double[] sy = new double[ k ];
+		final double[] sw = new double[ k ];
+
+		for ( int iteration = 0; iteration < maxIterations; ++iteration )
+		{
+			final PointGrid grid = new PointGrid( ids, cx, cy, PointGrid.cellSize( area, k ) );
+			boolean changed = false;
+
+			Arrays.fill( sx, 0 );
+			Arrays.fill( sy, 0 );
+			Arrays.fill( sw, 0 );
+
+			for ( int l = first; l < last; ++l )
+			{
+				final int numNearest = grid.nearest( t.centerX( l ), t.centerY( l ), m, nearest, sqDist );
+
+				// the smallest power distance
+				int best = nearest[ 0 ];
+				double bestDist = sqDist[ 0 ] - weight[ nearest[ 0 ] ];
+
+				for ( int j = 1; j < numNearest; ++j )
+				{
+					final double d = sqDist[ j ] - weight[ nearest[ j ] ];
+
+					if ( d < bestDist )
+					{
+						bestDist = d;
+						best = nearest[ j ];
+					}
+				}
+
+				if ( assigned[ l - first ] != best )
+				{
+					assigned[ l - first ] = best;
+					changed = true;
+				}
+
+				// labels without pixels have no center of mass
+				if ( t.area( l ) > 0 )
+				{
+					sx[ best ] += t.area( l ) * t.centerX( l );
+					sy[ best ] += t.area( l ) * t.centerY( l );
+					sw[ best ] += t.area( l );
+				}
+			}
+
+			if ( !changed )
+				break;
+
+			double error = 0;
+
+			for ( int i = 0; i < k; ++i )
+				error += ( sw[ i ] - meanArea ) * ( sw[ i ] - meanArea );
+
+			if ( error < bestError )
+			{
+				bestError = error;
+				System.arraycopy( assigned, 0, bestAssigned, 0, n );
+			}
+
+			// centers without cells stay where they are
+			for ( int i = 0; i < k; ++i )
+			{
+				if ( sw[ i ] > 0 )
+				{
+					cx[ i ] = sx[ i ] / sw[ i ];
+					cy[ i ] = sy[ i ] / sw[ i ];
+				}
+
+				weight[ i ] += balance * ( meanArea - sw[ i ] );
+			}
+		}
+
+		final int numConnected = connect( t, first, last, bestAssigned, k );
+
+		// number the coarse labels that got cells consecutively
+		final int[] number = new int[ numConnected ];
+		Arrays.fill( number, -1 );
+		int numCoarse = 0;
+
+		for ( int l = first; l < last; ++l )
+		{
+			final int i = bestAssigned[ l - first ];
+
+			if ( number[ i ] < 0 )
+				number[ i ] = numCoarse++;
+
+			parent[ l ] = offset + number[ i ];
+		}
+
+		return numCoarse;
+	}
+
+	/**
+	 * Makes the coarse labels of the labels first ... last - 1 connected through {@link CompiledTessellation#adjacent(int, int)},
+	 * the nearest centers alone can split a coarse label in a concave roi. Only the largest connected piece of a coarse
+	 * label keeps it, the labels of the other pieces are taken over by the adjacent coarse label with the closest center
+	 * of mass, starting with the ones that touch them. Pieces that touch no other coarse label become coarse labels of
+	 * their own. Labels without pixels have no neighbors, they are left as they are.
+	 *
+	 * @param assigned - the coarse label of every label, 0 ... k - 1, is updated
+	 * @return - the number of coarse labels, at least k
+	 */
+	protected static int connect( final CompiledTessellation t, final int first, final int last, final int[] assigned, final int k )
+	{
+		final int n = last - first;
+
+		// the connected pieces of labels with the same coarse label
+		final int[] piece = new int[ n ];
+		final int[] pieceLabel = new int[ n ];
+		final long[] pieceArea = new long[ n ];
+		final int[] queue = new int[ n ];
+		int numPieces = 0;
+
+		Arrays.fill( piece, -1 );
+
+		for ( int l = 0; l < n; ++l )
+		{
+			if ( piece[ l ] >= 0 || t.area( first + l ) == 0 )
+				continue;
+
+			int head = 0, tail = 0;
+			queue[ tail++ ] = l;
+			piece[ l ] = numPieces;
+
+			while ( head < tail )
+			{
+				final int c = queue[ head++ ];
+				pieceArea[ numPieces ] += t.area( first + c );
+
+				for ( int j = 0; j < t.numAdjacent( first + c ); ++j )
+				{
+					final int d = t.adjacent( first + c, j ) - first;
+
+					if ( d >= 0 && d < n && piece[ d ] < 0 && t.area( first + d ) > 0 && assigned[ d ] == assigned[ l ] )
+					{
+						piece[ d ] = numPieces;
+						queue[ tail++ ] = d;
+					}
+				}
+			}
+
+			pieceLabel[ numPieces++ ] = assigned[ l ];
+		}
+
+		// the largest piece of every coarse label, the first one if there are several
+		final int[] largest = new int[ k ];
+		Arrays.fill( largest, -1 );
+
+		for ( int p = 0; p < numPieces; ++p )
+			if ( largest[ pieceLabel[ p ] ] < 0 || pieceArea[ p ] > pieceArea[ largest[ pieceLabel[ p ] ] ] )
+				largest[ pieceLabel[ p ] ] = p;
+
+		// the labels that lose their coarse label, and the centers of mass of what the coarse labels keep
+		final boolean[] orphan = new boolean[ n ];
+		final double[] sx = new double[ k ];
+		final double[] sy = new double[ k ];
+		final double[] sw = new double[ k ];
+
+		for ( int l = 0; l < n; ++l )
+		{
+			if ( piece[ l ] < 0 )
+				continue;
+
+			if ( largest[ assigned[ l ] ] != piece[ l ] )
+				orphan[ l ] = true;
+			else
+			{
+				sx[ assigned[ l ] ] += t.area( first + l ) * t.centerX( first + l );
+				sy[ assigned[ l ] ] += t.area( first + l ) * t.centerY( first + l );
+				sw[ assigned[ l ] ] += t.area( first + l );
+			}
+		}
+
+		// grow the kept pieces into the orphans, breadth first from where they touch
+		final boolean[] queued = new boolean[ n ];
+		int head = 0, tail = 0;
+
+		for ( int l = 0; l < n; ++l )
+		{
+			if ( !orphan[ l ] )
+				continue;
+
+			for ( int j = 0; j < t.numAdjacent( first + l ) && !queued[ l ]; ++j )
+			{
+				final int d = t.adjacent( first + l, j ) - first;
+
+				if ( d >= 0 && d < n && piece[ d ] >= 0 && !orphan[ d ] )
+				{
+					queued[ l ] = true;
+					queue[ tail++ ] = l;
+				}
+			}
+		}
+
+		while ( head < tail )
+		{
+			final int c = queue[ head++ ];
+
+			// the adjacent coarse label with the closest center of mass
+			int best = -1;
+			double bestSqDist = Double.MAX_VALUE;
+
+			for ( int j = 0; j < t.numAdjacent( first + c ); ++j )
+			{
+				final int d = t.adjacent( first + c, j ) - first;
+
+				if ( d < 0 || d >= n || piece[ d ] < 0 || orphan[ d ] )
+					continue;
+
+				final int i = assigned[ d ];
+				final double dx = t.centerX( first + c ) - sx[ i ] / sw[ i ];
+				final double dy = t.centerY( first + c ) - sy[ i ] / sw[ i ];
+				final double sqDist = dx * dx + dy * dy;
+
+				if ( sqDist < bestSqDist || ( sqDist == bestSqDist && i < best ) )
+				{
+					bestSqDist = sqDist;
+					best = i;
+				}
+			}
+
+			assigned[ c ] = best;
+			orphan[ c ] = false;
+
+			for ( int j = 0; j < t.numAdjacent( first + c ); ++j )
+			{
+				final int d = t.adjacent( first + c, j ) - first;
+
+				if ( d >= 0 && d < n && orphan[ d ] && !queued[ d ] )
+				{
+					queued[ d ] = true;
+					queue[ tail++ ] = d;
+				}
+			}
+		}
+
+		// pieces that touch no kept piece, e.g. in a separate part of the roi
+		final int[] own = new int[ numPieces ];
+		Arrays.fill( own, -1 );
+		int numCoarse = k;
+
+		for ( int l = 0; l < n; ++l )
+		{
+			if ( !orphan[ l ] )
+				continue;
+
+			if ( own[ piece[ l ] ] < 0 )
+				own[ piece[ l ] ] = numCoarse++;
+
+			assigned[ l ] = own[ piece[ l ] ];
+		}
+
+		return numCoarse;
+	}
+
+	/**
+	 * Farthest point sampling on the centers of mass of the labels first ... last - 1, starting with the label
+	 * closest to the center of mass of all of them
+	 */
+	protected static void seed( final CompiledTessellation t, final int first, final int last, final double[] cx, final double[] cy )
+	{
+		double mx = 0, my = 0, area = 0;
+
+		for ( int l = first; l < last; ++l )
+		{
+			if ( t.area( l ) > 0 )
+			{
+				mx += t.area( l ) * t.centerX( l );
+				my += t.area( l ) * t.centerY( l );
+				area += t.area( l );
+			}
+		}
+
+		mx /= area;
+		my /= area;
+
+		// squared distance of every label to the closest seed so far
+		final double[] minSqDist = new double[ last - first ];
+		Arrays.fill( minSqDist, Double.MAX_VALUE );
+
+		double qx = mx, qy = my;
+
+		for ( int i = 0; i < cx.length; ++i )
+		{
+			int best = first;
+			double bestSqDist = i == 0 ? Double.MAX_VALUE : -1;
+
+			for ( int l = first; l < last; ++l )
+			{
+				final double dx = t.centerX( l ) - qx;
+				final double dy = t.centerY( l ) - qy;
+				final double d = dx * dx + dy * dy;
+
+				if ( i == 0 )
+				{
+					if ( d < bestSqDist )
+					{
+						bestSqDist = d;
+						best = l;
+					}
+				}
+				else
+				{
+					minSqDist[ l - first ] = Math.min( minSqDist[ l - first ], d );
+
+					if ( minSqDist[ l - first ] > bestSqDist )
+					{
+						bestSqDist = minSqDist[ l - first ];
+						best = l;
+					}
+				}
+			}
+
+			cx[ i ] = qx = t.centerX( best );
+			cy[ i ] = qy = t.centerY( best );
+		}
+	}
+
+	/**
+	 * @return - the tessellation where all labels with the same parent are merged into one, the generator of a
+	 * merged label is its center of mass
+	 */
+	public static CompiledTessellation coarsen( final CompiledTessellation t, final int[] parent )
+	{
+		int numCoarse = 0;
+
+		for ( final int p : parent )
+			numCoarse = Math.max( numCoarse, p + 1 );
+
+		final int[] roi = new int[ numCoarse ];
+		final int[] id = new int[ numCoarse ];
+		final int[] area = new int[ numCoarse ];
+		final double[] centerX = new double[ numCoarse ];
+		final double[] centerY = new double[ numCoarse ];
+
+		for ( int l = 0; l < t.numLabels(); ++l )
+		{
+			final int p = parent[ l ];
+
+			roi[ p ] = t.roi( l );
+
+			if ( t.area( l ) > 0 )
+			{
+				area[ p ] += t.area( l );
+				centerX[ p ] += t.area( l ) * t.centerX( l );
+				centerY[ p ] += t.area( l ) * t.centerY( l );
+			}
+		}
+
+		// the ids are counted per roi
+		for ( int p = 0; p < numCoarse; ++p )
+		{
+			id[ p ] = p == 0 || roi[ p ] != roi[ p - 1 ] ? 0 : id[ p - 1 ] + 1;
+
+			if ( area[ p ] > 0 )
+			{
+				centerX[ p ] /= area[ p ];
+				centerY[ p ] /= area[ p ];
+			}
+		}
+
+		// the pairs of different parents of adjacent labels, sorted and unique
+		int numPairs = 0;
+
+		for ( int l = 0; l < t.numLabels(); ++l )
+			numPairs += t.numAdjacent( l );
+
+		final long[] pairs = new long[ numPairs ];
+		numPairs = 0;
+
+		for ( int l = 0; l < t.numLabels(); ++l )
+			for ( int j = 0; j < t.numAdjacent( l ); ++j )
+				if ( parent[ l ] != parent[ t.adjacent( l, j ) ] )
+					pairs[ numPairs++ ] = ( (long)parent[ l ] << 32 ) | parent[ t.adjacent( l, j ) ];
+
+		Arrays.sort( pairs, 0, numPairs );
+
+		final int[] adjacentStart = new int[ numCoarse + 1 ];
+		final int[] tmp = new int[ numPairs ];
+		int numAdjacent = 0;
+
+		for ( int i = 0; i < numPairs; ++i )
+		{
+			if ( i > 0 && pairs[ i ] == pairs[ i - 1 ] )
+				continue;
+
+			++adjacentStart[ (int)( pairs[ i ] >>> 32 ) + 1 ];
+			tmp[ numAdjacent++ ] = (int)pairs[ i ];
+		}
+
+		for ( int p = 0; p < numCoarse; ++p )
+			adjacentStart[ p + 1 ] += adjacentStart[ p ];
+
+		final int[] adjacent = Arrays.copyOf( tmp, numAdjacent );
+
+		final int[] labels = new int[ t.width() * t.height() ];
+
+		for ( int i = 0; i < labels.length; ++i )
+		{
+			final int l = t.label( i );
+			labels[ i ] = l < 0 ? -1 : parent[ l ];
+		}
+
+		return new CompiledTessellation(
+				t.width(), t.height(), t.numRois(), roi, id, area, centerX.clone(), centerY.clone(), centerX, centerY,
+				adjacentStart, adjacent, IntBuffer.wrap( labels ) );
+	}
+}
@@ -3,18 +3,17 @@ package wt.tessellation;
 import ij.ImageJ;
 import ij.ImagePlus;
 import ij.gui.Roi;
-import ij.io.FileSaver;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import net.imglib2.Interval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.util.Pair;
-import net.imglib2.util.ValuePair;
+import wt.tessellation.TessellationScheduler.IterationListener;
 import wt.alignment.ImageTools;
 
 public class TessellationMultiThread
@@ -38,7 +37,11 @@ public class TessellationMultiThread
 		final ImagePlus impGlobal = new ImagePlus( "voronoiGlobal", ImageTools.wrap( imgGlobal ) );
 		impGlobal.show();
 
-		final ArrayList< Pair< TessellationThread, Thread > > threads = new ArrayList< Pair< TessellationThread, Thread > >();
+		final ArrayList< TessellationThread > threads = new ArrayList< TessellationThread >();
+
+		// one pool for running the segments and scoring the candidate moves within their iterations
+		final ForkJoinPool pool = new ForkJoinPool();
+		final int numWorkers = Math.max( 1, Runtime.getRuntime().availableProcessors() / segments.size() );
 
 		for ( int i = 0; i < segments.size(); ++i )
 		{
@@ -49,10 +52,12 @@ public class TessellationMultiThread
 			else
 				t = new TessellationThread( i, segments.get( i ), img, targetArea, currentState.get( i ) );
 
-			TessellationTools.drawArea( t.mask(), t.search().randomAccessible, img );
+			t.parallelize( pool, numWorkers );
+
+			TessellationTools.drawArea( t.pointList(), img );
 			//TessellationTools.drawRealPoint( imp, t.locationMap().values() );
 
-			threads.add( new ValuePair< TessellationThread, Thread >( t, new Thread( t ) ) );
+			threads.add( t );
 		}
 
 		imp.updateAndDraw();
@@ -68,7 +73,7 @@ public class TessellationMultiThread
 
 			t.shake( 1 );
 
-			TessellationTools.drawArea( t.mask(), t.search().randomAccessible, img );
+			TessellationTools.drawArea( t.mask(), t.search().randomAccessible(), img );
 			System.out.println( t.id() + "\t" + TessellationTools.currentState( t ) );
 		}
 		SimpleMultiThreading.threadWait( 500 );
@@ -87,15 +92,15 @@ public class TessellationMultiThread
 				final TessellationThread t = pair.getA();
 	
 				t.computeGlobalError( t.numPoints()/15, true, null );
-				TessellationTools.drawValue( t.mask(), t.search().randomAccessible, img );
+				TessellationTools.drawValue( t.mask(), t.search().randomAccessible(), img );
 
 				if ( i == 0 )
 					continue;
 	
 				t.expandShrink( t.numPoints()/15, imp );
 	
-				//TessellationTools.drawArea( t.mask(), t.search().randomAccessible, img );
-				//TessellationTools.drawValue( t.mask(), t.search().randomAccessible, img );
+				//TessellationTools.drawArea( t.mask(), t.search().randomAccessible(), img );
+				//TessellationTools.drawValue( t.mask(), t.search().randomAccessible(), img );
 				//System.out.println( t.id() + "\t" + currentState( t ) );
 			}
 
@@ -115,91 +120,95 @@ public class TessellationMultiThread
 		SimpleMultiThreading.threadHaltUnClean();
 		*/
 
-		for ( final Pair< TessellationThread, Thread > pair : threads )
+		for ( final TessellationThread t : threads )
 		{
-			final TessellationThread t = pair.getA();
-
 			//System.out.println( t.id() + ": Area = " + t.area() );
 			//System.out.println( t.id() + ": TargetArea = " + t.targetArea() );
 			//System.out.println( t.id() + ": #Points = " + t.numPoints() + "\t" );
 			TessellationTools.printCurrentState( t );
-
-			pair.getB().start();
 		}
 
-		int currentIteration = 0;
-
-		do
-		{
-			currentIteration = threads.get( 0 ).getA().iteration();
+		// a segment stops once its error improved by less than 0.1% within 5000 iterations or did not improve for 20000 iterations
+		final ConvergenceCriteria criteria = new ConvergenceCriteria( threads.size(), 5000, 0.001, 20000, 0, 0 );
+		final TessellationCheckpoint checkpoint = new TessellationCheckpoint( new File( "tessellation.checkpoint" ), threads.size() );
 
-			// order all threads to run the next iteration
-			for ( final Pair< TessellationThread, Thread > pair : threads )
-			{
-				if ( pair.getA().iteration() != currentIteration )
-					throw new RuntimeException( "Iterations out of sync. This should not happen." );
+		// every segment needs a state before the first checkpoint can be written
+		for ( final TessellationThread t : threads )
+			checkpoint.update( t );
 
-				pair.getA().runNextIteration();
-			}
+		// the labels of the segments are written in the background, at most every 100 iterations or if the error dropped by 1%
+		final TessellationSnapshotWriter snapshots = new TessellationSnapshotWriter( new File( "movie" ), threads.size(), 64, 100, 0.01 );
 
-			// wait for threads to finish
-			boolean finished = true;
-			do
+		// no lockstep, every segment continues with its next iterations as soon as a core is free
+		final TessellationScheduler scheduler = new TessellationScheduler( threads, pool, new IterationListener()
+		{
+			@Override
+			public boolean start( final TessellationThread t )
 			{
-
-				finished = true;
-				for ( final Pair< TessellationThread, Thread > pair : threads )
-					finished &= pair.getA().iterationFinished();
-
-				try { Thread.sleep( 10 ); } catch (InterruptedException e) {}
+				return true;
 			}
-			while ( !finished );
 
-			currentIteration = threads.get( 0 ).getA().iteration();
-
-			boolean anyUpdated = false;
-
-			for ( final Pair< TessellationThread, Thread > pair : threads )
+			@Override
+			public boolean iterationFinished( final TessellationThread t, final boolean updated )
 			{
-				boolean updated = pair.getA().lastIterationUpdated();
-				anyUpdated |= updated;
-
 				if ( updated )
 				{
-					final TessellationThread t = pair.getA();
 					TessellationTools.printCurrentState( t );
 
-					// update the drawing
+					// update the drawing, the segments do not overlap
 					t.computeGlobalError( t.numPoints()/15, true, null );
-					TessellationTools.drawArea( t.mask(), t.search().randomAccessible, img );
-					TessellationTools.drawValue( t.mask(), t.search().randomAccessible, imgGlobal );
+					TessellationTools.drawArea( t.pointList(), img );
+					TessellationTools.drawValue( t.pointList(), imgGlobal );
 					//TessellationTools.drawRealPoint( imp, t.locationMap().values() );
+
+					synchronized ( imp )
+					{
+						imp.updateAndDraw();
+						impGlobal.updateAndDraw();
+						imp.setTitle( "error_iteration_" + t.iteration() );
+					}
 				}
-			}
 
-			if ( anyUpdated )
-			{
-				imp.updateAndDraw();
-				impGlobal.updateAndDraw();
-				imp.setTitle( "error_iteration_" + currentIteration );
-				new FileSaver( imp ).saveAsZip( "movie/voronoi_" + currentIteration + ".zip" );
-			}
+				snapshots.offer( t );
 
-			if ( currentIteration % 1000 == 0 )
-			{
-				for ( final Pair< TessellationThread, Thread > pair : threads )
+				if ( t.iteration() % 1000 == 0 )
 				{
-					TessellationTools.writePoints( pair.getA() );
+					TessellationTools.writePoints( t );
 
 					// write out after every 1000 iterations at least
-					pair.getA().logFile().flush();
+					t.logFile().flush();
+
+					// a run that is killed continues from here
+					checkpoint.update( t );
+					checkpoint.writeAsync();
 				}
+
+				if ( criteria.converged( t ) )
+				{
+					System.out.println( t.id() + "\tconverged after " + t.iteration() + " iterations: " + criteria.reason( t.id() ) );
+
+					// a converged segment will not change anymore
+					TessellationTools.writePoints( t );
+					checkpoint.update( t );
+
+					return false;
+				}
+
+				return true;
 			}
-		}
-		while ( currentIteration != -10 );
+		});
 
-		for ( final Pair< TessellationThread, Thread > pair : threads )
-			pair.getA().logFile().close();
+		scheduler.run();
+
+		pool.shutdown();
+		snapshots.close();
+
+		// the states of all segments were collected when they converged
+		checkpoint.write();
+		checkpoint.close();
+
+		for ( final TessellationThread t : threads )
+			t.logFile().close();
 	}
 
 	public static void main( String[] args )
@@ -0,0 +1,122 @@
+package wt.tessellation;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The optional key[=value] arguments of {@link TessellationHeadless} and {@link TessellationBatch}, parsed in one place
+ * so both understand them the same way. Every main says which keys it supports, all others are rejected.
+ */
+public class TessellationOptions
+{
+	public boolean render = false;
+
+	// checkpoint or checkpoint=<file>
+	public boolean checkpoint = false;
+	public File checkpointFile = null;
+
+	public File snapshotDirectory = null;
+
+	public int plateauWindow = 0, maxNonImproving = 0;
+	public double plateauTolerance = 0, maxMinutes = 0;
+
+	public int lloydIterations = 0;
+	public boolean lloydWeighted = false;
+
+	// 0 means as many as there are threads per segment
+	public int numReplicas = 1;
+	public int pyramidLevels = 0, pyramidIterations = 0;
+
+	public int[] levels = null;
+	public long seed = TessellationThread.defaultSeed;
+
+	// 0 means not set
+	public int numConcurrent = 0;
+
+	/**
+	 * @param first - the index of the first optional argument
+	 * @param supported - the keys that are allowed, e.g. "render", "lloyd"
+	 */
+	public static TessellationOptions parse( final String[] args, final int first, final String... supported )
+	{
+		final List< String > keys = Arrays.asList( supported );
+		final TessellationOptions o = new TessellationOptions();
+
+		for ( int i = first; i < args.length; ++i )
+		{
+			final int split = args[ i ].indexOf( '=' );
+			final String key = split < 0 ? args[ i ] : args[ i ].substring( 0, split );
+			final String value = split < 0 ? null : args[ i ].substring( split + 1 );
+
+			if ( !keys.contains( key ) )
+				throw new RuntimeException( "Unknown argument: " + args[ i ] );
+
+			try
+			{
+				if ( key.equals( "render" ) && value == null )
+					o.render = true;
+				else if ( key.equals( "checkpoint" ) )
+				{
+					o.checkpoint = true;
+					o.checkpointFile = value == null ? null : new File( value );
+				}
+				else if ( key.equals( "snapshots" ) && value != null )
+					o.snapshotDirectory = new File( value );
+				else if ( key.equals( "plateau" ) && value != null )
+				{
+					final String[] p = value.split( "," );
+					o.plateauWindow = Integer.parseInt( p[ 0 ] );
+					o.plateauTolerance = Double.parseDouble( p[ 1 ] );
+				}
+				else if ( key.equals( "maxNonImproving" ) && value != null )
+					o.maxNonImproving = Integer.parseInt( value );
+				else if ( key.equals( "maxMinutes" ) && value != null )
+					o.maxMinutes = Double.parseDouble( value );
+				else if ( key.equals( "lloyd" ) && value != null )
+				{
+					final String[] p = value.split( "," );
+					o.lloydIterations = Integer.parseInt( p[ 0 ] );
+					o.lloydWeighted = p.length > 1 && p[ 1 ].equals( "weighted" );
+				}
+				else if ( key.equals( "pyramid" ) && value != null )
+				{
+					final String[] p = value.split( "," );
+					o.pyramidLevels = Integer.parseInt( p[ 0 ] );
+					o.pyramidIterations = Integer.parseInt( p[ 1 ] );
+				}
+				else if ( key.equals( "levels" ) && value != null )
+				{
+					final String[] p = value.split( "," );
+					o.levels = new int[ p.length ];
+
+					for ( int j = 0; j < p.length; ++j )
+						o.levels[ j ] = Integer.parseInt( p[ j ] );
+				}
+				else if ( key.equals( "seed" ) && value != null )
+					o.seed = Long.parseLong( value );
+				else if ( key.equals( "replicas" ) )
+					o.numReplicas = value == null ? 0 : Integer.parseInt( value );
+				else if ( key.equals( "concurrent" ) && value != null )
+					o.numConcurrent = Integer.parseInt( value );
+				else
+					throw new RuntimeException( "Invalid argument: " + args[ i ] );
+			}
+			catch ( final NumberFormatException e )
+			{
+				throw new RuntimeException( "Invalid argument: " + args[ i ] + " (" + e.getMessage() + ")" );
+			}
+			catch ( final ArrayIndexOutOfBoundsException e )
+			{
+				throw new RuntimeException( "Invalid argument: " + args[ i ] + ", values are missing" );
+			}
+		}
+
+		return o;
+	}
+
+	/**
+	 * @return - maxMinutes in milliseconds, 0 means no limit
+	 */
+	public long maxMillis() { return Math.round( maxMinutes * 60 * 1000 ); }
+}
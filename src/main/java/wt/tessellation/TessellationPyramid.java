@@ -0,0 +1,111 @@
+package wt.tessellation;
+
+import java.util.Map.Entry;
+
+import net.imglib2.Interval;
+import net.imglib2.RealPoint;
+
+/**
+ * Optimizes a segment coarse to fine: the points are moved to masks downsampled by 2^numLevels, ..., 4, 2, optimized
+ * there with the strategy of the segment and moved back to the full resolution after every level. The large moves are
+ * cheap on the small masks, the full resolution only has to refine them.
+ *
+ * The number of points is the same on every level, the area error is compared as if it was measured at full resolution
+ * and the moves of the line search shrink with the scale, so every level behaves like the full resolution.
+ */
+public class TessellationPyramid
+{
+	// coarser levels are skipped
+	final public static int minPixelsPerPoint = 16;
+
+	final TessellationThread t;
+	final Interval interval;
+
+	public TessellationPyramid( final TessellationThread t, final Interval interval )
+	{
+		if ( t.scale() != 1 )
+			throw new RuntimeException( "The pyramid has to start from the full resolution, but segment " + t.id() + " is downsampled by " + t.scale() );
+
+		this.t = t;
+		this.interval = interval;
+	}
+
+	/**
+	 * @return - the segment on a mask downsampled by scale, starting from the current points of the full resolution
+	 */
+	public TessellationThread level( final int scale )
+	{
+		final TessellationCheckpoint.State s = t.state();
+		final double[] x = new double[ s.numPoints() ];
+		final double[] y = new double[ s.numPoints() ];
+
+		for ( int i = 0; i < x.length; ++i )
+		{
+			x[ i ] = TessellationThread.downsample( s.x[ i ], scale );
+			y[ i ] = TessellationThread.downsample( s.y[ i ], scale );
+		}
+
+		final TessellationThread level = new TessellationThread( t.id(), t.roi(), interval, t.targetArea(), null, s.withPoints( x, y ), scale );
+		level.copySettings( t );
+
+		return level;
+	}
+
+	/**
+	 * Moves the points of the full resolution to where they are on the level
+	 */
+	public void apply( final TessellationThread level )
+	{
+		for ( final Entry< Integer, RealPoint > e : level.locationMap().entrySet() )
+		{
+			final RealPoint p = t.locationMap().get( e.getKey() );
+
+			p.setPosition( TessellationThread.upsample( e.getValue().getDoublePosition( 0 ), level.scale() ), 0 );
+			p.setPosition( TessellationThread.upsample( e.getValue().getDoublePosition( 1 ), level.scale() ), 1 );
+		}
+
+		t.update();
+	}
+
+	/**
+	 * Runs iterationsPerLevel iterations on every level from the one downsampled by 2^numLevels to the one downsampled by 2,
+	 * levels with less than {@link #minPixelsPerPoint} mask pixels per point are skipped. The full resolution itself is not run.
+	 *
+	 * @return - the number of levels that ran
+	 */
+	public int run( final int numLevels, final int iterationsPerLevel )
+	{
+		return run( numLevels, iterationsPerLevel, null );
+	}
+
+	/**
+	 * Like {@link #run(int, int)}, but stops once the wall clock budget of the criteria is used up, the points of the
+	 * level that was running are still applied
+	 */
+	public int run( final int numLevels, final int iterationsPerLevel, final ConvergenceCriteria criteria )
+	{
+		int numRun = 0;
+
+		for ( int l = numLevels; l >= 1; --l )
+		{
+			final int scale = 1 << l;
+
+			if ( criteria != null && criteria.outOfTime() )
+				break;
+
+			// cheap to check before building the level
+			if ( t.area() / ( scale * scale ) < minPixelsPerPoint * t.numPoints() )
+				continue;
+
+			final TessellationThread level = level( scale );
+
+			for ( int i = 0; i < iterationsPerLevel && !( criteria != null && criteria.outOfTime() ); ++i )
+				level.call();
+
+			apply( level );
+			++numRun;
+		}
+
+		return numRun;
+	}
+}
@@ -0,0 +1,144 @@
+package wt.tessellation;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs the iterations of several {@link TessellationThread}s on a work-stealing {@link ForkJoinPool} without lockstep.
+ *
+ * The iterations of one segment are split into tasks of roughly the same cost (mask pixels x candidates per iteration),
+ * so small segments run more iterations per task than large ones. Every task forks the next task of its segment when
+ * it is done, idle workers steal them. The iterations of one segment always run one after another, so each segment
+ * optimizes exactly like it would on its own.
+ */
+public class TessellationScheduler
+{
+	public interface IterationListener
+	{
+		/**
+		 * Called once before the first iteration of a segment, before any segment runs
+		 *
+		 * @return - false if the segment is already done, e.g. restored after it converged, and should not run at all
+		 */
+		public boolean start( final TessellationThread t );
+
+		/**
+		 * Called after every iteration of a segment, from the thread that ran it.
+		 * Calls for the same segment never overlap.
+		 *
+		 * @return - false if the segment converged and should not run any more iterations
+		 */
+		public boolean iterationFinished( final TessellationThread t, final boolean updated );
+	}
+
+	// the cost of one task in mask pixels x candidates, about 5 iterations of the largest segment of the wing template
+	final public static long defaultTaskCost = 1l << 24;
+
+	final List< TessellationThread > threads;
+	final ForkJoinPool pool;
+	final IterationListener listener;
+	final long taskCost;
+
+	final AtomicReference< Throwable > failure = new AtomicReference< Throwable >();
+	volatile boolean stop = false;
+
+	public TessellationScheduler( final List< TessellationThread > threads, final ForkJoinPool pool, final IterationListener listener )
+	{
+		this( threads, pool, listener, defaultTaskCost );
+	}
+
+	public TessellationScheduler( final List< TessellationThread > threads, final ForkJoinPool pool, final IterationListener listener, final long taskCost )
+	{
+		this.threads = threads;
+		this.pool = pool;
+		this.listener = listener;
+		this.taskCost = taskCost;
+	}
+
+	/**
+	 * @return - how many iterations of this segment make up one task
+	 */
+	public int iterationsPerTask( final TessellationThread t )
+	{
+		return (int)Math.max( 1, taskCost / ( (long)t.area() * t.numCandidates() ) );
+	}
+
+	/**
+	 * Stops all segments after the iteration they are currently running
+	 */
+	public void stop() { this.stop = true; }
+
+	/**
+	 * Runs until every segment converged or {@link #stop()} is called. Segments that are done before they start
+	 * (see {@link IterationListener#start(TessellationThread)}) do not run a single iteration.
+	 */
+	public void run()
+	{
+		final CountDownLatch running = new CountDownLatch( threads.size() );
+
+		for ( final TessellationThread t : threads )
+		{
+			if ( listener.start( t ) )
+				pool.execute( new Task( t, running ) );
+			else
+				running.countDown();
+		}
+
+		try
+		{
+			running.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			stop();
+			throw new RuntimeException( "Interrupted while waiting for the segments: " + e );
+		}
+
+		if ( failure.get() != null )
+			throw new RuntimeException( "Tessellation failed: " + failure.get(), failure.get() );
+	}
+
+	protected class Task extends RecursiveAction
+	{
+		private static final long serialVersionUID = 1L;
+
+		final TessellationThread t;
+		final CountDownLatch running;
+
+		public Task( final TessellationThread t, final CountDownLatch running )
+		{
+			this.t = t;
+			this.running = running;
+		}
+
+		@Override
+		protected void compute()
+		{
+			try
+			{
+				final int n = iterationsPerTask( t );
+
+				for ( int i = 0; i < n; ++i )
+				{
+					if ( stop || !listener.iterationFinished( t, t.call() ) )
+					{
+						running.countDown();
+						return;
+					}
+				}
+
+				// let whoever is idle continue with this segment
+				new Task( t, running ).fork();
+			}
+			catch ( final Throwable e )
+			{
+				failure.compareAndSet( null, e );
+				stop();
+				running.countDown();
+			}
+		}
+	}
+}
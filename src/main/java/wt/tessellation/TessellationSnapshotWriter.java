@@ -0,0 +1,342 @@
+package wt.tessellation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Writes snapshots of the labels of every segment in the background, e.g. to make a movie of the optimization.
+ *
+ * {@link #offer(TessellationThread)} only copies the labels and hands them to a bounded queue, frames are dropped
+ * if the writer falls behind. A frame is only taken every everyNth iteration of a segment or if its error dropped
+ * by more than minImprovement (relative) since the last frame.
+ *
+ * Every segment is written to its own deflate-compressed file "snapshots_segment_[id].bin": the mask pixels once,
+ * then per frame either all labels as 16 bit (every keyframeInterval frames) or only the pixels that changed
+ * since the previous frame. Use {@link Reader} to read them back.
+ */
+public class TessellationSnapshotWriter
+{
+	final static int magic = 0x534e4150; // "SNAP"
+	final static byte keyframe = 0, delta = 1;
+
+	protected static class Frame
+	{
+		final int segment, iteration;
+		final double error;
+		final short[] labels;
+
+		// the mask pixels, only for the first frame of a segment
+		final int[] pixels;
+
+		public Frame( final int segment, final int iteration, final double error, final short[] labels, final int[] pixels )
+		{
+			this.segment = segment;
+			this.iteration = iteration;
+			this.error = error;
+			this.labels = labels;
+			this.pixels = pixels;
+		}
+	}
+
+	final File directory;
+	final int everyNth, keyframeInterval;
+	final double minImprovement;
+
+	// per segment, only accessed by the thread that runs the segment
+	final double[] lastError;
+	final boolean[] started;
+
+	// per segment, only accessed by the writer thread
+	final DataOutputStream[] out;
+	final short[][] previous;
+	final int[] numFrames;
+
+	final BlockingQueue< Frame > queue;
+	final Thread writer;
+	final AtomicInteger dropped = new AtomicInteger( 0 );
+	volatile IOException failure = null;
+
+	// tells the writer thread to stop
+	final Frame last = new Frame( -1, -1, 0, null, null );
+
+	public TessellationSnapshotWriter( final File directory, final int numSegments, final int queueCapacity, final int everyNth, final double minImprovement )
+	{
+		this( directory, numSegments, queueCapacity, everyNth, minImprovement, 100 );
+	}
+
+	public TessellationSnapshotWriter( final File directory, final int numSegments, final int queueCapacity, final int everyNth, final double minImprovement, final int keyframeInterval )
+	{
+		if ( !directory.exists() && !directory.mkdirs() )
+			throw new RuntimeException( "Cannot create directory '" + directory.getAbsolutePath() + "'." );
+
+		this.directory = directory;
+		this.everyNth = everyNth;
+		this.minImprovement = minImprovement;
+		this.keyframeInterval = keyframeInterval;
+
+		this.lastError = new double[ numSegments ];
+		this.started = new boolean[ numSegments ];
+		this.out = new DataOutputStream[ numSegments ];
+		this.previous = new short[ numSegments ][];
+		this.numFrames = new int[ numSegments ];
+
+		for ( int i = 0; i < numSegments; ++i )
+			lastError[ i ] = Double.MAX_VALUE;
+
+		this.queue = new ArrayBlockingQueue< Frame >( queueCapacity );
+		this.writer = new Thread( new Runnable()
+		{
+			@Override
+			public void run() { writeFrames(); }
+		}, "snapshot writer" );
+		this.writer.setDaemon( true );
+		this.writer.start();
+	}
+
+	public int dropped() { return dropped.get(); }
+
+	public static File file( final File directory, final int segment )
+	{
+		return new File( directory, "snapshots_segment_" + segment + ".bin" );
+	}
+
+	/**
+	 * Takes a snapshot of the segment if it is due, must be called from the thread that runs its iterations.
+	 *
+	 * @return - true if a frame was queued
+	 */
+	public boolean offer( final TessellationThread t )
+	{
+		if ( failure != null )
+			throw new RuntimeException( "Writing snapshots failed: " + failure );
+
+		final boolean due =
+				( everyNth > 0 && t.iteration() % everyNth == 0 ) ||
+				( t.error() < lastError[ t.id() ] * ( 1.0 - minImprovement ) );
+
+		if ( !due )
+			return false;
+
+		final short[] labels = new short[ t.labelMap().numPixels() ];
+		t.labelMap().labels( labels );
+
+		// the first frame of a segment also carries the mask
+		final int[] pixels = started[ t.id() ] ? null : t.labelMap().pixels();
+
+		if ( queue.offer( new Frame( t.id(), t.iteration(), t.error(), labels, pixels ) ) )
+		{
+			lastError[ t.id() ] = t.error();
+			started[ t.id() ] = true;
+			return true;
+		}
+		else
+		{
+			dropped.incrementAndGet();
+			return false;
+		}
+	}
+
+	/**
+	 * Writes all queued frames and closes the files
+	 */
+	public void close()
+	{
+		try
+		{
+			queue.put( last );
+			writer.join();
+		}
+		catch ( final InterruptedException e )
+		{
+			throw new RuntimeException( "Interrupted while writing snapshots: " + e );
+		}
+
+		if ( failure != null )
+			throw new RuntimeException( "Writing snapshots failed: " + failure );
+	}
+
+	protected void writeFrames()
+	{
+		try
+		{
+			Frame frame;
+
+			while ( ( frame = queue.take() ) != last )
+				if ( failure == null )
+					write( frame );
+		}
+		catch ( final InterruptedException e ) {}
+
+		for ( final DataOutputStream o : out )
+		{
+			if ( o != null )
+			{
+				try
+				{
+					o.close();
+				}
+				catch ( final IOException e )
+				{
+					if ( failure == null )
+						failure = e;
+				}
+			}
+		}
+	}
+
+	protected void write( final Frame frame )
+	{
+		final int s = frame.segment;
+
+		try
+		{
+			if ( out[ s ] == null )
+			{
+				out[ s ] = new DataOutputStream( new BufferedOutputStream( new DeflaterOutputStream( new FileOutputStream( file( directory, s ) ) ) ) );
+				out[ s ].writeInt( magic );
+				out[ s ].writeInt( frame.pixels.length );
+
+				for ( final int p : frame.pixels )
+					out[ s ].writeInt( p );
+			}
+
+			final DataOutputStream o = out[ s ];
+			final short[] prev = previous[ s ];
+			final short[] labels = frame.labels;
+
+			if ( prev == null || numFrames[ s ] % keyframeInterval == 0 )
+			{
+				o.writeByte( keyframe );
+				o.writeInt( frame.iteration );
+				o.writeDouble( frame.error );
+
+				for ( final short l : labels )
+					o.writeShort( l );
+			}
+			else
+			{
+				int numChanged = 0;
+
+				for ( int i = 0; i < labels.length; ++i )
+					if ( labels[ i ] != prev[ i ] )
+						++numChanged;
+
+				o.writeByte( delta );
+				o.writeInt( frame.iteration );
+				o.writeDouble( frame.error );
+				o.writeInt( numChanged );
+
+				for ( int i = 0; i < labels.length; ++i )
+				{
+					if ( labels[ i ] != prev[ i ] )
+					{
+						o.writeInt( i );
+						o.writeShort( labels[ i ] );
+					}
+				}
+			}
+
+			previous[ s ] = labels;
+			++numFrames[ s ];
+		}
+		catch ( final IOException e )
+		{
+			failure = e;
+		}
+	}
+
+	/**
+	 * Reads the frames of one segment back
+	 */
+	public static class Reader
+	{
+		final DataInputStream in;
+		final int[] pixels;
+		final short[] labels;
+
+		int iteration;
+		double error;
+
+		public Reader( final File file ) throws IOException
+		{
+			this.in = new DataInputStream( new BufferedInputStream( new InflaterInputStream( new FileInputStream( file ) ) ) );
+
+			if ( in.readInt() != magic )
+			{
+				in.close();
+				throw new IOException( "'" + file.getAbsolutePath() + "' contains no snapshots." );
+			}
+
+			this.pixels = new int[ in.readInt() ];
+
+			for ( int i = 0; i < pixels.length; ++i )
+				pixels[ i ] = in.readInt();
+
+			this.labels = new short[ pixels.length ];
+		}
+
+		/**
+		 * @return - packed coordinates ( see Segment.pack ) of every mask pixel
+		 */
+		public int[] pixels() { return pixels; }
+
+		/**
+		 * @return - the segment id of every mask pixel in the current frame
+		 */
+		public int label( final int i ) { return labels[ i ] & 0xffff; }
+		public int iteration() { return iteration; }
+		public double error() { return error; }
+
+		/**
+		 * @return - false if there are no more frames
+		 */
+		public boolean next() throws IOException
+		{
+			final int type;
+
+			try
+			{
+				type = in.readByte();
+			}
+			catch ( final EOFException e )
+			{
+				return false;
+			}
+
+			iteration = in.readInt();
+			error = in.readDouble();
+
+			if ( type == keyframe )
+			{
+				for ( int i = 0; i < labels.length; ++i )
+					labels[ i ] = in.readShort();
+			}
+			else
+			{
+				final int numChanged = in.readInt();
+
+				for ( int j = 0; j < numChanged; ++j )
+				{
+					final int i = in.readInt();
+					labels[ i ] = in.readShort();
+				}
+			}
+
+			return true;
+		}
+
+		public void close() throws IOException { in.close(); }
+	}
+}
@@ -7,102 +7,260 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.Random;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 import mpicbg.spim.io.TextFileAccess;
 import net.imglib2.Interval;
 import net.imglib2.IterableRealInterval;
-import net.imglib2.RandomAccess;
 import net.imglib2.RealPoint;
-import net.imglib2.neighborsearch.KNearestNeighborSearchOnKDTree;
 import wt.tessellation.error.CircularityError;
 import wt.tessellation.error.Error;
+import wt.tessellation.error.IncrementalError;
 import wt.tessellation.error.QuadraticError;
 import wt.tessellation.pointupdate.DistancePointUpdater;
 import wt.tessellation.pointupdate.PointUpdater;
 import wt.tessellation.pointupdate.SimplePointUpdater;
 
-public class TessellationThread implements Runnable
+/**
+ * Optimizes the points of one segment, every call runs one iteration and returns if it changed the points
+ */
+public class TessellationThread implements Callable< Boolean >
 {
+	/**
+	 * How an iteration changes the points:
+	 * LINE_SEARCH tries to move one point (and the points around it) by a set of distances along x and y and keeps the best move,
+	 * LLOYD moves every point to the center of mass of its segment,
+	 * AREA_WEIGHTED_LLOYD additionally moves every point towards larger touching segments and away from smaller ones
+	 */
+	public static enum Strategy { LINE_SEARCH, LLOYD, AREA_WEIGHTED_LLOYD };
+
+	// the distances a point is moved by in x and y, every distance and direction is one candidate
+	final private static double[] distances = new double[]{ -64, -32, -16, -8, -4, 4, 8, 16, 32, 64 };
+
+	// the seed of the random numbers if none is given
+	final public static long defaultSeed = 1353;
+
 	final private int targetArea;
+
+	// 1 at full resolution, otherwise the mask is downsampled by this factor, see TessellationPyramid
+	final private int scale;
 	final private double targetCircle;
 
 	final Roi r;
 	final private int[][] mask;
 	final private int area;
 	final private int numPoints, id;
+
+	// the largest id of a point, arrays indexed by id have maxId + 1 entries
+	final private int maxId;
 	final private HashMap< Integer, RealPoint > locationMap;
 	final private Search< Segment > search;
-	final private Random rnd;
+	final private LabelMap labelMap;
+	final private SegmentIndex segmentIndex;
+
+	// ids of the points an update can move
+	final private int[] localIds;
+	private RandomStream rnd;
 	final private Error errorMetricArea;
 	final private Error errorMetricCirc;
+	final private IncrementalError incrementalArea, incrementalCirc;
+
+	// if set, the candidate moves of an iteration are scored in parallel
+	private CandidateEvaluator evaluator;
+
+	private Strategy strategy = Strategy.LINE_SEARCH;
+
+	// above 0 the line search also takes worse moves, see setTemperature()
+	private double temperature = 0;
+
+	// every that many iterations the line search runs expandShrink() instead, 0 never does
+	private int expandShrinkInterval = 0;
 
 	private double errorArea, errorCirc, error;
 	private int iteration;
-	private AtomicBoolean runNextIteration;
-	private boolean stopThread;
 
 	private double lastDX, lastDY, lastDist, lastSigma;
 	private int lastDir, lastIteration;
 	private boolean lastIterationUpdated;
-	private boolean iterationFinished;
 
 	private PrintWriter logFile;
 
+	// where the log and the points are written, null is the working directory
+	private File directory = null;
+
 	public TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea )
 	{
-		this( id, r, interval, targetArea, null );
+		this( id, r, interval, targetArea, (File)null );
+	}
+
+	/**
+	 * Starts from new points, the points and all random decisions only depend on the seed and the id ( see {@link #random()} )
+	 */
+	public TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea, final long seed )
+	{
+		this( id, r, interval, targetArea, null, null, 1, seed );
 	}
 
 	public TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea, final File currentState )
 	{
-		this.targetArea = targetArea;
+		this( id, r, interval, targetArea, currentState, null );
+	}
+
+	/**
+	 * Continues exactly where the segment was when the checkpoint state was taken, with the same strategy, label engine
+	 * and expand/shrink interval
+	 */
+	public TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea, final TessellationCheckpoint.State state )
+	{
+		this( id, r, interval, targetArea, null, state );
+	}
+
+	protected TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea, final File currentState, final TessellationCheckpoint.State state )
+	{
+		this( id, r, interval, targetArea, currentState, state, 1 );
+	}
+
+	/**
+	 * At scale &gt; 1 the mask is downsampled by that factor and the points are taken from the state, in the downsampled
+	 * coordinates ( see {@link #downsample(double, int)} ), targetArea is still the one of the full resolution
+	 */
+	protected TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea, final File currentState, final TessellationCheckpoint.State state, final int scale )
+	{
+		this( id, r, interval, targetArea, currentState, state, scale, defaultSeed );
+	}
+
+	protected TessellationThread( final int id, final Roi r, final Interval interval, final int targetArea, final File currentState, final TessellationCheckpoint.State state, final int scale, final long seed )
+	{
+		if ( scale > 1 && state == null )
+			throw new RuntimeException( "A downsampled segment needs the points of the full resolution." );
+
+		this.scale = scale;
+		this.targetArea = Math.max( 1, (int)Math.round( targetArea / (double)( scale * scale ) ) );
 
 		this.r = r;
-		this.mask = TessellationTools.makeMask( interval, r );
+		this.mask = TessellationTools.makeMask( interval, r, scale );
 		this.area = mask.length;
-		this.numPoints = area / targetArea;
+
+		// the number of points does not change with the resolution
+		this.numPoints = scale == 1 ? area / targetArea : state.numPoints();
 		this.locationMap = new HashMap< Integer, RealPoint >();
-		if ( currentState == null )
-			this.search = new Search< Segment >( TessellationTools.createRandomPoints( interval, numPoints, r, locationMap ) );
+		if ( state != null )
+		{
+			if ( state.id != id || state.numPoints() != numPoints )
+				throw new RuntimeException( "Checkpoint state of segment " + state.id + " with " + state.numPoints() + " points does not fit segment " + id + " with " + numPoints + " points." );
+
+			this.search = new Search< Segment >( state.points( locationMap ) );
+			this.search.setLabelEngine( state.labelEngine );
+		}
+		else if ( currentState == null )
+			this.search = new Search< Segment >( TessellationTools.createPoissonDiskPoints( mask, numPoints, this.targetArea, locationMap, RandomStream.stream( seed, id, 1 ) ) );
 		else
 			this.search = new Search< Segment >( TessellationTools.loadPoints( currentState, interval.numDimensions(), numPoints, locationMap ) );
 
-		this.rnd = new Random( 1353 );
+		this.labelMap = new LabelMap( mask, search.realInterval, locationMap );
+		this.labelMap.setLabelEngine( search.labelEngine() );
+		this.rnd = state == null ? RandomStream.stream( seed, id, 0 ) : state.random();
 		this.errorMetricArea = new QuadraticError();
 		this.errorMetricCirc = new CircularityError();
 		this.id = id;
 		this.logFile = null; // just open it once it is actually requested
 
 		// initial compute areas
-		update( mask, search );
+		labelMap.update();
+		this.segmentIndex = new SegmentIndex( search.realInterval );
+
+		int maxId = -1;
+
+		for ( final Segment s : search.realInterval )
+			maxId = Math.max( maxId, s.id() );
+
+		this.maxId = maxId;
+		this.localIds = new int[ numPoints ];
 
 		// initial compute simple statistics
 		this.targetCircle = 0;
-		this.errorArea = normLocalError( errorMetricArea.computeError( search.realInterval, targetArea ) );
-		this.errorCirc = normLocalError( errorMetricCirc.computeError( search.realInterval, targetCircle ) );
+		this.incrementalArea = new IncrementalError( errorMetricArea, this.targetArea );
+		this.incrementalCirc = new IncrementalError( errorMetricCirc, targetCircle );
+		this.errorArea = normAreaError( incrementalArea.init( search.realInterval ) );
+		this.errorCirc = normLocalError( incrementalCirc.init( search.realInterval ) );
 		this.error = computeLocalError( errorArea, errorCirc );
 		this.iteration = 0;
-		this.runNextIteration = new AtomicBoolean( false );
-		this.stopThread = false;
+
+		if ( state != null )
+		{
+			this.strategy = state.strategy;
+			this.expandShrinkInterval = state.expandShrinkInterval;
+			this.iteration = state.iteration;
+			this.lastDX = state.lastDX;
+			this.lastDY = state.lastDY;
+			this.lastDir = state.lastDir;
+			this.lastDist = state.lastDist;
+			this.lastSigma = state.lastSigma;
+			this.lastIteration = state.lastIteration;
+			this.lastIterationUpdated = state.lastIterationUpdated;
+		}
 	}
 
 	public Roi roi() { return r; }
 	public int area() { return area; }
 	public int numPoints() { return numPoints; }
+
+	/**
+	 * @return - the largest id of a point, the ids do not need to be consecutive
+	 */
+	public int maxId() { return maxId; }
 	public int targetArea() { return targetArea; }
+	public int scale() { return scale; }
 	public double targetCircle() { return targetCircle; }
 	public int id() { return id; }
 	public double error() { return error; }
 	public double errorCirc() { return errorCirc; }
 	public double errorArea() { return errorArea; }
 	public int iteration() { return iteration; }
+	public int numCandidates() { return distances.length * 2; }
+	public Strategy strategy() { return strategy; }
+	public void setStrategy( final Strategy strategy ) { this.strategy = strategy; }
+	public double temperature() { return temperature; }
+	public int expandShrinkInterval() { return expandShrinkInterval; }
+	public void setExpandShrinkInterval( final int expandShrinkInterval ) { this.expandShrinkInterval = expandShrinkInterval; }
+
+	/**
+	 * At a temperature above 0 the line search also takes the best candidate if it is worse, with probability
+	 * exp( -( log( newError ) - log( error ) ) / temperature ), i.e. the temperature is relative to the error.
+	 * 0 only takes improvements.
+	 */
+	public void setTemperature( final double temperature ) { this.temperature = temperature; }
+
+	/**
+	 * Restarts the random numbers with the stream of this segment for another seed
+	 */
+	public void setSeed( final long seed ) { this.rnd = RandomStream.stream( seed, id, 0 ); }
+
+	/**
+	 * Continues with another stream of random numbers, e.g. to let copies of the same state go different ways
+	 */
+	public void setRandom( final RandomStream rnd ) { this.rnd = rnd; }
+
+	/**
+	 * @return - the stream of random numbers of this segment, only to be used by the thread that runs it; use
+	 * {@link RandomStream#stream(long)} for independent streams, e.g. for replicas
+	 */
+	public RandomStream random() { return rnd; }
+	/**
+	 * Sets where the log and the points are written, null is the working directory. Only has an effect on the log
+	 * if it was not opened yet.
+	 */
+	public void setDirectory( final File directory ) { this.directory = directory; }
+	public File directory() { return directory; }
+
 	public PrintWriter logFile()
 	{
 		if ( this.logFile == null )
 		{
-			if ( new File( "log_segment_" + id() + ".txt" ).exists() )
+			if ( new File( directory, "log_segment_" + id() + ".txt" ).exists() )
 			{
 				int updateId = 0;
 
@@ -111,14 +269,14 @@ public class TessellationThread implements Runnable
 				do
 				{
 					++updateId;
-					file = new File( "log_segment_" + id() + "_" + updateId + ".txt" );
+					file = new File( directory, "log_segment_" + id() + "_" + updateId + ".txt" );
 				}
 				while ( file.exists() );
 				this.logFile = TextFileAccess.openFileWrite( file );
 			}
 			else
 			{
-				this.logFile = TextFileAccess.openFileWrite( new File( "log_segment_" + id() + ".txt" ) );
+				this.logFile = TextFileAccess.openFileWrite( new File( directory, "log_segment_" + id() + ".txt" ) );
 			}
 		}
 
@@ -127,6 +285,11 @@ public class TessellationThread implements Runnable
 
 	public IterableRealInterval< Segment > pointList() { return search.realInterval; }
 	public Search< Segment > search() { return search; }
+	public LabelMap labelMap() { return labelMap; }
+	public SegmentIndex segmentIndex() { return segmentIndex; }
+	protected CandidateEvaluator evaluator() { return evaluator; }
+	protected IncrementalError incrementalArea() { return incrementalArea; }
+	protected IncrementalError incrementalCirc() { return incrementalCirc; }
 	public int[][] mask() { return mask; }
 	public HashMap< Integer, RealPoint > locationMap() { return locationMap; }
 
@@ -138,19 +301,112 @@ public class TessellationThread implements Runnable
 	public int lastIteration() { return lastIteration; }
 	public boolean lastIterationUpdated() { return lastIterationUpdated; }
 
-	public void stopThread() { this.stopThread = true; }
-	public synchronized void runNextIteration()
+	/**
+	 * @return - everything needed to continue from here, must be called from the thread that runs the iterations
+	 */
+	public TessellationCheckpoint.State state()
 	{
-		this.iterationFinished = false;
-		this.runNextIteration.set( true );
+		final int[] ids = new int[ numPoints ];
+		final double[] x = new double[ numPoints ];
+		final double[] y = new double[ numPoints ];
+
+		int i = 0;
+
+		for ( final Segment s : search.realInterval )
+		{
+			final RealPoint p = locationMap.get( s.id() );
+
+			ids[ i ] = s.id();
+			x[ i ] = p.getDoublePosition( 0 );
+			y[ i ] = p.getDoublePosition( 1 );
+			++i;
+		}
+
+		return new TessellationCheckpoint.State(
+				id, iteration, lastDX, lastDY, lastDir, lastDist, lastSigma, lastIteration, lastIterationUpdated,
+				errorArea, errorCirc, error, strategy, labelMap.labelEngine(), expandShrinkInterval, rnd.key(), rnd.state(), ids, x, y );
+	}
+
+	/**
+	 * Scores the candidate moves of every iteration with numWorkers workers on the pool,
+	 * numWorkers &lt; 2 evaluates them one after another again
+	 */
+	public void parallelize( final ForkJoinPool pool, final int numWorkers )
+	{
+		if ( numWorkers < 2 )
+			this.evaluator = null;
+		else
+			this.evaluator = new CandidateEvaluator( this, pool, numWorkers );
+	}
+
+	/**
+	 * Selects how the pixels are assigned to the points and relabels everything,
+	 * see {@link Search.LabelEngine}
+	 */
+	public void setLabelEngine( final Search.LabelEngine labelEngine )
+	{
+		search.setLabelEngine( labelEngine );
+		labelMap.setLabelEngine( labelEngine );
+		update();
+
+		// the workers need copies of the new labels
+		if ( evaluator != null )
+			this.evaluator = new CandidateEvaluator( this, evaluator.pool, evaluator.numWorkers() );
+	}
+
+	/**
+	 * Optimizes like the given segment, e.g. a replica or a pyramid level of it: same strategy, label engine,
+	 * expand/shrink interval, directory and parallelization. The temperature and the random numbers stay as they are.
+	 */
+	public void copySettings( final TessellationThread t )
+	{
+		setStrategy( t.strategy() );
+		setExpandShrinkInterval( t.expandShrinkInterval() );
+		setDirectory( t.directory() );
+
+		if ( labelMap.labelEngine() != t.labelMap.labelEngine() )
+			setLabelEngine( t.labelMap.labelEngine() );
+
+		if ( t.evaluator() != null )
+			parallelize( t.evaluator().pool, t.evaluator().numWorkers() );
+		else
+			parallelize( null, 1 );
 	}
-	public boolean iterationFinished() { return iterationFinished; }
 
 	protected double computeLocalError( final double errorArea, final double errorCirc )
 	{
 		return errorArea + 300*errorCirc;
 	}
 
+	/**
+	 * @return - if the location (in pixels of the mask) is inside the roi
+	 */
+	public boolean contains( final double x, final double y )
+	{
+		return r.contains( (int)Math.round( x ) * scale + scale / 2, (int)Math.round( y ) * scale + scale / 2 );
+	}
+
+	/**
+	 * @return - the coordinate in an image downsampled by scale, where pixel x covers [ x * scale, ( x + 1 ) * scale )
+	 */
+	public static double downsample( final double x, final int scale )
+	{
+		return ( x - ( scale - 1 ) / 2.0 ) / scale;
+	}
+
+	public static double upsample( final double x, final int scale )
+	{
+		return x * scale + ( scale - 1 ) / 2.0;
+	}
+
+	/**
+	 * The area error as if it was measured at full resolution, the areas grow with scale^2
+	 */
+	protected double normAreaError( final double error )
+	{
+		return normLocalError( error ) * scale * scale * scale * scale;
+	}
+
 	protected double normLocalError( final double error )
 	{
 		return ( error / (double)numPoints() ) * 169.0; // error relative to the original dataset I tested on so the function works
@@ -163,39 +419,87 @@ public class TessellationThread implements Runnable
 
 	public double computeGlobalError( final int neighbors, final boolean setValue, final HashMap< Integer, Double > forces )
 	{
-		// for every segment compute the average error of the nearest n segments
-		final KNearestNeighborSearchOnKDTree< Segment > sr = new KNearestNeighborSearchOnKDTree< Segment >( search.kdTree, neighbors );
+		final ArrayList< Segment > segments = segmentList();
+		final double[] force = new double[ maxId + 1 ];
+		final double sumForces = computeForces( neighbors, setValue, segments, pointGrid( segments ), force );
 
-		double sumForces = 0;
+		if ( forces != null )
+			for ( final Segment s : segments )
+				forces.put( s.id(), force[ s.id() ] );
 
-		for ( final Segment s : search.realInterval )
+		return sumForces / (double)segments.size();
+	}
+
+	/**
+	 * For every segment computes the average error of the nearest n segments, in parallel if the thread is parallelized
+	 *
+	 * @param force - receives minus that error for every segment, indexed by id
+	 * @return - the sum of the absolute forces
+	 */
+	protected double computeForces( final int neighbors, final boolean setValue, final ArrayList< Segment > segments, final PointGrid grid, final double[] force )
+	{
+		forAllSegments( segments, new SegmentPass()
 		{
-			final RealPoint p = locationMap.get( s.id() );
-			sr.search( p );
+			@Override
+			public void process( final Segment s )
+			{
+				final int[] nearest = new int[ neighbors ];
+				final double[] sqDist = new double[ neighbors ];
+				final int n = grid.nearest( grid.x[ s.id() ], grid.y[ s.id() ], neighbors, nearest, sqDist );
 
-			// if the error is positive means it has to push points away (area in average to small)
-			// otherwise has to pull points (area in average to big)
-			double error = 0;
+				// if the error is positive means it has to push points away (area in average to small)
+				// otherwise has to pull points (area in average to big)
+				double error = 0;
 
-			for ( int i = 0; i < neighbors; ++i )
-			{
-				final double area = sr.getSampler( i ).get().area();
-				error += area - targetArea();
+				for ( int i = 0; i < n; ++i )
+					error += labelMap.segment( nearest[ i ] ).area() - targetArea();
+
+				error /= (double)neighbors;
+				force[ s.id() ] = -error;
+
+				if ( setValue )
+					s.setValue( (float)error );
 			}
+		});
+
+		double sumForces = 0;
+
+		for ( final Segment s : segments )
+			sumForces += Math.abs( force[ s.id() ] );
+
+		return sumForces;
+	}
 
-			error /= (double)neighbors;
-			final double force = -error;
+	protected ArrayList< Segment > segmentList()
+	{
+		final ArrayList< Segment > segments = new ArrayList< Segment >( numPoints );
 
-			sumForces += Math.abs( force );
+		for ( final Segment s : search.realInterval )
+			segments.add( s );
 
-			if ( forces != null )
-				forces.put( s.id(), force );
+		return segments;
+	}
+
+	/**
+	 * @return - the current locations of all points in a grid
+	 */
+	protected PointGrid pointGrid( final ArrayList< Segment > segments )
+	{
+		final int[] ids = new int[ segments.size() ];
+		final double[] x = new double[ maxId + 1 ];
+		final double[] y = new double[ maxId + 1 ];
+
+		for ( int i = 0; i < ids.length; ++i )
+		{
+			final int id = segments.get( i ).id();
+			final RealPoint p = locationMap.get( id );
 
-			if ( setValue )
-				s.setValue( (float)error );
+			ids[ i ] = id;
+			x[ id ] = p.getDoublePosition( 0 );
+			y[ id ] = p.getDoublePosition( 1 );
 		}
 
-		return sumForces / (double)search.realInterval.size();
+		return new PointGrid( ids, x, y, PointGrid.cellSize( area, ids.length ) );
 	}
 
 	public void shake( final double amount )
@@ -209,28 +513,23 @@ public class TessellationThread implements Runnable
 			p.setPosition( p.getDoublePosition( 1 ) + ry, 1 );
 		}
 
-		update( mask, search );
-
-		errorArea = normLocalError( errorMetricArea.computeError( search.realInterval, targetArea ) );
-		errorCirc = normLocalError( errorMetricCirc.computeError( search.realInterval, targetCircle ) );
-		error = computeLocalError( errorArea, errorCirc );
+		update();
 	}
 
+	/**
+	 * Moves all points at once, every point is pushed away from segments that are too small on average around them and
+	 * pulled towards segments that are too large. Nearby segments are summed up one by one, far away ones by grid cell
+	 * (see {@link PointGrid}), in parallel if the thread is parallelized. Leaves the global error in error().
+	 */
 	public double expandShrink( final int neighbors, final ImagePlus imp )
 	{
-		// backup all locations as we update the positions on the way
-		final HashMap< Integer, RealPoint > backup = new HashMap< Integer, RealPoint >();
-
-		for ( final int i : locationMap.keySet() )
-			backup.put( i, new RealPoint( locationMap.get( i ) ) );
+		// the grid keeps the locations before the update
+		final ArrayList< Segment > segments = segmentList();
+		final PointGrid grid = pointGrid( segments );
+		final double[] force = new double[ maxId + 1 ];
 
-		final HashMap< Integer, Double > forces = new HashMap< Integer, Double >();
-		computeGlobalError( neighbors, true, forces );
-
-		//System.out.println( id() + "\t" + error );
-
-		//if ( imp != null )
-		//	TessellationTools.drawForces( imp, forces, locationMap );
+		computeForces( neighbors, true, segments, grid, force );
+		grid.setValues( force );
 
 		//
 		// compute the new locations
@@ -239,58 +538,48 @@ public class TessellationThread implements Runnable
 		final double sigma = 10000;
 		final double two_sq_sigma = 2 * sigma * sigma;
 
-		for ( final Segment s : search.realInterval )
-		{
-			final RealPoint ls = backup.get( s.id() );
-
-			final double xs = ls.getDoublePosition( 0 );
-			final double ys = ls.getDoublePosition( 1 );
-
-			// sum up how much other segments pull/push segment s
-			double svx = 0;
-			double svy = 0;
-			double sw = 0;
+		final double[] nx = new double[ maxId + 1 ];
+		final double[] ny = new double[ maxId + 1 ];
 
-			for ( final Segment p : search.realInterval )
+		forAllSegments( segments, new SegmentPass()
+		{
+			@Override
+			public void process( final Segment s )
 			{
-				if ( p.id() == s.id() )
-					continue;
+				// sum up how much other segments pull/push segment s
+				final double[] sum = new double[ 3 ];
+				grid.weightedSum( s.id(), two_sq_sigma, sum );
 
-				final RealPoint lp = backup.get( p.id() );
-				final double force = forces.get( p.id() );//Math.sqrt( Math.abs( forces.get( p.id() ) ) ) * Math.signum( forces.get( p.id() ) );
-				final double dist = DistancePointUpdater.dist( ls, lp );
-				final double vx = ( xs - lp.getDoublePosition( 0 ) ) / dist;
-				final double vy = ( ys - lp.getDoublePosition( 1 ) ) / dist;
+				nx[ s.id() ] = grid.x[ s.id() ];
+				ny[ s.id() ] = grid.y[ s.id() ];
 
-				final double w = Math.exp( -( dist * dist ) / two_sq_sigma );
-	
-				svx += force * vx * w;
-				svy += force * vy * w;
-				sw += w;
+				if ( sum[ 2 ] > 0 )
+				{
+					nx[ s.id() ] += sum[ 0 ] / sum[ 2 ];
+					ny[ s.id() ] += sum[ 1 ] / sum[ 2 ];
+				}
 			}
+		});
 
-			final double vx = svx/sw;
-			final double vy = svy/sw;
-
-			final double xs_new = xs + vx;
-			final double ys_new = ys + vy;
+		// do not push outside of the ROI
+		for ( final Segment s : segments )
+			if ( contains( nx[ s.id() ], ny[ s.id() ] ) )
+				locationMap.get( s.id() ).setPosition( new double[]{ nx[ s.id() ], ny[ s.id() ] } );
 
-			// do not push outside of the ROI
-			if ( r.contains( (int)Math.round( xs_new ), (int)Math.round( ys_new ) ))
-				locationMap.get( s.id() ).setPosition( new double[]{ xs_new, ys_new } );
-		}
+		// update the image, area, errors, etc.
+		update();
 
-		// update the image, area, etc.
-		update( mask, search );
+		error = computeGlobalError( neighbors, true, null );
 
-		this.errorArea = normLocalError( errorMetricArea.computeError( search.realInterval, targetArea ) );
-		this.errorCirc = normLocalError( errorMetricCirc.computeError( search.realInterval, targetCircle ) );
-		this.error = computeLocalError( errorArea, errorCirc );
+		if ( imp != null )
+		{
+			final ArrayList< RealPoint > before = new ArrayList< RealPoint >();
 
-		error = computeGlobalError( neighbors, true, forces );
+			for ( final Segment s : segments )
+				before.add( new RealPoint( grid.x[ s.id() ], grid.y[ s.id() ] ) );
 
-		if ( imp != null )
-			TessellationTools.drawExpandShrink( imp, locationMap.values(), backup.values() );
+			TessellationTools.drawExpandShrink( imp, locationMap.values(), before );
+		}
 
 		return sigma;
 	}
@@ -301,10 +590,13 @@ public class TessellationThread implements Runnable
 	private boolean runIteration()
 	{
 		++iteration;
-		/*
-		if ( iteration % 200 == rnd.nextInt( 200 ) )
+
+		if ( expandShrinkInterval > 0 && iteration % expandShrinkInterval == 0 )
 		{
-			lastSigma = expandShrink( numPoints()/15, null );
+			lastSigma = expandShrink( Math.max( 1, numPoints()/15 ), null );
+
+			// expandShrink() leaves the global error, the line search continues with the local one
+			error = computeLocalError( errorArea, errorCirc );
 
 			lastDX = 0;
 			lastDY = 0;
@@ -314,51 +606,44 @@ public class TessellationThread implements Runnable
 
 			return true; // updated
 		}
-		else*/
+		else
 		{
 			// select the next segment to try to change
 			Segment next;
-			int knearest = 4;
 	
 			if ( iteration % 5 == 0 )
-				next = TessellationTools.randomSegment( search.realInterval, rnd );
+				next = segmentIndex.random( rnd );
 			else if ( iteration % 5 == 1 )
-				next = TessellationTools.smallestSegment( search.realInterval );
+				next = segmentIndex.smallest();
 			else if ( iteration % 5 == 2 )
-				next = TessellationTools.largestSegment( search.realInterval );
+				next = segmentIndex.largest();
 			else if ( iteration % 5 == 3 )
-				next = TessellationTools.randomSegment( search.realInterval, rnd );
+				next = segmentIndex.random( rnd );
 			else
-				next = TessellationTools.maxInvCircularSegment( search.realInterval );
+				next = segmentIndex.maxInvCircular();
 	
 			// select a close neighbor to the smallest, largest or random segment
-			next = TessellationTools.neighborSegment( locationMap.get( next.id() ), search.kdTree, knearest, rnd );
+			next = TessellationTools.neighborSegment( next, labelMap, rnd );
 	
-			// backup all locations
-			final ArrayList< RealPoint > backup = new ArrayList< RealPoint >();
-			
-			for ( final RealPoint p : locationMap.values() )
-				backup.add( new RealPoint( p ) );
-			
 			// try to change the largest or the smallest
 			final RealPoint p = locationMap.get( next.id() );
 	
-			double minError = error;
 			double bestdx = 0;
 			double bestdy = 0;
 			int bestDir = -1;
 			double bestDist = -1;
 			
-			double[] dist = new double[]{ -64, -32, -16, -8, -4, 4, 8, 16, 32, 64 };
+			double[] dist = distances.clone();
 			double[] sigmas = new double[]{ 40, 20, 10, 5, 0 };
 	
 			final double factor = getLocalErrorFactor( error );
 			
+			// the factor works on errors of the full resolution, the moves are in pixels of the mask
 			for ( int i = 0; i < dist.length; ++i )
-				dist[ i ] /= Math.max( 0.1, factor );
+				dist[ i ] /= Math.max( 0.1, factor ) * scale;
 	
 			for ( int i = 0; i < sigmas.length; ++i )
-				sigmas[ i ] /= Math.max( 1, factor*10.0 );
+				sigmas[ i ] /= Math.max( 1, factor*10.0 ) * scale;
 	
 			// randomly select one of the sigmas
 			final double sigma = sigmas[ rnd.nextInt( sigmas.length ) ];
@@ -368,51 +653,53 @@ public class TessellationThread implements Runnable
 				updater = new SimplePointUpdater();
 			else
 				updater = new DistancePointUpdater( sigma );
+
+			// only the points within reach of the updater can move, found through the touching segments
+			final int numLocal = labelMap.adjacency().within( next.id(), locationMap, updater.radius(), localIds );
+			final ArrayList< RealPoint > local = new ArrayList< RealPoint >( numLocal );
+
+			for ( int i = 0; i < numLocal; ++i )
+				local.add( locationMap.get( localIds[ i ] ) );
 	
+			// all candidates, ordered by distance and direction
+			final double[] dxs = new double[ dist.length * 2 ];
+			final double[] dys = new double[ dist.length * 2 ];
+
 			for ( int i = 0; i < dist.length; ++i )
-				for ( int dir = 0; dir <= 1; ++dir )
-				{
-					double dx = 0;
-					double dy = 0;
-	
-					if ( dir == 0 )
-						dx = dist[ i ];
-					else
-						dy = dist[ i ];
-	
-					updater.updatePoints( p, locationMap.values(), dx, dy );
-	
-					update( mask, search );
-	
-					final double errorA = normLocalError( errorMetricArea.computeError( search.realInterval, targetArea ) );
-					final double errorC = normLocalError( errorMetricCirc.computeError( search.realInterval, targetCircle ) );
-					final double errorTest = errorA + 300*errorC;
-	
-					if ( errorTest < minError )
-					{
-						minError = errorTest;
-						bestdx = dx;
-						bestdy = dy;
-						bestDir = dir;
-						bestDist = dist[ i ];
-					}
-					
-					// restore positions
-					int j = 0;
-					for ( final RealPoint rp : locationMap.values() )
-						rp.setPosition( backup.get( j++ ) );
-				}
+			{
+				dxs[ i * 2 ] = dist[ i ];
+				dys[ i * 2 + 1 ] = dist[ i ];
+			}
+
+			final double[] errors;
+
+			if ( evaluator == null )
+				errors = evaluateCandidates( p, local, updater, dxs, dys );
+			else
+				errors = evaluator.evaluate( next.id(), localIds, numLocal, updater, dxs, dys );
+
+			// the first best candidate wins, so the choice does not depend on how they were evaluated
+			int best = 0;
+
+			for ( int c = 1; c < errors.length; ++c )
+				if ( errors[ c ] < errors[ best ] )
+					best = c;
+
+			if ( errors[ best ] < error ||
+				( temperature > 0 && rnd.nextDouble() < Math.exp( -( Math.log( errors[ best ] ) - Math.log( error ) ) / temperature ) ) )
+			{
+				bestdx = dxs[ best ];
+				bestdy = dys[ best ];
+				bestDir = best % 2;
+				bestDist = dist[ best / 2 ];
+			}
 	
 			// apply the best choice
 			if ( bestDir >= 0 )
-				updater.updatePoints( p, locationMap.values(), bestdx, bestdy );
-	
-			// update the image, area, etc.
-			update( mask, search );
+				updater.updatePoints( p, local, bestdx, bestdy );
 	
-			errorArea = normLocalError( errorMetricArea.computeError( search.realInterval, targetArea ) );
-			errorCirc = normLocalError( errorMetricCirc.computeError( search.realInterval, targetCircle ) );
-			error = computeLocalError( errorArea, errorCirc );
+			// update the image, area, errors, etc., only the local points can have moved
+			update( localIds, bestDir >= 0 ? numLocal : 0 );
 	
 			if ( bestDir != -1 )
 			{
@@ -432,42 +719,276 @@ public class TessellationThread implements Runnable
 		}
 	}
 
-	final protected static void update( final int[][] mask, final Search< Segment > search )
+	/**
+	 * Runs Lloyd iterations until no point moves more than minShift pixels, e.g. to start the line search from
+	 * a tessellation that is already close. The strategy is not changed.
+	 *
+	 * @return - the number of iterations it ran
+	 */
+	public int relax( final int maxIterations, final double minShift, final boolean areaWeighted )
 	{
-		// update the new coordinates for the pointlist
-		search.update();
+		return relax( maxIterations, minShift, areaWeighted, null );
+	}
 
-		final RandomAccess< Segment > ra = search.randomAccessible.randomAccess();
+	/**
+	 * Like {@link #relax(int, double, boolean)}, but also stops once the wall clock budget of the criteria is used up
+	 */
+	public int relax( final int maxIterations, final double minShift, final boolean areaWeighted, final ConvergenceCriteria criteria )
+	{
+		for ( int i = 0; i < maxIterations; ++i )
+			if ( criteria != null && criteria.outOfTime() )
+				return i;
+			else if ( !runLloydIteration( areaWeighted ) || lastDist <= minShift )
+				return i + 1;
 
-		for ( final Segment s : search.realInterval )
+		return maxIterations;
+	}
+
+	/**
+	 * Moves all points at once to the center of mass of their segment, the area weighted variant also moves them along the
+	 * center of mass of every touching segment by half of the relative difference in area, weighted by the length of the
+	 * shared border. Points whose new location is outside of the mask and points of empty segments stay where they are.
+	 *
+	 * @return - if any point moved
+	 */
+	private boolean runLloydIteration( final boolean areaWeighted )
+	{
+		++iteration;
+
+		final ArrayList< Segment > segments = segmentList();
+
+		// all centers first, as every new location might depend on the centers of the neighbors
+		final double[] cx = new double[ maxId + 1 ];
+		final double[] cy = new double[ maxId + 1 ];
+
+		forAllSegments( segments, new SegmentPass()
 		{
-			s.setArea( 0 );
-			s.pixels().clear();
-		}
+			@Override
+			public void process( final Segment s )
+			{
+				if ( s.numPixels() > 0 )
+				{
+					final double[] c = s.centerOfMass();
+					cx[ s.id() ] = c[ 0 ];
+					cy[ s.id() ] = c[ 1 ];
+				}
+			}
+		});
+
+		final double[] nx = new double[ maxId + 1 ];
+		final double[] ny = new double[ maxId + 1 ];
+		final AdjacencyGraph g = labelMap.adjacency();
 
-		for ( final int[] ml : mask )
+		forAllSegments( segments, new SegmentPass()
 		{
-			ra.setPosition( ml );
+			@Override
+			public void process( final Segment s )
+			{
+				final int id = s.id();
+				final RealPoint p = locationMap.get( id );
+
+				nx[ id ] = p.getDoublePosition( 0 );
+				ny[ id ] = p.getDoublePosition( 1 );
+
+				if ( s.numPixels() == 0 )
+					return;
+
+				double x = cx[ id ];
+				double y = cy[ id ];
+
+				if ( areaWeighted && g.degree( id ) > 0 )
+				{
+					double sx = 0, sy = 0, sw = 0;
+
+					for ( int k = 0; k < g.degree( id ); ++k )
+					{
+						final int n = g.neighbor( id, k );
+						final double shared = g.shared( id, n );
+						final Segment o = labelMap.segment( n );
+
+						// larger neighbors pull, smaller ones push
+						final double w = shared * ( o.area() - s.area() ) / (double)( o.area() + s.area() );
 
-			final Segment s = ra.get();
-			s.incArea();
-			s.pixels().add( ml );
+						sx += w * ( cx[ n ] - cx[ id ] );
+						sy += w * ( cy[ n ] - cy[ id ] );
+						sw += shared;
+					}
+
+					x += 0.5 * sx / sw;
+					y += 0.5 * sy / sw;
+				}
+
+				if ( labelMap.label( (int)Math.round( x ), (int)Math.round( y ) ) >= 0 )
+				{
+					nx[ id ] = x;
+					ny[ id ] = y;
+				}
+			}
+		});
+
+		double sumDX = 0, sumDY = 0, maxShift = 0;
+
+		for ( final Segment s : segments )
+		{
+			final RealPoint p = locationMap.get( s.id() );
+			final double dx = nx[ s.id() ] - p.getDoublePosition( 0 );
+			final double dy = ny[ s.id() ] - p.getDoublePosition( 1 );
+
+			sumDX += dx;
+			sumDY += dy;
+			maxShift = Math.max( maxShift, Math.sqrt( dx * dx + dy * dy ) );
+
+			p.setPosition( nx[ s.id() ], 0 );
+			p.setPosition( ny[ s.id() ], 1 );
 		}
+
+		// update the image, area, errors, etc.
+		update();
+
+		lastDX = sumDX / segments.size();
+		lastDY = sumDY / segments.size();
+		lastDir = 0xf;
+		lastDist = maxShift;
+		lastSigma = 0;
+		lastIteration = iteration;
+
+		return maxShift > 0;
 	}
 
-	@Override
-	public void run()
+	protected static interface SegmentPass
 	{
-		do
+		public void process( final Segment s );
+	}
+
+	/**
+	 * Runs the pass for every segment, in parallel on the pool of the evaluator if the thread is parallelized.
+	 * The pass must only write to locations of its own segment.
+	 */
+	protected void forAllSegments( final ArrayList< Segment > segments, final SegmentPass pass )
+	{
+		if ( evaluator == null )
 		{
-			if ( runNextIteration.getAndSet( false ) )
+			for ( final Segment s : segments )
+				pass.process( s );
+
+			return;
+		}
+
+		final int numChunks = evaluator.numWorkers();
+		final ArrayList< RecursiveAction > tasks = new ArrayList< RecursiveAction >();
+
+		for ( int c = 0; c < numChunks; ++c )
+		{
+			final int from = (int)( (long)segments.size() * c / numChunks );
+			final int to = (int)( (long)segments.size() * ( c + 1 ) / numChunks );
+
+			tasks.add( new RecursiveAction()
 			{
-				lastIterationUpdated = runIteration();
-				iterationFinished = true;
-			}
+				private static final long serialVersionUID = 1L;
 
-			try { Thread.sleep( 10 ); } catch (InterruptedException e) {}
+				@Override
+				protected void compute()
+				{
+					for ( int i = from; i < to; ++i )
+						pass.process( segments.get( i ) );
+				}
+			});
 		}
-		while ( !stopThread );
+
+		final RecursiveAction all = new RecursiveAction()
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected void compute() { invokeAll( tasks ); }
+		};
+
+		// if we already run inside a pool we can just join in
+		if ( ForkJoinTask.inForkJoinPool() )
+			all.invoke();
+		else
+			evaluator.pool.invoke( all );
+	}
+
+	/**
+	 * Moves point p (and the local points around it) by ( dx[ c ], dy[ c ] ) for every candidate c, one after another,
+	 * and restores the positions afterwards
+	 *
+	 * @return - the error of every candidate
+	 */
+	protected double[] evaluateCandidates( final RealPoint p, final ArrayList< RealPoint > local, final PointUpdater updater, final double[] dx, final double[] dy )
+	{
+		// backup the locations that can change
+		final ArrayList< RealPoint > backup = new ArrayList< RealPoint >();
+
+		for ( final RealPoint rp : local )
+			backup.add( new RealPoint( rp ) );
+
+		final double[] errors = new double[ dx.length ];
+
+		for ( int c = 0; c < dx.length; ++c )
+		{
+			updater.updatePoints( p, local, dx[ c ], dy[ c ] );
+
+			// only relabels and scores the segments around the moved points, the kd-tree is not needed for testing
+			labelMap.update();
+			segmentIndex.update( labelMap );
+
+			final double errorA = normAreaError( incrementalArea.update( labelMap ) );
+			final double errorC = normLocalError( incrementalCirc.update( labelMap ) );
+			errors[ c ] = computeLocalError( errorA, errorC );
+
+			// restore positions
+			int j = 0;
+			for ( final RealPoint rp : local )
+				rp.setPosition( backup.get( j++ ) );
+		}
+
+		return errors;
+	}
+
+	/**
+	 * Relabels the pixels affected by moved points and rescores the touched segments. The iterations do not need
+	 * the kd-tree, it is only rebuilt once {@link #search()} asks for it. Any point can have moved.
+	 */
+	protected void update()
+	{
+		if ( evaluator != null )
+			evaluator.movedAll();
+
+		relabel();
+	}
+
+	/**
+	 * Like {@link #update()}, if only the first numMoved points of ids moved
+	 */
+	protected void update( final int[] ids, final int numMoved )
+	{
+		if ( evaluator != null )
+			evaluator.moved( ids, numMoved );
+
+		relabel();
+	}
+
+	protected void relabel()
+	{
+		labelMap.update();
+		segmentIndex.update( labelMap );
+		search.invalidate();
+
+		errorArea = normAreaError( incrementalArea.update( labelMap ) );
+		errorCirc = normLocalError( incrementalCirc.update( labelMap ) );
+		error = computeLocalError( errorArea, errorCirc );
+	}
+
+	@Override
+	public Boolean call()
+	{
+		if ( strategy == Strategy.LINE_SEARCH )
+			lastIterationUpdated = runIteration();
+		else
+			lastIterationUpdated = runLloydIteration( strategy == Strategy.AREA_WEIGHTED_LLOYD );
+
+		return lastIterationUpdated;
 	}
 }
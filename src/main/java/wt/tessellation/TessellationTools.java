@@ -10,6 +10,8 @@ import ij.gui.Roi;
 import ij.io.Opener;
 
 import java.awt.Color;
+import java.awt.Polygon;
+import java.awt.Rectangle;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
@@ -18,6 +20,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
@@ -171,6 +174,50 @@ public class TessellationTools
 		}
 	}
 
+	final public static void drawId( final Iterable< Segment > segmentMap, final RandomAccessible< FloatType > img, final boolean normalizeIds )
+	{
+		float maxId = 1;
+
+		if ( normalizeIds )
+		{
+			for ( final Segment s : segmentMap )
+				maxId = Math.max( s.id(), maxId );
+		}
+
+		final RandomAccess< FloatType > ri = img.randomAccess();
+
+		for ( final Segment s : segmentMap )
+			draw( s, ri, s.id() / maxId );
+	}
+
+	final public static void drawArea( final Iterable< Segment > segmentMap, final RandomAccessible< FloatType > img )
+	{
+		final RandomAccess< FloatType > ri = img.randomAccess();
+
+		for ( final Segment s : segmentMap )
+			draw( s, ri, s.area() );
+	}
+
+	final public static void drawValue( final Iterable< Segment > segmentMap, final RandomAccessible< FloatType > img )
+	{
+		final RandomAccess< FloatType > ri = img.randomAccess();
+
+		for ( final Segment s : segmentMap )
+			draw( s, ri, (float)s.value() );
+	}
+
+	final protected static void draw( final Segment s, final RandomAccess< FloatType > ri, final float value )
+	{
+		final int[] pixels = s.pixels();
+
+		for ( int i = 0; i < s.numPixels(); ++i )
+		{
+			ri.setPosition( Segment.x( pixels[ i ] ), 0 );
+			ri.setPosition( Segment.y( pixels[ i ] ), 1 );
+			ri.get().set( value );
+		}
+	}
+
 	final public static Interval templateDimensions( final File roiDirectory )
 	{
 		if ( !roiDirectory.exists() || !roiDirectory.isDirectory() )
@@ -290,6 +337,20 @@ public class TessellationTools
 		return s.getSampler( rnd.nextInt( k ) ).get();
 	}
 
+	/**
+	 * Return the segment or one of the segments it touches
+	 */
+	final public static Segment neighborSegment( final Segment s, final LabelMap labelMap, final Random rnd )
+	{
+		final AdjacencyGraph g = labelMap.adjacency();
+		final int k = rnd.nextInt( g.degree( s.id() ) + 1 );
+
+		if ( k == 0 )
+			return s;
+		else
+			return labelMap.segment( g.neighbor( s.id(), k - 1 ) );
+	}
+
 	final public static Segment largestSegment( final Iterable< Segment > segmentMap )
 	{
 		Segment max = segmentMap.iterator().next();
@@ -313,39 +374,173 @@ public class TessellationTools
 
 	public final static int[][] makeMask( final Interval interval, final Roi r )
 	{
-		int numElements = 0;
+		return makeMask( interval, r, 1 );
+	}
 
-		for ( int y = 0; y < interval.dimension( 1 ); ++y )
-			for ( int x = 0; x < interval.dimension( 0 ); ++x )
-				if ( r.contains( x, y ) )
-					++numElements;
+	/**
+	 * @return - the pixels of the roi in an image downsampled by scale, a pixel belongs to the mask if the center of
+	 * its scale x scale block ( x * scale + scale / 2, y * scale + scale / 2 ) is inside the roi
+	 *
+	 * Only the bounding box of the roi is visited. Polygons with integer coordinates are filled scanline by scanline from
+	 * their edge crossings, with the same result as Roi.contains(), all other rois (including spline fits and subpixel
+	 * polygons, whose FloatPolygon is not the integer Polygon) are tested pixel by pixel.
+	 */
+	public final static int[][] makeMask( final Interval interval, final Roi r, final int scale )
+	{
+		final int w = (int)( ( interval.dimension( 0 ) + scale - 1 ) / scale );
+		final int h = (int)( ( interval.dimension( 1 ) + scale - 1 ) / scale );
+		final int offset = scale / 2;
 
-		final int[][] mask = new int[ numElements ][ 2 ];
+		final Rectangle bounds = r.getBounds();
 
-		int i = 0;
+		// the downsampled pixels whose centers are inside the bounding box
+		final int minX = Math.max( 0, ceilDiv( bounds.x - offset, scale ) );
+		final int maxX = Math.min( w, ceilDiv( bounds.x + bounds.width - offset, scale ) );
+		final int minY = Math.max( 0, ceilDiv( bounds.y - offset, scale ) );
+		final int maxY = Math.min( h, ceilDiv( bounds.y + bounds.height - offset, scale ) );
 
-		for ( int y = 0; y < interval.dimension( 1 ); ++y )
-			for ( int x = 0; x < interval.dimension( 0 ); ++x )
-				if ( r.contains( x, y ) )
+		// x and y of all pixels of the mask in a row
+		int[] buffer = new int[ 2 * Math.max( 16, maxX - minX ) ];
+		int n = 0;
+
+		final int type = r.getType();
+
+		// spline fits and subpixel polygons are not described by their integer polygon
+		if ( ( type == Roi.POLYGON || type == Roi.FREEROI || type == Roi.TRACED_ROI ) &&
+			!( r instanceof PolygonRoi && ( ( (PolygonRoi)r ).isSplineFit() || ( (PolygonRoi)r ).subPixelResolution() ) ) )
+		{
+			final Polygon polygon = r.getPolygon();
+			final int[] crossings = new int[ polygon.npoints ];
+
+			for ( int y = minY; y < maxY; ++y )
+			{
+				final int numCrossings = crossings( polygon, y * scale + offset, crossings );
+
+				// the number of edges crossed right of the pixel is numCrossings - i for crossings[ i - 1 ] <= px < crossings[ i ]
+				for ( int i = 0; i <= numCrossings; ++i )
 				{
-					mask[ i ][ 0 ] = x;
-					mask[ i ][ 1 ] = y;
-					++i;
+					if ( ( numCrossings - i ) % 2 == 0 )
+						continue;
+
+					final int x0 = i == 0 ? minX : Math.max( minX, ceilDiv( crossings[ i - 1 ] - offset, scale ) );
+					final int x1 = i == numCrossings ? maxX : Math.min( maxX, ceilDiv( crossings[ i ] - offset, scale ) );
+
+					if ( x1 > x0 && n + 2 * ( x1 - x0 ) > buffer.length )
+						buffer = Arrays.copyOf( buffer, Math.max( 2 * buffer.length, n + 2 * ( x1 - x0 ) ) );
+
+					for ( int x = x0; x < x1; ++x )
+					{
+						buffer[ n++ ] = x;
+						buffer[ n++ ] = y;
+					}
 				}
+			}
+		}
+		else
+		{
+			for ( int y = minY; y < maxY; ++y )
+			{
+				if ( n + 2 * ( maxX - minX ) > buffer.length )
+					buffer = Arrays.copyOf( buffer, Math.max( 2 * buffer.length, n + 2 * ( maxX - minX ) ) );
+
+				for ( int x = minX; x < maxX; ++x )
+					if ( r.contains( x * scale + offset, y * scale + offset ) )
+					{
+						buffer[ n++ ] = x;
+						buffer[ n++ ] = y;
+					}
+			}
+		}
+
+		final int[][] mask = new int[ n / 2 ][ 2 ];
+
+		for ( int i = 0; i < mask.length; ++i )
+		{
+			mask[ i ][ 0 ] = buffer[ 2 * i ];
+			mask[ i ][ 1 ] = buffer[ 2 * i + 1 ];
+		}
 
 		return mask;
 	}
 
+	/**
+	 * Finds where the edges of the polygon cross the scanline y, following the rules of Polygon.contains( x, y ):
+	 * an edge is crossed right of an integer x if x < crossing.
+	 *
+	 * @param crossings - receives the crossings in ascending order, at least as long as the number of points
+	 * @return - the number of crossings
+	 */
+	protected final static int crossings( final Polygon polygon, final int y, final int[] crossings )
+	{
+		int n = 0;
+
+		int lastX = polygon.xpoints[ polygon.npoints - 1 ];
+		int lastY = polygon.ypoints[ polygon.npoints - 1 ];
+
+		for ( int i = 0; i < polygon.npoints; ++i )
+		{
+			final int curX = polygon.xpoints[ i ];
+			final int curY = polygon.ypoints[ i ];
+
+			// horizontal edges and edges that do not span y (including their lower end) are never crossed
+			if ( curY != lastY && y >= Math.min( curY, lastY ) && y < Math.max( curY, lastY ) )
+			{
+				final int leftX = Math.min( curX, lastX );
+				final int rightX = Math.max( curX, lastX );
+				final int startX = curY < lastY ? curX : lastX;
+				final int startY = curY < lastY ? curY : lastY;
+
+				// the same arithmetic as Polygon.contains()
+				final double dx = (double)( y - startY ) / ( lastY - curY ) * ( lastX - curX );
+				final int crossing = Math.min( rightX, Math.max( leftX, startX + (int)Math.ceil( dx ) ) );
+
+				// insertion sort, there are only a few crossings per scanline
+				int j = n++;
+
+				while ( j > 0 && crossings[ j - 1 ] > crossing )
+				{
+					crossings[ j ] = crossings[ j - 1 ];
+					--j;
+				}
+
+				crossings[ j ] = crossing;
+			}
+
+			lastX = curX;
+			lastY = curY;
+		}
+
+		return n;
+	}
+
+	/**
+	 * @return - the smallest integer >= a / b for b > 0
+	 */
+	protected final static int ceilDiv( final int a, final int b )
+	{
+		return a >= 0 ? ( a + b - 1 ) / b : -( -a / b );
+	}
+
 	public final static RealPointSampleList< Segment > createRandomPoints( RealInterval interval, int numPoints, final Roi r, final HashMap< Integer, RealPoint > locations )
+	{
+		return createRandomPoints( interval, numPoints, r, locations, new RandomStream( 35235 ) );
+	}
+
+	/**
+	 * Places numPoints points at distinct random pixels of the interval inside the roi (if not null)
+	 *
+	 * @param rnd - e.g. the stream of a segment, see {@link RandomStream#stream(long, long...)}
+	 */
+	public final static RealPointSampleList< Segment > createRandomPoints( RealInterval interval, int numPoints, final Roi r, final HashMap< Integer, RealPoint > locations, final Random rnd )
 	{
 		// the number of dimensions
 		int numDimensions = interval.numDimensions();
 		
-		// a random number generator
-		Random rnd = new Random( 35235 );//System.currentTimeMillis() );
-		
 		// a list of Samples with coordinates
 		RealPointSampleList< Segment > elements = new RealPointSampleList< Segment >( numDimensions );
+
+		// the locations that are already taken
+		final HashSet< List< Double > > taken = new HashSet< List< Double > >();
 	
 		for ( int i = 0; i < numPoints; ++i )
 		{
@@ -360,7 +555,7 @@ public class TessellationTools
 	
 				if (
 						( r == null || r.contains( Math.round( point.getFloatPosition( 0 ) ), Math.round( point.getFloatPosition( 1 ) ) ) ) &&
-						!alreadyThere( point, locations.values() ) )
+						taken.add( location( point ) ) )
 				{
 					// add a new element with a random intensity in the range 0...1
 					final Segment s = new Segment( i );
@@ -377,23 +572,201 @@ public class TessellationTools
 		return elements;
 	}
 
-	protected static boolean alreadyThere( final RealPoint p, final Iterable< RealPoint > otherPoints )
+	/**
+	 * Places numPoints points inside the mask with a minimum distance between them (Poisson-disk sampling after Bridson,
+	 * with a background grid), in time linear in the number of mask pixels. The distance starts a bit below the spacing
+	 * of equal cells of targetArea and shrinks until the mask is filled with at least numPoints points, surplus points
+	 * are dropped at random.
+	 */
+	public final static RealPointSampleList< Segment > createPoissonDiskPoints( final int[][] mask, final int numPoints, final int targetArea, final HashMap< Integer, RealPoint > locations, final Random rnd )
 	{
-		final int n = p.numDimensions();
+		final RealPointSampleList< Segment > elements = new RealPointSampleList< Segment >( 2 );
+
+		if ( numPoints == 0 )
+			return elements;
+
+		if ( mask.length < numPoints )
+			throw new RuntimeException( "Cannot place " + numPoints + " points on " + mask.length + " pixels." );
+
+		// the mask as a bitmap of its bounding box
+		int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = Integer.MIN_VALUE, maxY = Integer.MIN_VALUE;
+
+		for ( final int[] p : mask )
+		{
+			minX = Math.min( minX, p[ 0 ] );
+			minY = Math.min( minY, p[ 1 ] );
+			maxX = Math.max( maxX, p[ 0 ] );
+			maxY = Math.max( maxY, p[ 1 ] );
+		}
+
+		final int w = maxX - minX + 1;
+		final int h = maxY - minY + 1;
+		final boolean[] inside = new boolean[ w * h ];
+
+		for ( final int[] p : mask )
+			inside[ ( p[ 1 ] - minY ) * w + p[ 0 ] - minX ] = true;
 
-		for ( final RealPoint q : otherPoints )
+		// about what fills the mask with numPoints points
+		double radius = 0.82 * Math.sqrt( targetArea );
+		double[] x, y;
+		int n;
+
+		do
 		{
-			boolean allsame = true;
+			x = new double[ mask.length ];
+			y = new double[ mask.length ];
+			n = poissonDisk( mask, inside, minX, minY, w, h, radius, x, y, rnd );
 
-			for ( int d = 0; d < n; ++d )
-				if ( p.getDoublePosition( d ) != q.getDoublePosition( d ) )
-					allsame = false;
+			// the number of points grows with 1 / radius^2
+			radius *= Math.min( 0.98, Math.sqrt( n / (double)numPoints ) * 0.98 );
+		}
+		while ( n < numPoints );
 
-			if ( allsame )
-				return true;
+		// keep a random subset of numPoints
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final int j = i + rnd.nextInt( n - i );
+			final double tx = x[ i ], ty = y[ i ];
+			x[ i ] = x[ j ];
+			y[ i ] = y[ j ];
+			x[ j ] = tx;
+			y[ j ] = ty;
 		}
 
-		return false;
+		for ( int i = 0; i < numPoints; ++i )
+		{
+			final RealPoint point = new RealPoint( new double[]{ x[ i ], y[ i ] } );
+			final Segment s = new Segment( i );
+			elements.add( point, s );
+
+			if ( locations != null )
+				locations.put( s.id(), point );
+		}
+
+		return elements;
+	}
+
+	/**
+	 * Fills the mask with points that are at least radius apart, until no more fit
+	 *
+	 * @return - the number of points written to x and y
+	 */
+	protected static int poissonDisk(
+			final int[][] mask, final boolean[] inside, final int minX, final int minY, final int w, final int h,
+			final double radius, final double[] x, final double[] y, final Random rnd )
+	{
+		// a grid cell can hold at most one point
+		final double cellSize = radius / Math.sqrt( 2 );
+		final int gw = (int)( w / cellSize ) + 1;
+		final int gh = (int)( h / cellSize ) + 1;
+		final int[] grid = new int[ gw * gh ];
+
+		for ( int i = 0; i < grid.length; ++i )
+			grid[ i ] = -1;
+
+		final int[] active = new int[ mask.length ];
+		int numActive = 0;
+		int n = 0;
+
+		// the first seed is random, then all mask pixels are tried as seeds so every part of the mask gets filled
+		final int first = rnd.nextInt( mask.length );
+
+		for ( int i = 0; i < mask.length; ++i )
+		{
+			final int seed = ( first + i ) % mask.length;
+			final double sx = mask[ seed ][ 0 ] - minX;
+			final double sy = mask[ seed ][ 1 ] - minY;
+
+			// a point in the same cell is always closer than radius
+			if ( grid[ (int)( sy / cellSize ) * gw + (int)( sx / cellSize ) ] >= 0 || !free( sx, sy, radius, grid, gw, gh, cellSize, x, y ) )
+				continue;
+
+			n = add( sx, sy, n, grid, gw, cellSize, x, y );
+			active[ numActive++ ] = n - 1;
+
+			while ( numActive > 0 )
+			{
+				final int a = rnd.nextInt( numActive );
+				final int p = active[ a ];
+				boolean found = false;
+
+				for ( int k = 0; k < 30 && !found; ++k )
+				{
+					// uniform in the annulus between radius and 2 * radius
+					final double angle = rnd.nextDouble() * 2 * Math.PI;
+					final double dist = radius * Math.sqrt( 1 + 3 * rnd.nextDouble() );
+					final double cx = x[ p ] + Math.cos( angle ) * dist;
+					final double cy = y[ p ] + Math.sin( angle ) * dist;
+
+					final int ix = (int)Math.round( cx );
+					final int iy = (int)Math.round( cy );
+
+					if ( ix < 0 || iy < 0 || ix >= w || iy >= h || !inside[ iy * w + ix ] )
+						continue;
+
+					if ( free( cx, cy, radius, grid, gw, gh, cellSize, x, y ) )
+					{
+						n = add( cx, cy, n, grid, gw, cellSize, x, y );
+						active[ numActive++ ] = n - 1;
+						found = true;
+					}
+				}
+
+				if ( !found )
+					active[ a ] = active[ --numActive ];
+			}
+		}
+
+		for ( int i = 0; i < n; ++i )
+		{
+			x[ i ] += minX;
+			y[ i ] += minY;
+		}
+
+		return n;
+	}
+
+	protected static boolean free( final double px, final double py, final double radius, final int[] grid, final int gw, final int gh, final double cellSize, final double[] x, final double[] y )
+	{
+		final int gx = (int)( px / cellSize );
+		final int gy = (int)( py / cellSize );
+		final double sqRadius = radius * radius;
+
+		for ( int yy = Math.max( 0, gy - 2 ); yy <= Math.min( gh - 1, gy + 2 ); ++yy )
+			for ( int xx = Math.max( 0, gx - 2 ); xx <= Math.min( gw - 1, gx + 2 ); ++xx )
+			{
+				final int q = grid[ yy * gw + xx ];
+
+				if ( q >= 0 )
+				{
+					final double dx = x[ q ] - px;
+					final double dy = y[ q ] - py;
+
+					if ( dx * dx + dy * dy < sqRadius )
+						return false;
+				}
+			}
+
+		return true;
+	}
+
+	protected static int add( final double px, final double py, final int n, final int[] grid, final int gw, final double cellSize, final double[] x, final double[] y )
+	{
+		x[ n ] = px;
+		y[ n ] = py;
+		grid[ (int)( py / cellSize ) * gw + (int)( px / cellSize ) ] = n;
+
+		return n + 1;
+	}
+
+	protected static List< Double > location( final RealPoint p )
+	{
+		final ArrayList< Double > l = new ArrayList< Double >( p.numDimensions() );
+
+		for ( int d = 0; d < p.numDimensions(); ++d )
+			l.add( p.getDoublePosition( d ) );
+
+		return l;
 	}
 
 	public final static RealPointSampleList< Segment > loadPoints( final File pointFile, final int numDimensions, final int numPoints, final HashMap< Integer, RealPoint > locations )
@@ -447,7 +820,7 @@ public class TessellationTools
 
 	public static void writePoints( final TessellationThread t )
 	{
-		final PrintWriter out = TextFileAccess.openFileWrite( "segment_" + t.id() + ".points.txt" );
+		final PrintWriter out = TextFileAccess.openFileWrite( new File( t.directory(), "segment_" + t.id() + ".points.txt" ) );
 
 		for ( final Segment s : t.search().realInterval )
 		{
@@ -465,8 +838,8 @@ public class TessellationTools
 				t.errorArea() + "\t" +
 				t.errorCirc() + "\t" +
 				t.error() + "\t" + 
-				smallestSegment( t.pointList() ).area() + "\t" +
-				largestSegment( t.pointList() ).area() + "\t" +
+				t.segmentIndex().smallest().area() + "\t" +
+				t.segmentIndex().largest().area() + "\t" +
 				t.lastdDist() + "\t" +
 				t.lastDir() + "\t" +
 				t.lastdSigma();
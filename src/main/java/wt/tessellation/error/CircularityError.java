@@ -12,12 +12,16 @@ public class CircularityError implements Error
 		double error = 0;
 
 		for ( final Segment s : segmentMap )
-		{
-			final double circ = s.invCircularity();
-			
-			error += ( circ - target ) * ( circ - target );
-		}
+			error += segmentError( s, target );
 
 		return error;
 	}
+
+	@Override
+	public double segmentError( final Segment s, final double target )
+	{
+		final double circ = s.invCircularity();
+
+		return ( circ - target ) * ( circ - target );
+	}
 }
@@ -6,4 +6,9 @@ import wt.tessellation.Segment;
 public interface Error
 {
 	public double computeError( final Iterable< Segment > segmentMap, final double target );
+
+	/**
+	 * @return - the contribution of a single segment to the error, computeError is the sum over all segments
+	 */
+	public double segmentError( final Segment s, final double target );
 }
@@ -0,0 +1,97 @@
+package wt.tessellation.error;
+
+import wt.tessellation.LabelMap;
+import wt.tessellation.Segment;
+
+/**
+ * Keeps the contribution of every segment to an {@link Error} and their total,
+ * so after a move only the segments whose pixels changed have to be scored again.
+ *
+ * The total is summed pairwise in a tree over the segment ids, a changed contribution
+ * only updates its path to the root. So the total only depends on the current
+ * contributions and not on the order of the updates that led to them: a copy, a
+ * segment restored from a checkpoint and one that ran all along agree to the last bit.
+ */
+public class IncrementalError
+{
+	final private Error error;
+	final private double target;
+
+	// sum tree, the contribution of segment id is the leaf sum[ numLeaves + id ], the total is sum[ 1 ]
+	private double[] sum;
+	private int numLeaves;
+
+	public IncrementalError( final Error error, final double target )
+	{
+		this.error = error;
+		this.target = target;
+		this.sum = new double[ 2 ];
+		this.numLeaves = 1;
+	}
+
+	/**
+	 * A copy that continues from the current contributions
+	 */
+	public IncrementalError copy()
+	{
+		final IncrementalError e = new IncrementalError( error, target );
+
+		e.sum = sum.clone();
+		e.numLeaves = numLeaves;
+
+		return e;
+	}
+
+	public Error error() { return error; }
+	public double target() { return target; }
+	public double total() { return sum[ 1 ]; }
+
+	/**
+	 * Scores all segments
+	 *
+	 * @return - the total error
+	 */
+	public double init( final Iterable< Segment > segmentMap )
+	{
+		int maxId = -1;
+
+		for ( final Segment s : segmentMap )
+			maxId = Math.max( maxId, s.id() );
+
+		this.numLeaves = 1;
+
+		while ( numLeaves < maxId + 1 )
+			numLeaves *= 2;
+
+		this.sum = new double[ 2 * numLeaves ];
+
+		for ( final Segment s : segmentMap )
+			sum[ numLeaves + s.id() ] = error.segmentError( s, target );
+
+		for ( int i = numLeaves - 1; i >= 1; --i )
+			sum[ i ] = sum[ 2 * i ] + sum[ 2 * i + 1 ];
+
+		return sum[ 1 ];
+	}
+
+	/**
+	 * Scores all segments touched by the last update of the {@link LabelMap}
+	 *
+	 * @return - the new total error
+	 */
+	public double update( final LabelMap labelMap )
+	{
+		for ( int i = 0; i < labelMap.numTouched(); ++i )
+		{
+			final Segment s = labelMap.segment( labelMap.touched( i ) );
+
+			int j = numLeaves + s.id();
+			sum[ j ] = error.segmentError( s, target );
+
+			for ( j /= 2; j >= 1; j /= 2 )
+				sum[ j ] = sum[ 2 * j ] + sum[ 2 * j + 1 ];
+		}
+
+		return sum[ 1 ];
+	}
+}
@@ -11,14 +11,18 @@ public class LinearError implements Error
 		double error = 0;
 
 		for ( final Segment s : segmentMap )
-		{
-			final int area = s.area();
-			if ( s.area() < 1 )
-				error += Math.abs( 100 * target );
-			else
-				error += Math.abs( area - target );
-		}
+			error += segmentError( s, target );
 
 		return error;
 	}
+
+	@Override
+	public double segmentError( final Segment s, final double target )
+	{
+		final int area = s.area();
+		if ( s.area() < 1 )
+			return Math.abs( 100 * target );
+		else
+			return Math.abs( area - target );
+	}
 }
@@ -11,15 +11,19 @@ public class QuadraticError implements Error
 		double error = 0;
 
 		for ( final Segment s : segmentMap )
-		{
-			final int area = s.area();
-			
-			if ( area <= 1 )
-				error += ( 1000 * target ) * ( 1000 * target );
-			else
-				error += ( area - target ) * ( area - target );
-		}
+			error += segmentError( s, target );
 		
 		return error;
 	}
+
+	@Override
+	public double segmentError( final Segment s, final double target )
+	{
+		final int area = s.area();
+
+		if ( area <= 1 )
+			return ( 1000 * target ) * ( 1000 * target );
+		else
+			return ( area - target ) * ( area - target );
+	}
 }
@@ -1,17 +1,22 @@
 package wt.tessellation.pointupdate;
 
 import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
 
 import net.imglib2.RealPoint;
 import net.imglib2.util.Util;
 
 public class DistancePointUpdater implements PointUpdater
 {
+	// the kernels are reused as long as the same sigmas come up, e.g. while the error of a segment does not change
+	final private static ConcurrentHashMap< Double, double[] > kernels = new ConcurrentHashMap< Double, double[] >();
+	final private static int maxKernels = 256;
+
 	protected double[] sigma;
 
 	public DistancePointUpdater( final double sigma )
 	{
-		this.sigma = sigmas( sigma, false );
+		this.sigma = kernel( sigma );
 	}
 
 	@Override
@@ -21,20 +26,50 @@ public class DistancePointUpdater implements PointUpdater
 			final double dx, final double dy )
 	{
 		// otherwise could be updated in between
-		final RealPoint reference = new RealPoint( p );
+		final double x = p.getDoublePosition( 0 );
+		final double y = p.getDoublePosition( 1 );
+
+		// the rounded distance has to be smaller than the kernel
+		final double maxSqDist = ( sigma.length - 0.5 ) * ( sigma.length - 0.5 );
 
 		for ( final RealPoint rp : allpoints )
 		{
-			final int dist = (int)Math.round( dist( rp, reference ) );
+			final double vx = rp.getDoublePosition( 0 ) - x;
+			final double vy = rp.getDoublePosition( 1 ) - y;
+			final double sqDist = vx * vx + vy * vy;
 
-			if ( dist < sigma.length )
+			if ( sqDist < maxSqDist )
 			{
+				final int dist = (int)Math.round( Math.sqrt( sqDist ) );
+
 				rp.setPosition( rp.getDoublePosition( 0 ) + dx * sigma[ dist ], 0 );
 				rp.setPosition( rp.getDoublePosition( 1 ) + dy * sigma[ dist ], 1 );
 			}
 		}
 	}
 
+	@Override
+	public double radius() { return sigma.length; }
+
+	/**
+	 * @return - the (not normalized) second half of the Gaussian kernel for sigma, shared, must not be changed
+	 */
+	public static double[] kernel( final double sigma )
+	{
+		double[] k = kernels.get( sigma );
+
+		if ( k == null )
+		{
+			if ( kernels.size() >= maxKernels )
+				kernels.clear();
+
+			k = sigmas( sigma, false );
+			kernels.put( sigma, k );
+		}
+
+		return k;
+	}
+
 	public static double[] sigmas( final double sigma, final boolean normalize )
 	{
 		double[] sigmaTmp = Util.createGaussianKernel1DDouble( sigma, false );
@@ -7,4 +7,9 @@ import net.imglib2.RealPoint;
 public interface PointUpdater
 {
 	public void updatePoints( final RealPoint p, final Collection< RealPoint > allpoints, final double dx, final double dy );
+
+	/**
+	 * @return - points farther away from p than this are never moved
+	 */
+	public double radius();
 }
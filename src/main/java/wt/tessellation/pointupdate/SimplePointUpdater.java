@@ -15,4 +15,7 @@ public class SimplePointUpdater implements PointUpdater
 		p.setPosition( p.getDoublePosition( 0 ) + dx, 0 );
 		p.setPosition( p.getDoublePosition( 1 ) + dy, 1 );
 	}
+
+	@Override
+	public double radius() { return 0; }
 }
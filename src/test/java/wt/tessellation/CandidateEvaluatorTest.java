@@ -0,0 +1,38 @@
+package wt.tessellation;
+
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+public class CandidateEvaluatorTest
+{
+	/**
+	 * Scoring the candidates with workers has to give exactly the moves of scoring them one after another
+	 */
+	@Test
+	public void testSameMovesForAnyNumberOfWorkers()
+	{
+		final ForkJoinPool pool = new ForkJoinPool( 4 );
+
+		try
+		{
+			final TessellationThread sequential = new TessellationThread( 0, TessellationCheckpointTest.roi(), TessellationCheckpointTest.interval(), TessellationCheckpointTest.targetArea, 11 );
+			sequential.setExpandShrinkInterval( TessellationCheckpointTest.expandShrinkInterval );
+			TessellationCheckpointTest.run( sequential, 800 );
+
+			for ( final int numWorkers : new int[]{ 2, 3, 7 } )
+			{
+				final TessellationThread parallel = new TessellationThread( 0, TessellationCheckpointTest.roi(), TessellationCheckpointTest.interval(), TessellationCheckpointTest.targetArea, 11 );
+				parallel.setExpandShrinkInterval( TessellationCheckpointTest.expandShrinkInterval );
+				parallel.parallelize( pool, numWorkers );
+				TessellationCheckpointTest.run( parallel, 800 );
+
+				TessellationCheckpointTest.assertSameState( sequential, parallel );
+			}
+		}
+		finally
+		{
+			pool.shutdown();
+		}
+	}
+}
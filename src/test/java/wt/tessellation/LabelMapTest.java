@@ -0,0 +1,131 @@
+package wt.tessellation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+import net.imglib2.RealPoint;
+
+import org.junit.Test;
+
+public class LabelMapTest
+{
+	/**
+	 * A C-shaped ring with a gap and an island to its right, so cells can reach across parts of the mask
+	 * that do not touch
+	 */
+	protected static int[][] concaveMask()
+	{
+		final ArrayList< int[] > mask = new ArrayList< int[] >();
+
+		for ( int y = 0; y < 100; ++y )
+			for ( int x = 0; x < 130; ++x )
+			{
+				final double r = Math.hypot( x - 55, y - 50 );
+				final boolean ring = r >= 20 && r <= 45 && !( x > 55 && Math.abs( y - 50 ) < 6 );
+				final boolean island = Math.hypot( x - 112, y - 50 ) <= 12;
+
+				if ( ring || island )
+					mask.add( new int[]{ x, y } );
+			}
+
+		return mask.toArray( new int[ mask.size() ][] );
+	}
+
+	protected static LabelMap labelMap( final int[][] mask, final double[] x, final double[] y, final HashMap< Integer, RealPoint > locations )
+	{
+		final ArrayList< Segment > segments = new ArrayList< Segment >();
+
+		for ( int id = 0; id < x.length; ++id )
+		{
+			segments.add( new Segment( id ) );
+			locations.put( id, new RealPoint( x[ id ], y[ id ] ) );
+		}
+
+		return new LabelMap( mask, segments, locations );
+	}
+
+	protected static void assertSameLabels( final LabelMap expected, final LabelMap actual, final int[][] mask, final String step )
+	{
+		for ( final int[] p : mask )
+			assertEquals( step + ": label of " + p[ 0 ] + "," + p[ 1 ], expected.label( p[ 0 ], p[ 1 ] ), actual.label( p[ 0 ], p[ 1 ] ) );
+
+		for ( int id = 0; id < expected.segments.length; ++id )
+		{
+			assertEquals( step + ": area of " + id, expected.segment( id ).area(), actual.segment( id ).area() );
+			assertEquals( step + ": border of " + id, expected.segment( id ).borderPixels(), actual.segment( id ).borderPixels() );
+			assertEquals( step + ": degree of " + id, expected.adjacency().degree( id ), actual.adjacency().degree( id ) );
+
+			for ( int k = 0; k < expected.adjacency().degree( id ); ++k )
+			{
+				final int n = expected.adjacency().neighbor( id, k );
+
+				assertEquals( step + ": neighbor " + k + " of " + id, n, actual.adjacency().neighbor( id, k ) );
+				assertEquals( step + ": shared " + id + "," + n, expected.adjacency().shared( id, n ), actual.adjacency().shared( id, n ) );
+			}
+		}
+	}
+
+	/**
+	 * Moves random generators, sometimes far and outside of the mask, and compares the incremental labels with labeling
+	 * everything from scratch
+	 */
+	protected void testIncrementalUpdate( final Search.LabelEngine labelEngine )
+	{
+		final int[][] mask = concaveMask();
+		final Random rnd = new Random( 42 );
+		final int numPoints = 40;
+
+		final double[] x = new double[ numPoints ];
+		final double[] y = new double[ numPoints ];
+
+		for ( int id = 0; id < numPoints; ++id )
+		{
+			final int[] p = mask[ rnd.nextInt( mask.length ) ];
+			x[ id ] = p[ 0 ] + rnd.nextDouble() - 0.5;
+			y[ id ] = p[ 1 ] + rnd.nextDouble() - 0.5;
+		}
+
+		final HashMap< Integer, RealPoint > locations = new HashMap< Integer, RealPoint >();
+		final LabelMap incremental = labelMap( mask, x, y, locations );
+		incremental.setLabelEngine( labelEngine );
+		incremental.update();
+
+		for ( int step = 0; step < 1000; ++step )
+		{
+			final int numMoved = 1 + rnd.nextInt( 3 );
+
+			for ( int i = 0; i < numMoved; ++i )
+			{
+				final int id = rnd.nextInt( numPoints );
+				final double d = rnd.nextInt( 4 ) == 0 ? 60 : 8;
+
+				x[ id ] = Math.min( 140, Math.max( -10, x[ id ] + ( rnd.nextDouble() - 0.5 ) * 2 * d ) );
+				y[ id ] = Math.min( 110, Math.max( -10, y[ id ] + ( rnd.nextDouble() - 0.5 ) * 2 * d ) );
+				locations.get( id ).setPosition( new double[]{ x[ id ], y[ id ] } );
+			}
+
+			incremental.update();
+
+			final LabelMap all = labelMap( mask, x, y, new HashMap< Integer, RealPoint >() );
+			all.setLabelEngine( labelEngine );
+			all.update();
+
+			assertSameLabels( all, incremental, mask, labelEngine + " step " + step );
+		}
+	}
+
+	@Test
+	public void testIncrementalUpdateNearestNeighbor()
+	{
+		testIncrementalUpdate( Search.LabelEngine.NEAREST_NEIGHBOR );
+	}
+
+	@Test
+	public void testIncrementalUpdateFeatureTransform()
+	{
+		testIncrementalUpdate( Search.LabelEngine.FEATURE_TRANSFORM );
+	}
+}
@@ -0,0 +1,63 @@
+package wt.tessellation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import ij.gui.Roi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class ParallelTemperingTest
+{
+	/**
+	 * The replicas stop once the criteria say the segment converged, the checkpoint has the best states and the best
+	 * replicas do not run again
+	 */
+	@Test
+	public void testReplicasStopOnTheCriteria() throws Exception
+	{
+		final List< Roi > segments = new ArrayList< Roi >();
+		segments.add( TessellationCheckpointTest.roi() );
+		segments.add( TessellationCheckpointTest.roi() );
+
+		final File directory = TessellationSchedulerTest.tempDirectory();
+		final File checkpointFile = new File( directory, "checkpoint.bin" );
+		checkpointFile.deleteOnExit();
+
+		final TessellationHeadless tessellation = new TessellationHeadless( TessellationCheckpointTest.interval(), segments, TessellationCheckpointTest.targetArea, 4 );
+		tessellation.setDirectory( directory );
+		tessellation.setVerbose( false );
+		tessellation.setCheckpoint( checkpointFile, 1000 );
+
+		// any error within 10 iterations counts as a plateau
+		final ConvergenceCriteria criteria = new ConvergenceCriteria( segments.size(), 10, 1.0, 0, 100000, 0 );
+
+		tessellation.runReplicas( 2, 5, 0.01, criteria );
+
+		for ( final TessellationThread t : tessellation.tessellations() )
+		{
+			assertTrue( "segment " + t.id() + " ran " + t.iteration() + " iterations", t.iteration() < 100 );
+			assertTrue( "segment " + t.id() + " did not converge", criteria.reason( t.id() ) != null );
+		}
+
+		// waits for the background write of the last exchange
+		tessellation.checkpoint.writer.submit( new Runnable() { @Override public void run() {} } ).get();
+
+		final List< TessellationCheckpoint.State > states = TessellationCheckpoint.read( checkpointFile );
+
+		for ( final TessellationThread t : tessellation.tessellations() )
+			assertEquals( "checkpoint of segment " + t.id(), t.error(), states.get( t.id() ).error, 0 );
+
+		// the segments are done, they do not run again
+		final int iteration = tessellation.tessellations().get( 0 ).iteration();
+		tessellation.run( criteria );
+
+		assertEquals( iteration, tessellation.tessellations().get( 0 ).iteration() );
+
+		tessellation.close();
+	}
+}
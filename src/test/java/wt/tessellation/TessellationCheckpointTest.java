@@ -0,0 +1,133 @@
+package wt.tessellation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RealPoint;
+
+import org.junit.Test;
+
+public class TessellationCheckpointTest
+{
+	final static int targetArea = 100;
+	final static int expandShrinkInterval = 250;
+
+	/**
+	 * A concave U-shaped segment
+	 */
+	protected static Roi roi()
+	{
+		return new PolygonRoi( new int[]{ 10, 190, 190, 130, 130, 70, 70, 10 }, new int[]{ 10, 10, 140, 140, 60, 60, 140, 140 }, 8, Roi.POLYGON );
+	}
+
+	protected static Interval interval() { return new FinalInterval( 200, 150 ); }
+
+	protected static void run( final TessellationThread t, final int numIterations )
+	{
+		for ( int i = 0; i < numIterations; ++i )
+			t.call();
+	}
+
+	protected static void assertSameState( final TessellationThread expected, final TessellationThread actual )
+	{
+		assertEquals( "iteration", expected.iteration(), actual.iteration() );
+		assertEquals( "error", expected.error(), actual.error(), 0 );
+		assertEquals( "area error", expected.errorArea(), actual.errorArea(), 0 );
+		assertEquals( "circularity error", expected.errorCirc(), actual.errorCirc(), 0 );
+
+		for ( final Segment s : expected.pointList() )
+		{
+			final RealPoint p = expected.locationMap().get( s.id() );
+			final RealPoint q = actual.locationMap().get( s.id() );
+
+			assertEquals( "x of " + s.id(), p.getDoublePosition( 0 ), q.getDoublePosition( 0 ), 0 );
+			assertEquals( "y of " + s.id(), p.getDoublePosition( 1 ), q.getDoublePosition( 1 ), 0 );
+		}
+	}
+
+	/**
+	 * Writes a checkpoint halfway, continues from the file and compares with a segment that ran all iterations at once.
+	 * The resumed segment takes the label engine and the expand/shrink interval from the checkpoint.
+	 */
+	protected static void resume( final Search.LabelEngine labelEngine ) throws IOException
+	{
+		final TessellationThread uninterrupted = new TessellationThread( 0, roi(), interval(), targetArea, 7 );
+		uninterrupted.setLabelEngine( labelEngine );
+		uninterrupted.setExpandShrinkInterval( expandShrinkInterval );
+		run( uninterrupted, 1200 );
+
+		final TessellationThread first = new TessellationThread( 0, roi(), interval(), targetArea, 7 );
+		first.setLabelEngine( labelEngine );
+		first.setExpandShrinkInterval( expandShrinkInterval );
+		run( first, 600 );
+
+		final File file = File.createTempFile( "tessellation", ".checkpoint" );
+		file.deleteOnExit();
+
+		final List< TessellationCheckpoint.State > states = new ArrayList< TessellationCheckpoint.State >();
+		states.add( first.state() );
+		TessellationCheckpoint.write( file, states );
+
+		final TessellationCheckpoint.State state = TessellationCheckpoint.read( file ).get( 0 );
+		final TessellationThread resumed = new TessellationThread( 0, roi(), interval(), targetArea, state );
+
+		assertEquals( "label engine", labelEngine, resumed.labelMap().labelEngine() );
+		assertEquals( "expand/shrink interval", expandShrinkInterval, resumed.expandShrinkInterval() );
+		assertEquals( "restored error", state.error, resumed.error(), 0 );
+
+		run( resumed, 600 );
+
+		assertSameState( uninterrupted, resumed );
+	}
+
+	@Test
+	public void testResumeContinuesTheSameRun() throws IOException
+	{
+		resume( Search.LabelEngine.NEAREST_NEIGHBOR );
+	}
+
+	@Test
+	public void testResumeKeepsTheLabelEngine() throws IOException
+	{
+		resume( Search.LabelEngine.FEATURE_TRANSFORM );
+	}
+
+	/**
+	 * A background write that failed is thrown by the next call
+	 */
+	@Test
+	public void testFailedBackgroundWriteIsReported() throws Exception
+	{
+		// the parent of the checkpoint is a file, so it cannot be written
+		final File parent = File.createTempFile( "tessellation", ".file" );
+		parent.deleteOnExit();
+
+		final TessellationCheckpoint checkpoint = new TessellationCheckpoint( new File( parent, "checkpoint" ), 1 );
+		checkpoint.update( new TessellationThread( 0, roi(), interval(), targetArea, 7 ) );
+		checkpoint.writeAsync().get();
+
+		try
+		{
+			checkpoint.writeAsync();
+			fail( "the failed write was not reported" );
+		}
+		catch ( final RuntimeException e ) {}
+
+		try
+		{
+			checkpoint.close();
+			fail( "the failed write was not reported" );
+		}
+		catch ( final RuntimeException e ) {}
+	}
+}
@@ -0,0 +1,98 @@
+package wt.tessellation;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.PolygonRoi;
+import ij.gui.Roi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+
+import org.junit.Test;
+
+public class TessellationHierarchyTest
+{
+	/**
+	 * A thin zigzag, where nearest centers easily take cells on both sides of a bend
+	 */
+	protected static Roi zigzag()
+	{
+		return new PolygonRoi(
+				new int[]{ 10, 290, 290, 40, 40, 290, 290, 10, 10, 260, 260, 10 },
+				new int[]{ 10, 10, 110, 110, 130, 130, 230, 230, 210, 210, 30, 30 }, 12, Roi.POLYGON );
+	}
+
+	protected static Interval interval() { return new FinalInterval( 300, 240 ); }
+
+	/**
+	 * @return - the number of connected pieces of every coarse label, over the adjacency of the labels with pixels
+	 */
+	protected static int[] numPieces( final CompiledTessellation t, final int[] parent, final int numCoarse )
+	{
+		final int[] numPieces = new int[ numCoarse ];
+		final boolean[] visited = new boolean[ t.numLabels() ];
+		final int[] queue = new int[ t.numLabels() ];
+
+		for ( int l = 0; l < t.numLabels(); ++l )
+		{
+			if ( visited[ l ] || t.area( l ) == 0 )
+				continue;
+
+			++numPieces[ parent[ l ] ];
+
+			int head = 0, tail = 0;
+			queue[ tail++ ] = l;
+			visited[ l ] = true;
+
+			while ( head < tail )
+			{
+				final int c = queue[ head++ ];
+
+				for ( int j = 0; j < t.numAdjacent( c ); ++j )
+				{
+					final int d = t.adjacent( c, j );
+
+					if ( !visited[ d ] && t.area( d ) > 0 && parent[ d ] == parent[ l ] )
+					{
+						visited[ d ] = true;
+						queue[ tail++ ] = d;
+					}
+				}
+			}
+		}
+
+		return numPieces;
+	}
+
+	@Test
+	public void testCoarseCellsAreConnected()
+	{
+		final List< TessellationThread > threads = new ArrayList< TessellationThread >();
+		threads.add( new TessellationThread( 0, TessellationCheckpointTest.roi(), interval(), 50, 3 ) );
+		threads.add( new TessellationThread( 1, zigzag(), interval(), 50, 3 ) );
+
+		for ( final TessellationThread t : threads )
+			TessellationCheckpointTest.run( t, 300 );
+
+		final CompiledTessellation finest = CompiledTessellation.compile( interval(), threads );
+
+		for ( final int area : new int[]{ 150, 300, 600, 1200, 2400 } )
+		{
+			final int[] parent = TessellationHierarchy.merge( finest, area );
+
+			int numCoarse = 0;
+
+			for ( final int p : parent )
+				numCoarse = Math.max( numCoarse, p + 1 );
+
+			final int[] numPieces = numPieces( finest, parent, numCoarse );
+
+			for ( int p = 0; p < numCoarse; ++p )
+				assertEquals( "pieces of coarse label " + p + " at target area " + area + ": " + Arrays.toString( numPieces ), 1, numPieces[ p ] );
+		}
+	}
+}
@@ -0,0 +1,56 @@
+package wt.tessellation;
+
+import static org.junit.Assert.assertEquals;
+
+import ij.gui.Roi;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+public class TessellationSchedulerTest
+{
+	protected static File tempDirectory() throws IOException
+	{
+		final File directory = File.createTempFile( "tessellation", "" );
+		directory.delete();
+		directory.mkdirs();
+		directory.deleteOnExit();
+
+		return directory;
+	}
+
+	/**
+	 * A segment that already used up its iteration budget does not run another iteration
+	 */
+	@Test
+	public void testNoIterationAfterTheBudget() throws IOException
+	{
+		final List< Roi > segments = new ArrayList< Roi >();
+		segments.add( TessellationCheckpointTest.roi() );
+		segments.add( TessellationCheckpointTest.roi() );
+
+		final TessellationHeadless tessellation = new TessellationHeadless( TessellationCheckpointTest.interval(), segments, TessellationCheckpointTest.targetArea, 2 );
+		tessellation.setDirectory( tempDirectory() );
+		tessellation.setVerbose( false );
+
+		tessellation.run( 50 );
+
+		for ( final TessellationThread t : tessellation.tessellations() )
+			assertEquals( 50, t.iteration() );
+
+		final double error = tessellation.tessellations().get( 0 ).error();
+
+		tessellation.run( 50 );
+
+		for ( final TessellationThread t : tessellation.tessellations() )
+			assertEquals( 50, t.iteration() );
+
+		assertEquals( error, tessellation.tessellations().get( 0 ).error(), 0 );
+
+		tessellation.close();
+	}
+}